@@ -0,0 +1,392 @@
+package example.bench;
+
+import org.apache.cassandra.thrift.AuthenticationRequest;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.CfDef;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.KsDef;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.NotFoundException;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * InProcessCassandra is a stand-in for a Cassandra 0.7 node that lives in
+ *  the benchmark JVM. It speaks the real thrift protocol on a local port, so
+ *  Hector and CassandraService run exactly the code they run in production,
+ *  while the data sits in concurrent sorted maps.
+ *
+ * It keeps one keyspace's worth of standard column families and nothing
+ *  else: no super columns, TTLs, secondary indexes or consistency levels.
+ *  Keys and column names sort as unsigned bytes, which is also the order of
+ *  UTF8Type names and of the positive longs in LongType Timeline columns.
+ */
+public class InProcessCassandra implements Cassandra.Iface {
+
+    private static final Comparator<ByteBuffer> UNSIGNED = new Comparator<ByteBuffer>() {
+        public int compare(ByteBuffer a, ByteBuffer b) {
+            int length = Math.min(a.remaining(), b.remaining());
+            for (int i = 0; i < length; i++) {
+                int x = a.get(a.position() + i) & 0xff;
+                int y = b.get(b.position() + i) & 0xff;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return a.remaining() - b.remaining();
+        }
+    };
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>>>
+            _families = new ConcurrentHashMap<String, ConcurrentSkipListMap<ByteBuffer,
+            ConcurrentSkipListMap<ByteBuffer, Column>>>();
+    private final Map<String, KsDef> _keyspaces = new ConcurrentHashMap<String, KsDef>();
+    private TServer _server;
+
+    /**
+     * serve on port in the background.
+     *
+     * @param port
+     */
+    public synchronized void start(final int port) throws TTransportException {
+        TThreadPoolServer.Options options = new TThreadPoolServer.Options();
+        options.minWorkerThreads = 4;
+        _server = new TThreadPoolServer(new Cassandra.Processor(this), new TServerSocket(port),
+                new TFramedTransport.Factory(), new TFramedTransport.Factory(),
+                new TBinaryProtocol.Factory(), new TBinaryProtocol.Factory(), options);
+        Thread serving = new Thread(new Runnable() {
+            public void run() {
+                _server.serve();
+            }
+        }, "in-process-cassandra");
+        serving.setDaemon(true);
+        serving.start();
+    }
+
+    public synchronized void stop() {
+        if (null != _server) {
+            _server.stop();
+        }
+    }
+
+    // thrift may hand out views of its read buffer, so everything kept is copied
+    private static ByteBuffer copy(final ByteBuffer buffer) {
+        if (null == buffer) {
+            return null;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    private ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>> family(final String name) {
+        ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>> family = _families.get(name);
+        if (null == family) {
+            family = new ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>>(UNSIGNED);
+            ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>> raced =
+                    _families.putIfAbsent(name, family);
+            if (null != raced) {
+                family = raced;
+            }
+        }
+        return family;
+    }
+
+    private ConcurrentSkipListMap<ByteBuffer, Column> row(final String columnFamily, final ByteBuffer key) {
+        ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>> family = family(columnFamily);
+        ConcurrentSkipListMap<ByteBuffer, Column> row = family.get(key);
+        if (null == row) {
+            row = new ConcurrentSkipListMap<ByteBuffer, Column>(UNSIGNED);
+            ConcurrentSkipListMap<ByteBuffer, Column> raced = family.putIfAbsent(copy(key), row);
+            if (null != raced) {
+                row = raced;
+            }
+        }
+        return row;
+    }
+
+    private void put(final String columnFamily, final ByteBuffer key, final Column column) {
+        Column kept = new Column(copy(column.name), copy(column.value), column.timestamp);
+        row(columnFamily, key).put(kept.name, kept);
+    }
+
+    private void delete(final String columnFamily, final ByteBuffer key, final ByteBuffer columnName) {
+        ConcurrentSkipListMap<ByteBuffer, Column> row = family(columnFamily).get(key);
+        if (null == row) {
+            return;
+        }
+        if (null == columnName) {
+            family(columnFamily).remove(key);
+        } else {
+            row.remove(columnName);
+        }
+    }
+
+    private static boolean isEmpty(final ByteBuffer buffer) {
+        return null == buffer || 0 == buffer.remaining();
+    }
+
+    private List<ColumnOrSuperColumn> slice(final String columnFamily,
+                                            final ByteBuffer key,
+                                            final SlicePredicate predicate) {
+        List<ColumnOrSuperColumn> columns = new ArrayList<ColumnOrSuperColumn>();
+        NavigableMap<ByteBuffer, Column> row = family(columnFamily).get(key);
+        if (null == row) {
+            return columns;
+        }
+
+        if (null != predicate.column_names) {
+            for (ByteBuffer name : predicate.column_names) {
+                Column column = row.get(name);
+                if (null != column) {
+                    columns.add(new ColumnOrSuperColumn().setColumn(column));
+                }
+            }
+            return columns;
+        }
+
+        SliceRange range = predicate.slice_range;
+        NavigableMap<ByteBuffer, Column> view = range.reversed ? row.descendingMap() : row;
+        if (!isEmpty(range.start)) {
+            view = view.tailMap(range.start, true);
+        }
+        if (!isEmpty(range.finish)) {
+            view = view.headMap(range.finish, true);
+        }
+        for (Column column : view.values()) {
+            if (columns.size() == range.count) {
+                break;
+            }
+            columns.add(new ColumnOrSuperColumn().setColumn(column));
+        }
+        return columns;
+    }
+
+    public void login(AuthenticationRequest auth_request) {
+    }
+
+    public void set_keyspace(String keyspace) {
+    }
+
+    public ColumnOrSuperColumn get(ByteBuffer key, ColumnPath column_path, ConsistencyLevel consistency_level)
+            throws NotFoundException {
+        NavigableMap<ByteBuffer, Column> row = family(column_path.column_family).get(key);
+        Column column = null == row ? null : row.get(column_path.column);
+        if (null == column) {
+            throw new NotFoundException();
+        }
+        return new ColumnOrSuperColumn().setColumn(column);
+    }
+
+    public List<ColumnOrSuperColumn> get_slice(ByteBuffer key, ColumnParent column_parent, SlicePredicate predicate,
+                                               ConsistencyLevel consistency_level) {
+        return slice(column_parent.column_family, key, predicate);
+    }
+
+    public int get_count(ByteBuffer key, ColumnParent column_parent, SlicePredicate predicate,
+                         ConsistencyLevel consistency_level) {
+        return slice(column_parent.column_family, key, predicate).size();
+    }
+
+    public Map<ByteBuffer, List<ColumnOrSuperColumn>> multiget_slice(List<ByteBuffer> keys,
+                                                                     ColumnParent column_parent,
+                                                                     SlicePredicate predicate,
+                                                                     ConsistencyLevel consistency_level) {
+        Map<ByteBuffer, List<ColumnOrSuperColumn>> rows = new LinkedHashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+        for (ByteBuffer key : keys) {
+            rows.put(key, slice(column_parent.column_family, key, predicate));
+        }
+        return rows;
+    }
+
+    public Map<ByteBuffer, Integer> multiget_count(List<ByteBuffer> keys, ColumnParent column_parent,
+                                                   SlicePredicate predicate, ConsistencyLevel consistency_level) {
+        Map<ByteBuffer, Integer> counts = new HashMap<ByteBuffer, Integer>();
+        for (ByteBuffer key : keys) {
+            counts.put(key, slice(column_parent.column_family, key, predicate).size());
+        }
+        return counts;
+    }
+
+    public List<KeySlice> get_range_slices(ColumnParent column_parent, SlicePredicate predicate, KeyRange range,
+                                           ConsistencyLevel consistency_level) throws InvalidRequestException {
+        if (null != range.start_token || null != range.end_token) {
+            throw new InvalidRequestException("token ranges are not supported in process");
+        }
+        NavigableMap<ByteBuffer, ConcurrentSkipListMap<ByteBuffer, Column>> rows =
+                family(column_parent.column_family);
+        if (!isEmpty(range.start_key)) {
+            rows = rows.tailMap(range.start_key, true);
+        }
+        if (!isEmpty(range.end_key)) {
+            rows = rows.headMap(range.end_key, true);
+        }
+        List<KeySlice> slices = new ArrayList<KeySlice>();
+        for (ByteBuffer key : rows.keySet()) {
+            if (slices.size() == range.count) {
+                break;
+            }
+            slices.add(new KeySlice(key, slice(column_parent.column_family, key, predicate)));
+        }
+        return slices;
+    }
+
+    public List<KeySlice> get_indexed_slices(ColumnParent column_parent, IndexClause index_clause,
+                                             SlicePredicate column_predicate, ConsistencyLevel consistency_level)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("secondary indexes are not supported in process");
+    }
+
+    public void insert(ByteBuffer key, ColumnParent column_parent, Column column,
+                       ConsistencyLevel consistency_level) {
+        put(column_parent.column_family, key, column);
+    }
+
+    public void remove(ByteBuffer key, ColumnPath column_path, long timestamp, ConsistencyLevel consistency_level) {
+        delete(column_path.column_family, key, column_path.column);
+    }
+
+    public void batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutation_map,
+                             ConsistencyLevel consistency_level) throws InvalidRequestException {
+        for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : mutation_map.entrySet()) {
+            for (Map.Entry<String, List<Mutation>> family : row.getValue().entrySet()) {
+                for (Mutation mutation : family.getValue()) {
+                    if (null != mutation.column_or_supercolumn) {
+                        if (null == mutation.column_or_supercolumn.column) {
+                            throw new InvalidRequestException("super columns are not supported in process");
+                        }
+                        put(family.getKey(), row.getKey(), mutation.column_or_supercolumn.column);
+                    } else {
+                        Deletion deletion = mutation.deletion;
+                        if (null == deletion.predicate || null == deletion.predicate.column_names) {
+                            delete(family.getKey(), row.getKey(), null);
+                        } else {
+                            for (ByteBuffer name : deletion.predicate.column_names) {
+                                delete(family.getKey(), row.getKey(), name);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void truncate(String cfname) {
+        family(cfname).clear();
+    }
+
+    public Map<String, List<String>> describe_schema_versions() {
+        return Collections.singletonMap("1", Arrays.asList("127.0.0.1"));
+    }
+
+    public List<KsDef> describe_keyspaces() {
+        return new ArrayList<KsDef>(_keyspaces.values());
+    }
+
+    public String describe_cluster_name() {
+        return "In Process";
+    }
+
+    public String describe_version() {
+        return "19.4.0";
+    }
+
+    public List<TokenRange> describe_ring(String keyspace) {
+        return Collections.singletonList(new TokenRange("", "", Arrays.asList("127.0.0.1")));
+    }
+
+    public String describe_partitioner() {
+        return "org.apache.cassandra.dht.ByteOrderedPartitioner";
+    }
+
+    public String describe_snitch() {
+        return "org.apache.cassandra.locator.SimpleSnitch";
+    }
+
+    public KsDef describe_keyspace(String keyspace) throws NotFoundException {
+        KsDef def = _keyspaces.get(keyspace);
+        if (null == def) {
+            throw new NotFoundException();
+        }
+        return def;
+    }
+
+    public List<String> describe_splits(String cfName, String start_token, String end_token, int keys_per_split) {
+        return Arrays.asList(start_token, end_token);
+    }
+
+    public synchronized String system_add_column_family(CfDef cf_def) throws InvalidRequestException {
+        KsDef keyspace = _keyspaces.get(cf_def.keyspace);
+        if (null == keyspace) {
+            throw new InvalidRequestException("no keyspace " + cf_def.keyspace);
+        }
+        for (CfDef existing : keyspace.cf_defs) {
+            if (existing.name.equals(cf_def.name)) {
+                throw new InvalidRequestException(cf_def.name + " already exists");
+            }
+        }
+        keyspace.cf_defs.add(cf_def);
+        family(cf_def.name);
+        return "1";
+    }
+
+    public synchronized String system_drop_column_family(String column_family) {
+        _families.remove(column_family);
+        return "1";
+    }
+
+    public synchronized String system_add_keyspace(KsDef ks_def) throws InvalidRequestException {
+        if (_keyspaces.containsKey(ks_def.name)) {
+            throw new InvalidRequestException(ks_def.name + " already exists");
+        }
+        KsDef def = new KsDef(ks_def);
+        def.setCf_defs(new ArrayList<CfDef>(null == ks_def.cf_defs ? Collections.<CfDef>emptyList() : ks_def.cf_defs));
+        _keyspaces.put(def.name, def);
+        return "1";
+    }
+
+    public synchronized String system_drop_keyspace(String keyspace) {
+        _keyspaces.remove(keyspace);
+        _families.clear();
+        return "1";
+    }
+
+    public synchronized String system_update_keyspace(KsDef ks_def) {
+        _keyspaces.put(ks_def.name, ks_def);
+        return "1";
+    }
+
+    public synchronized String system_update_column_family(CfDef cf_def) {
+        return "1";
+    }
+}
@@ -0,0 +1,157 @@
+package example.bench;
+
+import example.Base;
+import example.CassandraService;
+import example.Celebrities;
+import example.EmbeddedStorage;
+import example.FanoutService;
+import example.Lines;
+import example.PublicLine;
+import example.Storage;
+import example.TimeBuckets;
+import example.TimeIds;
+import example.TimelineHeads;
+import example.TweetCache;
+import example.TwissConfig;
+import example.models.Tweet;
+import example.models.User;
+import me.prettyprint.hector.api.ddl.ComparatorType;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * InProcessTwiss wires the Base singletons the way WicketApplication does,
+ *  but against an InProcessCassandra, or with -Dstorage=embedded an
+ *  EmbeddedStorage, so a benchmark can call the same data methods the pages
+ *  call without a servlet container or a cluster.
+ *
+ * Settings still come from twissjava.properties, and -D overrides work as
+ *  usual, e.g. -DtweetCache.capacityBytes=0 to measure uncached reads.
+ */
+public final class InProcessTwiss {
+
+    private static final String KEYSPACE = "twissjava_bench";
+
+    private static Storage _storage;
+
+    private InProcessTwiss() {
+    }
+
+    /**
+     * start the node and wire Base, once per JVM.
+     */
+    public static synchronized void start() throws Exception {
+        if (null != _storage) {
+            return;
+        }
+        _storage = newStorage();
+        Base.storage = _storage;
+        Base.storage.createColumnFamilyIfAbsent(Base.USERS);
+        Base.storage.createColumnFamilyIfAbsent(Base.TWEETS);
+        Base.storage.createColumnFamilyIfAbsent(Base.FOLLOWERS);
+        Base.storage.createColumnFamilyIfAbsent(Base.FRIENDS);
+        Base.storage.createColumnFamilyIfAbsent(Base.TIMELINE, ComparatorType.LONGTYPE);
+        Base.storage.createColumnFamilyIfAbsent(Base.USERLINE, ComparatorType.LONGTYPE);
+
+        Base.timeIds = new TimeIds(TwissConfig.getInt("ids.node", 0));
+        Base.tweetCache = new TweetCache(TwissConfig.getLong("tweetCache.capacityBytes", 64L * 1024 * 1024));
+        PublicLine publicLine = new PublicLine(Base.storage,
+                TwissConfig.getInt("publicline.shards", 16),
+                TimeBuckets.parse(TwissConfig.getString("publicline.bucket", "day")),
+                TwissConfig.getInt("publicline.lookback", 7));
+        Base.lines = new Lines(Base.storage, publicLine,
+                TimeBuckets.parse(TwissConfig.getString("lines.bucket", "month")),
+                TwissConfig.getInt("lines.lookback", 24));
+        Base.timelineHeads = new TimelineHeads(Base.lines,
+                TwissConfig.getInt("timelineHeads.capacity", 64),
+                TwissConfig.getLong("timelineHeads.maxLines", 100000),
+                TwissConfig.getLong("timelineHeads.idleMillis", 15 * 60 * 1000),
+                TwissConfig.getLong("timelineHeads.maxAgeMillis", 60 * 60 * 1000));
+        Base.celebrities = new Celebrities(Base.storage,
+                TwissConfig.getInt("fanout.celebrityThreshold", 1000),
+                TwissConfig.getLong("fanout.celebrityRefreshMillis", 60000));
+        Base.fanout = new FanoutService(Base.storage, Base.lines, Base.celebrities, Base.timelineHeads,
+                TwissConfig.getInt("fanout.threads", 4),
+                TwissConfig.getInt("fanout.queueCapacity", 10000),
+                TwissConfig.getInt("fanout.maxAttempts", 3),
+                TwissConfig.getLong("fanout.retryBackoffMillis", 100),
+                TwissConfig.getLong("fanout.enqueueTimeoutMillis", 50));
+    }
+
+    // storage=embedded benchmarks the EmbeddedStorage, in a scratch directory
+    private static Storage newStorage() throws Exception {
+        if ("embedded".equals(TwissConfig.getString("storage", "cassandra"))) {
+            File dir = Files.createTempDirectory("twissjava-bench").toFile();
+            return new EmbeddedStorage(dir, TwissConfig.getBoolean("embedded.fsync", true), 0);
+        }
+        int port;
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            port = socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+        new InProcessCassandra().start(port);
+        CassandraService cassandra = new CassandraService("127.0.0.1:" + port, "In Process", KEYSPACE);
+        cassandra.setMaxBatchSize(TwissConfig.getInt("cassandra.batch.maxSize", 500));
+        cassandra.setMultigetChunkSize(TwissConfig.getInt("cassandra.multiget.chunkSize", 50));
+        return cassandra;
+    }
+
+    /**
+     * make uname followed by count users named uname_follower_0.. .
+     *
+     * @param uname
+     * @param count
+     */
+    public static void follow(final String uname, final int count) {
+        Base.saveUser(new User(uname.getBytes(), "bench"));
+        for (int i = 0; i < count; i++) {
+            Base.addFriends(uname + "_follower_" + i, Arrays.asList(uname));
+        }
+    }
+
+    /**
+     * post count tweets as uname, fanning each one out before the next.
+     *
+     * @param uname
+     * @param count
+     * @param bodySize characters per tweet
+     * @return the ids of the new tweets, oldest first
+     */
+    public static List<String> post(final String uname, final int count, final int bodySize) {
+        List<String> tweetids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            Tweet tweet = tweet(uname, bodySize);
+            String key = new String(tweet.getKey());
+            long column = Base.timeIds.next();
+            Storage.Batch batch = Base.storage.batch();
+            batch.updateColumn(key, tweet.getUname(), "uname", Base.TWEETS);
+            batch.updateColumn(key, tweet.getBody(), "body", Base.TWEETS);
+            Base.lines.write(batch, uname, Base.USERLINE, column, key);
+            batch.execute();
+            Base.fanout.fanout(uname, key, column);
+            tweetids.add(key);
+        }
+        return tweetids;
+    }
+
+    /**
+     * @param uname
+     * @param bodySize characters in the body
+     * @return a new tweet by uname, not saved
+     */
+    public static Tweet tweet(final String uname, final int bodySize) {
+        StringBuilder body = new StringBuilder(bodySize);
+        while (body.length() < bodySize) {
+            body.append((char) ('a' + body.length() % 26));
+        }
+        return new Tweet(UUID.randomUUID().toString().getBytes(), uname, body.toString());
+    }
+}
@@ -0,0 +1,64 @@
+package example.bench;
+
+import example.Base;
+import example.models.Timeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one page of a Userline or Timeline, the way the pages do, at the
+ *  newest page (usually served by TimelineHeads) and at the page after it
+ *  (always read from Cassandra).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LineBenchmark {
+
+    @Param({"10", "40", "100"})
+    public int pageSize;
+
+    private String _poster;
+    private String _reader;
+    private String _userlineCursor;
+    private String _timelineCursor;
+
+    @Setup
+    public void setUp() throws Exception {
+        InProcessTwiss.start();
+        _poster = "line_" + pageSize;
+        _reader = _poster + "_follower_0";
+        InProcessTwiss.follow(_poster, 1);
+        InProcessTwiss.post(_poster, 3 * pageSize, 140);
+        _userlineCursor = String.valueOf(Base.getUserline(_poster, "", pageSize).getNextview());
+        _timelineCursor = String.valueOf(Base.getTimeline(_reader, "", pageSize).getNextview());
+    }
+
+    @Benchmark
+    public Timeline userlineNewest() {
+        return Base.getUserline(_poster, "", pageSize);
+    }
+
+    @Benchmark
+    public Timeline userlineOlder() {
+        return Base.getUserline(_poster, _userlineCursor, pageSize);
+    }
+
+    @Benchmark
+    public Timeline timelineNewest() {
+        return Base.getTimeline(_reader, "", pageSize);
+    }
+
+    @Benchmark
+    public Timeline timelineOlder() {
+        return Base.getTimeline(_reader, _timelineCursor, pageSize);
+    }
+}
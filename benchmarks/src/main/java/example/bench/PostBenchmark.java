@@ -0,0 +1,72 @@
+package example.bench;
+
+import example.Base;
+import example.Storage;
+import example.models.Tweet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posting a tweet. saveTweet is what the poster waits for, with the fan-out
+ *  queued behind it. fanout is the queued part run inline, so its cost can
+ *  be seen against the follower count. Follower counts stay under
+ *  fanout.celebrityThreshold, above it there is no fan-out to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PostBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int followers;
+
+    @Param({"40", "140"})
+    public int tweetSize;
+
+    private String _poster;
+    private String _tweetid;
+
+    @Setup
+    public void setUp() throws Exception {
+        InProcessTwiss.start();
+        _poster = "post_" + followers;
+        InProcessTwiss.follow(_poster, followers);
+        _tweetid = InProcessTwiss.post(_poster, 1, tweetSize).get(0);
+    }
+
+    @Benchmark
+    public Tweet saveTweet() {
+        Tweet tweet = InProcessTwiss.tweet(_poster, tweetSize);
+        Base.saveTweet(tweet);
+        return tweet;
+    }
+
+    @Benchmark
+    public long fanout() {
+        long column = Base.timeIds.next();
+        Base.fanout.fanout(_poster, _tweetid, column);
+        return column;
+    }
+
+    @Benchmark
+    public long writeTweetBatch() {
+        // the rows saveTweet writes before it returns, without the caches
+        Tweet tweet = InProcessTwiss.tweet(_poster, tweetSize);
+        String key = new String(tweet.getKey());
+        long column = Base.timeIds.next();
+        Storage.Batch batch = Base.storage.batch();
+        batch.updateColumn(key, tweet.getUname(), "uname", Base.TWEETS);
+        batch.updateColumn(key, tweet.getBody(), "body", Base.TWEETS);
+        Base.lines.write(batch, _poster, Base.USERLINE, column, key);
+        batch.execute();
+        return column;
+    }
+}
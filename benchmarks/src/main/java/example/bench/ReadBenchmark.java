@@ -0,0 +1,78 @@
+package example.bench;
+
+import example.Base;
+import example.Storage;
+import example.Slice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Storage reads that copy the stored columns into maps, over
+ *  pageSize columns of one row or pageSize rows of two columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark {
+
+    private static final String CF = Base.FOLLOWERS;
+    private static final String[] TWEET_COLUMNS = {"uname", "body"};
+
+    @Param({"10", "40", "100"})
+    public int pageSize;
+
+    private Storage _storage;
+    private String _row;
+    private String[] _columns;
+    private List<String> _tweetids;
+
+    @Setup
+    public void setUp() throws Exception {
+        InProcessTwiss.start();
+        _storage = Base.storage;
+        _row = "read_" + pageSize;
+        _columns = new String[pageSize];
+        Storage.Batch batch = _storage.batch();
+        for (int i = 0; i < pageSize; i++) {
+            _columns[i] = "column_" + i;
+            batch.updateColumn(_row, String.valueOf(System.currentTimeMillis()), _columns[i], CF);
+        }
+        batch.execute();
+        _tweetids = InProcessTwiss.post(_row, pageSize, 140);
+    }
+
+    @Benchmark
+    public String readColumn() {
+        return _storage.readColumn(_row, _columns[0], CF);
+    }
+
+    @Benchmark
+    public Map<String, String> readColumns() {
+        return _storage.readColumns(_row, _columns, CF);
+    }
+
+    @Benchmark
+    public Map<String, String> listColumns() {
+        return _storage.listColumns(_row, CF, null, pageSize);
+    }
+
+    @Benchmark
+    public Slice<String> slice() {
+        return _storage.slice(_row, CF, null, pageSize, false);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, String>> multiGetColumns() {
+        return _storage.multiGetColumns(_tweetids, TWEET_COLUMNS, Base.TWEETS);
+    }
+}
@@ -0,0 +1,66 @@
+package example.bench;
+
+import example.Base;
+import example.TweetCache;
+import example.models.Tweet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a page of tweet ids into Tweets with Base.getTweetsForTweetids,
+ *  with every tweet in the TweetCache or none of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TweetsBenchmark {
+
+    @Param({"10", "40", "100"})
+    public int pageSize;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Param({"140"})
+    public int tweetSize;
+
+    private List<String> _tweetids;
+    private TweetCache _tweetCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        InProcessTwiss.start();
+        _tweetids = InProcessTwiss.post("tweets_" + pageSize + "_" + tweetSize, pageSize, tweetSize);
+        _tweetCache = Base.tweetCache;
+        Base.getTweetsForTweetids(_tweetids);
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyCache() {
+        if (!cached) {
+            // an empty cache every call, so every id goes to Cassandra
+            Base.tweetCache = new TweetCache(_tweetCache.getCapacityBytes());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Base.tweetCache = _tweetCache;
+    }
+
+    @Benchmark
+    public List<Tweet> getTweetsForTweetids() {
+        return Base.getTweetsForTweetids(_tweetids);
+    }
+}
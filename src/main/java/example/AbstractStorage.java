@@ -0,0 +1,262 @@
+package example;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.ddl.ComparatorType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * AbstractStorage holds what every Storage does the same way: the
+ *  overloads that fill in defaults, the ...Async variants, which run the
+ *  blocking calls on the async executor, and the latency metrics the
+ *  calls record into.
+ */
+public abstract class AbstractStorage implements Storage {
+
+    protected static final int MAX_COLUMN_COUNT = 1000;
+    protected static final int DEFAULT_ASYNC_THREADS = 16;
+    protected static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1000;
+    protected static final long DEFAULT_METRICS_INTERVAL_MILLIS = 60000;
+    protected static final StringSerializer SE = StringSerializer.get();
+
+    private AsyncExecutor _asyncExecutor =
+            new AsyncExecutor("storage-async", DEFAULT_ASYNC_THREADS, DEFAULT_ASYNC_QUEUE_CAPACITY);
+    private final StorageMetrics _metrics = new StorageMetrics(DEFAULT_METRICS_INTERVAL_MILLIS);
+
+    public void shutdown() {
+        _asyncExecutor.shutdown();
+        _metrics.shutdown();
+    }
+
+    public void setAsyncExecutor(final AsyncExecutor asyncExecutor) {
+        _asyncExecutor.shutdown();
+        _asyncExecutor = asyncExecutor;
+    }
+
+    public AsyncExecutor getAsyncExecutor() {
+        return _asyncExecutor;
+    }
+
+    public StorageMetrics getMetrics() {
+        return _metrics;
+    }
+
+    public void createColumnFamilyIfAbsent(final String columnFamily) {
+        createColumnFamilyIfAbsent(columnFamily, ComparatorType.BYTESTYPE);
+    }
+
+    /**
+     * list columns in a column family
+     *
+     * return  MAX_COLUMN_COUNT columns at most
+     *
+     * @param key
+     * @param columnFamily
+     * @return
+     */
+    public HashMap<String, String> listColumns(final String key,
+                                               final String columnFamily) {
+
+        return listColumns(key, columnFamily, null, MAX_COLUMN_COUNT);
+    }
+
+    public HashMap<String, String> listColumns(final String key,
+                                               final String columnFamily,
+                                               final String startColumn) {
+
+        return listColumns(key, columnFamily, startColumn, MAX_COLUMN_COUNT);
+    }
+
+    public HashMap<String, String> listColumns(final String key,
+                                               final String columnFamily,
+                                               final String startColumn,
+                                               final int count) {
+        return listColumns(key, columnFamily, startColumn, count, false);
+    }
+
+    public LinkedHashMap<String, Map<String, String>> multiGetSlices(final List<String> keys,
+                                                                     final String columnFamily,
+                                                                     final String afterColumn,
+                                                                     final int count,
+                                                                     final boolean reversed) {
+        return multiGetSlices(keys, columnFamily, afterColumn, count, reversed, SE);
+    }
+
+    public Slice<String> slice(final String key,
+                               final String columnFamily,
+                               final String afterColumn,
+                               final int count,
+                               final boolean reversed) {
+        return slice(key, columnFamily, afterColumn, count, reversed, SE);
+    }
+
+    //
+    // Async variants: the same calls run on the async executor, so a page can
+    // have several independent reads in flight at once.
+    //
+
+    public <T> CompletableFuture<T> async(final Callable<T> call) {
+        return _asyncExecutor.submit(call);
+    }
+
+    public CompletableFuture<String> readColumnAsync(final String key,
+                                                     final String columnName,
+                                                     final String columnFamily) {
+        return async(new Callable<String>() {
+            public String call() {
+                return readColumn(key, columnName, columnFamily);
+            }
+        });
+    }
+
+    public CompletableFuture<HashMap<String, String>> readColumnsAsync(final String key,
+                                                                       final String[] columns,
+                                                                       final String columnFamily) {
+        return async(new Callable<HashMap<String, String>>() {
+            public HashMap<String, String> call() {
+                return readColumns(key, columns, columnFamily);
+            }
+        });
+    }
+
+    public CompletableFuture<LinkedHashMap<String, String>> listColumnsAsync(final String key,
+                                                                             final String columnFamily,
+                                                                             final String startColumn,
+                                                                             final int count,
+                                                                             final boolean reversed) {
+        return async(new Callable<LinkedHashMap<String, String>>() {
+            public LinkedHashMap<String, String> call() {
+                return listColumns(key, columnFamily, startColumn, count, reversed);
+            }
+        });
+    }
+
+    public CompletableFuture<LinkedHashMap<String, Map<String, String>>> multiGetColumnsAsync(
+            final List<String> keys,
+            final String[] columnNames,
+            final String columnFamily) {
+        return async(new Callable<LinkedHashMap<String, Map<String, String>>>() {
+            public LinkedHashMap<String, Map<String, String>> call() {
+                return multiGetColumns(keys, columnNames, columnFamily);
+            }
+        });
+    }
+
+    public <N> CompletableFuture<LinkedHashMap<String, Map<N, String>>> multiGetSlicesAsync(
+            final List<String> keys,
+            final String columnFamily,
+            final N afterColumn,
+            final int count,
+            final boolean reversed,
+            final Serializer<N> nameSerializer) {
+        return async(new Callable<LinkedHashMap<String, Map<N, String>>>() {
+            public LinkedHashMap<String, Map<N, String>> call() {
+                return multiGetSlices(keys, columnFamily, afterColumn, count, reversed, nameSerializer);
+            }
+        });
+    }
+
+    public CompletableFuture<Slice<String>> sliceAsync(final String key,
+                                                       final String columnFamily,
+                                                       final String afterColumn,
+                                                       final int count,
+                                                       final boolean reversed) {
+        return sliceAsync(key, columnFamily, afterColumn, count, reversed, SE);
+    }
+
+    public <N> CompletableFuture<Slice<N>> sliceAsync(final String key,
+                                                      final String columnFamily,
+                                                      final N afterColumn,
+                                                      final int count,
+                                                      final boolean reversed,
+                                                      final Serializer<N> nameSerializer) {
+        return async(new Callable<Slice<N>>() {
+            public Slice<N> call() {
+                return slice(key, columnFamily, afterColumn, count, reversed, nameSerializer);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> countColumnsAsync(final String key,
+                                                        final String columnFamily) {
+        return async(new Callable<Integer>() {
+            public Integer call() {
+                return countColumns(key, columnFamily);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> updateColumnAsync(final String key,
+                                                     final String value,
+                                                     final String columnName,
+                                                     final String columnFamily) {
+        return async(new Callable<Void>() {
+            public Void call() {
+                updateColumn(key, value, columnName, columnFamily);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> deleteColumnAsync(final String key,
+                                                     final String columnName,
+                                                     final String columnFamily) {
+        return async(new Callable<Void>() {
+            public Void call() {
+                deleteColumn(key, columnName, columnFamily);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * the part of a Batch that is the same for every Storage.
+     */
+    protected abstract class AbstractBatch implements Batch {
+        private List<Runnable> _onExecuted;
+
+        public Batch updateColumn(final String key,
+                                  final String value,
+                                  final String columnName,
+                                  final String columnFamily) {
+            return updateColumn(key, value, columnName, SE, columnFamily);
+        }
+
+        public Batch onExecuted(final Runnable callback) {
+            if (null == _onExecuted) {
+                _onExecuted = new ArrayList<Runnable>();
+            }
+            _onExecuted.add(callback);
+            return this;
+        }
+
+        /**
+         * run the onExecuted callbacks, everything queued before them has
+         * gone through.
+         */
+        protected void executed() {
+            List<Runnable> callbacks = _onExecuted;
+            _onExecuted = null;
+            if (null != callbacks) {
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        }
+
+        public CompletableFuture<Integer> executeAsync() {
+            return async(new Callable<Integer>() {
+                public Integer call() {
+                    return execute();
+                }
+            });
+        }
+    }
+}
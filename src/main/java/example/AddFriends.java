@@ -5,23 +5,30 @@ import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.TextField;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.list.ListView;
 import org.apache.wicket.model.PropertyModel;
 import org.apache.wicket.protocol.http.WebSession;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * AddFriends has a query section for finding a user that may exist
  *  on the system, as well as an action for friending/defriending that
- *   user if they exist. A user cannot friend himself.
+ *   user if they exist. A user cannot friend himself. Below are the
+ *   users they follow and the users following them.
  */
 public class AddFriends extends Base {
     private String username;
     private String query;
     private Boolean found;
     private Boolean act;
+    //Users shown in each list
+    private static final int LIST_SIZE = 100;
 
     public AddFriends(final PageParameters parameters) {
         super(parameters);
@@ -45,12 +52,20 @@ public class AddFriends extends Base {
 
         add(new Label("flash", getFlashMsg()));
 
+        //The friend check and the two lists do not depend on each other, so they are all in flight at once
+        CompletableFuture<Boolean> friend = action.isVisible()
+                ? isFriendAsync(username, query) : CompletableFuture.completedFuture(false);
+        List<String> none = Collections.emptyList();
+        CompletableFuture<List<String>> friends = (username == null)
+                ? CompletableFuture.completedFuture(none) : getFriendUnamesAsync(username, LIST_SIZE);
+        CompletableFuture<List<String>> followers = (username == null)
+                ? CompletableFuture.completedFuture(none) : getFollowerUnamesAsync(username, LIST_SIZE);
+
         Form aff = new ActionFriendForm("actionfriend");
 
         String actiontext = "";
-        List<String> friendUnames = getFriendUnames(username);
         if (action.isVisible()) {
-            if (friendUnames.contains(query)) {
+            if (friend.join()) {
                 actiontext = "Remove Friend ";
             }
             else {
@@ -61,6 +76,22 @@ public class AddFriends extends Base {
         //TODO : I really don't like not having it on the button itself. ;_;
         action.add(aff);
         add(action);
+
+        add(new UnameList("friends", friends.join()));
+        add(new UnameList("followers", followers.join()));
+    }
+
+    private static class UnameList extends ListView<String> {
+        private static final long serialVersionUID = 1L;
+
+        public UnameList(String id, List<String> unames) {
+            super(id, unames);
+            setVersioned(false);
+        }
+        @Override
+        public void populateItem(final ListItem<String> listitem) {
+            listitem.add(new Label("uname", listitem.getModelObject()));
+        }
     }
 
     private String getFlashMsg() {
@@ -124,8 +155,7 @@ public class AddFriends extends Base {
         }
         @Override
         public void onSubmit() {
-            List<String> friendUnames = getFriendUnames(username);
-            if (friendUnames.contains(query)) {
+            if (isFriend(username, query)) {
                 List<String> friendname = new ArrayList<String>();
                 friendname.add(query);
                 removeFriends(username, friendname);
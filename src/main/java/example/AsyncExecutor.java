@@ -0,0 +1,130 @@
+package example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AsyncExecutor runs the ...Async calls of a Storage on a fixed
+ *  number of threads behind a bounded queue.
+ *
+ * When the queue is full the call runs on the caller's thread, so the future
+ *  comes back already complete and a burst costs latency, not memory. Every
+ *  call is timed from submission, so queue wait shows up in the metrics.
+ */
+public class AsyncExecutor implements Executor, AsyncExecutorMBean {
+
+    private final ThreadPoolExecutor _executor;
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _callerRuns = new AtomicLong();
+    private final AtomicLong _totalWaitMillis = new AtomicLong();
+    private final AtomicLong _maxWaitMillis = new AtomicLong();
+
+    public AsyncExecutor(final String name, final int threads, final int queueCapacity) {
+        _executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-" + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        _callerRuns.incrementAndGet();
+                        r.run();
+                    }
+                });
+    }
+
+    /**
+     * run call on the pool.
+     *
+     * @param call
+     * @return a future completed with the result of call, or with what it threw
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final long queued = System.currentTimeMillis();
+        _submitted.incrementAndGet();
+        execute(new Runnable() {
+            public void run() {
+                waited(System.currentTimeMillis() - queued);
+                try {
+                    future.complete(call.call());
+                    _completed.incrementAndGet();
+                } catch (Throwable t) {
+                    _failed.incrementAndGet();
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    public void execute(final Runnable command) {
+        _executor.execute(command);
+    }
+
+    private void waited(final long millis) {
+        _totalWaitMillis.addAndGet(millis);
+        long max = _maxWaitMillis.get();
+        while (millis > max && !_maxWaitMillis.compareAndSet(max, millis)) {
+            max = _maxWaitMillis.get();
+        }
+    }
+
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    public int getThreads() {
+        return _executor.getMaximumPoolSize();
+    }
+
+    public int getActiveThreads() {
+        return _executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return _executor.getQueue().size();
+    }
+
+    public long getSubmitted() {
+        return _submitted.get();
+    }
+
+    public long getCompleted() {
+        return _completed.get();
+    }
+
+    public long getFailed() {
+        return _failed.get();
+    }
+
+    public long getCallerRuns() {
+        return _callerRuns.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long done = _completed.get() + _failed.get();
+        return 0 == done ? 0 : _totalWaitMillis.get() / done;
+    }
+
+    public long getMaxWaitMillis() {
+        return _maxWaitMillis.get();
+    }
+}
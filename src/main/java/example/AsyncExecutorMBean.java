@@ -0,0 +1,25 @@
+package example;
+
+/**
+ * JMX view of the pool behind Storage's ...Async calls.
+ */
+public interface AsyncExecutorMBean {
+
+    int getThreads();
+
+    int getActiveThreads();
+
+    int getQueueDepth();
+
+    long getSubmitted();
+
+    long getCompleted();
+
+    long getFailed();
+
+    long getCallerRuns();
+
+    long getAverageWaitMillis();
+
+    long getMaxWaitMillis();
+}
@@ -16,11 +16,13 @@ import org.apache.wicket.request.mapper.parameter.PageParameters;
 public class Authorize extends Base {
     private Boolean login;
     private Boolean register;
+    private Boolean reserved;
 
     public Authorize(final PageParameters parameters) {
         super(parameters);
         login = parameters.get("login").toBoolean(true);
         register = parameters.get("register").toBoolean();
+        reserved = parameters.get("reserved").toBoolean(false);
         TwissSession s = (TwissSession) WebSession.get();
 
         setup();
@@ -52,6 +54,9 @@ public class Authorize extends Base {
 
     private String registerErrorMsg() {
         //get regis param
+        if (reserved) {
+            return "Usernames cannot start with " + RESERVED_PREFIX;
+        }
         if (register != null) {
             if (register) {
                 return "Username already taken.";
@@ -102,6 +107,10 @@ public class Authorize extends Base {
         }
         @Override
         public void onSubmit() {
+            if (new_username != null && isReservedUsername(new_username)) {
+                setResponsePage(getPage().getClass(), new PageParameters("reserved=true"));
+                return;
+            }
             User test = getUserByUsername(new_username);
             if (test != null) {
                 setResponsePage(getPage().getClass(), new PageParameters("register=true"));
@@ -0,0 +1,225 @@
+package example;
+
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BackfillService copies the newest tweets of a freshly followed account
+ *  into the follower's Timeline, in the background, so the follower sees
+ *  them straight away instead of only the account's next tweets.
+ *
+ * Work is paced to ratePerSecond reads plus columns written, so someone
+ *  following hundreds of accounts at once, or a bulk import of follows,
+ *  trickles into the cluster instead of flooding it. Backfills are a nicety:
+ *  when the queue is full they are dropped, and shutdown() drops what is
+ *  still queued.
+ *
+ * Celebrities are not backfilled, readers merge their Userlines anyway.
+ */
+public class BackfillService implements BackfillServiceMBean {
+
+    private static final Logger LOG = Logger.getLogger(BackfillService.class);
+
+    private final Storage _storage;
+    private final Lines _lines;
+    private final Celebrities _celebrities;
+    private final TimelineHeads _timelineHeads;
+    private final int _tweets;
+    private final long _nanosPerPermit;
+    private final ThreadPoolExecutor _executor;
+    private final BlockingQueue<Runnable> _queue;
+
+    // when the next permit is free, for pacing
+    private long _nextPermitNanos = System.nanoTime();
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _columns = new AtomicLong();
+
+    /**
+     * @param storage
+     * @param lines
+     * @param celebrities
+     * @param timelineHeads
+     * @param tweets        newest tweets of the followed account copied
+     * @param ratePerSecond reads plus columns written per second, at most
+     * @param threads
+     * @param queueCapacity follows waiting for a backfill, past this they get none
+     */
+    public BackfillService(final Storage storage,
+                           final Lines lines,
+                           final Celebrities celebrities,
+                           final TimelineHeads timelineHeads,
+                           final int tweets,
+                           final int ratePerSecond,
+                           final int threads,
+                           final int queueCapacity) {
+        if (ratePerSecond < 1) {
+            throw new IllegalArgumentException("ratePerSecond must be positive: " + ratePerSecond);
+        }
+        _storage = storage;
+        _lines = lines;
+        _celebrities = celebrities;
+        _timelineHeads = timelineHeads;
+        _tweets = tweets;
+        _nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        _queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        _executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, _queue,
+                new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "backfill-" + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * queue a backfill of each of friends into uname's Timeline.
+     *
+     * @param uname   the follower
+     * @param friends the accounts just followed
+     */
+    public void submit(final String uname, final List<String> friends) {
+        if (_tweets < 1) {
+            return;
+        }
+        for (String friend : friends) {
+            _submitted.incrementAndGet();
+            try {
+                _executor.execute(new BackfillTask(uname, friend));
+            } catch (RejectedExecutionException ex) {
+                _dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * stop taking work, drop what is queued and wait for the backfills
+     * under way.
+     *
+     * @param timeoutMillis
+     */
+    public void shutdown(final long timeoutMillis) {
+        int dropped = _executor.shutdownNow().size();
+        _dropped.addAndGet(dropped);
+        try {
+            if (!_executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Backfills still running after " + timeoutMillis + "ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * copy friend's newest tweets into uname's Timeline on the calling
+     * thread, paced like the queued ones. submit() is what the app uses.
+     *
+     * @param uname
+     * @param friend
+     * @return the tweets copied
+     */
+    public int backfill(final String uname, final String friend) throws InterruptedException {
+        if (_celebrities.contains(friend)) {
+            return 0;
+        }
+        acquire(1);
+        Map<Long, String> tweets = _lines.read(friend, Base.USERLINE, null, _tweets).getColumns();
+        if (tweets.isEmpty()) {
+            return 0;
+        }
+        acquire(tweets.size());
+        Storage.Batch batch = _storage.batch();
+        for (Map.Entry<Long, String> tweet : tweets.entrySet()) {
+            _lines.write(batch, uname, Base.TIMELINE, tweet.getKey(), tweet.getValue());
+        }
+        batch.execute();
+        for (Map.Entry<Long, String> tweet : tweets.entrySet()) {
+            _timelineHeads.append(uname, Base.TIMELINE, tweet.getKey(), tweet.getValue());
+        }
+        _columns.addAndGet(tweets.size());
+        return tweets.size();
+    }
+
+    // wait until permits more reads or writes fit in the rate
+    private void acquire(final int permits) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // an idle spell saves up no more than a second's worth
+            long start = Math.max(_nextPermitNanos, now - TimeUnit.SECONDS.toNanos(1));
+            _nextPermitNanos = start + permits * _nanosPerPermit;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    public int getActiveWorkers() {
+        return _executor.getActiveCount();
+    }
+
+    public long getSubmitted() {
+        return _submitted.get();
+    }
+
+    public long getCompleted() {
+        return _completed.get();
+    }
+
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    public long getFailed() {
+        return _failed.get();
+    }
+
+    public long getColumnsWritten() {
+        return _columns.get();
+    }
+
+    private class BackfillTask implements Runnable {
+        private final String _uname;
+        private final String _friend;
+
+        BackfillTask(final String uname, final String friend) {
+            _uname = uname;
+            _friend = friend;
+        }
+
+        public void run() {
+            try {
+                backfill(_uname, _friend);
+                _completed.incrementAndGet();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                _dropped.incrementAndGet();
+            } catch (RuntimeException ex) {
+                _failed.incrementAndGet();
+                LOG.warn("Unable to backfill " + _friend + "'s tweets into " + _uname + "'s timeline", ex);
+            }
+        }
+    }
+}
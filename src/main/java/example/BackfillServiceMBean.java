@@ -0,0 +1,21 @@
+package example;
+
+/**
+ * JMX view of the timeline backfill queue.
+ */
+public interface BackfillServiceMBean {
+
+    int getQueueDepth();
+
+    int getActiveWorkers();
+
+    long getSubmitted();
+
+    long getCompleted();
+
+    long getDropped();
+
+    long getFailed();
+
+    long getColumnsWritten();
+}
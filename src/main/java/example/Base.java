@@ -15,9 +15,11 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * Base contains both the default header/footer things for the UI as
@@ -37,8 +39,25 @@ public abstract class Base extends WebPage {
     public final static String TWEETS = "Tweet";
     public final static String TIMELINE = "Timeline";
     public final static String USERLINE = "Userline";
-
-    public static CassandraService cassandra;
+    public final static String CELEBRITIES = "Celebrities";
+    public final static String REGISTRATIONS = "Registrations";
+
+    //Rows such as the public line's start with this, so usernames may not
+    public final static String RESERVED_PREFIX = "!";
+
+    //Tweet columns
+    private final static String[] TWEET_COLUMNS = new String[] {"uname", "body"};
+
+    public static Storage storage;
+    public static FanoutService fanout;
+    public static Celebrities celebrities;
+    public static TweetCache tweetCache;
+    public static TimelineHeads timelineHeads;
+    public static Lines lines;
+    public static TimeIds timeIds;
+    public static UsernameFilter usernames;
+    public static SocialGraph graph;
+    public static BackfillService backfill;
 
     //UI settings
     public Base(final PageParameters parameters) {
@@ -73,10 +92,11 @@ public abstract class Base extends WebPage {
 
     //
     // SHARED CODE
+    // Static, so tools and benchmarks can use it without a page
     //
 
     //Space-savers
-    private String bToS(byte[] bytes) {
+    private static String bToS(byte[] bytes) {
         return new String(bytes, Charset.forName("UTF-8"));
     }
     /*private Selector makeSel() {
@@ -94,7 +114,7 @@ public abstract class Base extends WebPage {
 
 
     //Helpers
-    private List<String> getFriendOrFollowerUnames(String COL_FAM, String uname, int count) {
+    private static List<String> getFriendOrFollowerUnames(String COL_FAM, String uname, int count) {
         /*Selector selector = makeSel();
         List<Column> row;
         try {
@@ -110,22 +130,28 @@ public abstract class Base extends WebPage {
         }
         return unames;*/
 
-        Map<String, String> map = cassandra.listColumns(uname, COL_FAM, null, count);
-        return Arrays.asList(map.keySet().toArray(new String[] {}));
+        SocialGraph.Users users = FRIENDS.equals(COL_FAM) ? graph.friends(uname) : graph.followers(uname);
+        if (null == users) {
+            // too many followers to keep in memory
+            Map<String, String> map = storage.slice(uname, COL_FAM, null, count, false).getColumns();
+            return new ArrayList<String>(map.keySet());
+        }
+        return graph.unames(users, count);
     }
 
-    private Timeline getLine(String COL_FAM, String uname, String startkey, int count) {
-
-        Map<String, String> map = cassandra.listColumns(uname, COL_FAM, startkey, count);
-
-        if (null == map || 0 == map.size()) {
-            return null;
-        }
+    private static CompletableFuture<List<String>> getFriendOrFollowerUnamesAsync(String COL_FAM, String uname,
+                                                                                int count) {
+        return storage.sliceAsync(uname, COL_FAM, null, count, false).thenApply(
+                new Function<Slice<String>, List<String>>() {
+                    public List<String> apply(Slice<String> slice) {
+                        return new ArrayList<String>(slice.getColumns().keySet());
+                    }
+                });
+    }
 
-        List<String> tweetids = Arrays.asList(map.values().toArray(new String[]{}));
-        List<Tweet> tweets = getTweetsForTweetids(tweetids);
+    private static Timeline getLine(String COL_FAM, String uname, String startkey, int count) {
 
-        return new Timeline(tweets, Long.valueOf(String.valueOf(map.keySet().toArray()[0])));
+        return makeTimeline(readLine(COL_FAM, uname, cursor(startkey), count));
 
         /*Selector selector = makeSel();
         List<Column> timeline;
@@ -175,32 +201,93 @@ public abstract class Base extends WebPage {
     }
 
 
+    //startkey is the previous page's nextview; empty or zero means the first page
+    private static Long cursor(String startkey) {
+        if (startkey == null || startkey.equals("") || startkey.equals("0")) {
+            return null;
+        }
+        return Long.valueOf(startkey);
+    }
+
+    //First pages come from the in-memory timeline heads, older pages from cassandra
+    private static Slice<Long> readLine(String COL_FAM, String uname, Long cursor, int count) {
+        if (cursor == null) {
+            return timelineHeads.newest(uname, COL_FAM, count);
+        }
+        return lines.read(uname, COL_FAM, cursor, count);
+    }
+
+    private static CompletableFuture<Slice<Long>> readLineAsync(final String COL_FAM, final String uname,
+                                                         final Long cursor, final int count) {
+        if (cursor == null) {
+            return timelineHeads.newestAsync(uname, COL_FAM, count);
+        }
+        return lines.readAsync(uname, COL_FAM, cursor, count);
+    }
+
+    private static Timeline makeTimeline(Slice<Long> slice) {
+        if (slice.isEmpty()) {
+            return null;
+        }
+
+        List<String> tweetids = new ArrayList<String>(slice.getColumns().values());
+        return new Timeline(getTweetsForTweetids(tweetids), slice.getNext());
+    }
+
     //Data Reading
-    public User getUserByUsername(String uname) {
-        String password = cassandra.readColumn(uname, "password", USERS);
+    public static User getUserByUsername(String uname) {
+        if (!usernames.mightExist(uname)) {
+            return null;
+        }
+        long registrations = usernames.getRegistrations();
+        String password = storage.readColumn(uname, "password", USERS);
 
         if (null == password || password.equals("")) {
+            usernames.absent(uname, registrations);
             return null;
         }
 
         return new User(uname.getBytes(), password);
     }
 
-    public List<String> getFriendUnames(String uname) {
+    public static List<String> getFriendUnames(String uname) {
         return getFriendUnames(uname, 5000);
     }
-    public List<String> getFriendUnames(String uname, int count) {
+    public static List<String> getFriendUnames(String uname, int count) {
         return getFriendOrFollowerUnames(FRIENDS, uname, count);
     }
 
-    public List<String> getFollowerUnames(String uname) {
+    public static CompletableFuture<List<String>> getFriendUnamesAsync(String uname, int count) {
+        return getFriendOrFollowerUnamesAsync(FRIENDS, uname, count);
+    }
+
+    public static List<String> getFollowerUnames(String uname) {
         return getFollowerUnames(uname, 5000);
     }
-    public List<String> getFollowerUnames(String uname, int count) {
+    public static List<String> getFollowerUnames(String uname, int count) {
         return getFriendOrFollowerUnames(FOLLOWERS, uname, count);
     }
+    public static CompletableFuture<List<String>> getFollowerUnamesAsync(String uname, int count) {
+        return getFriendOrFollowerUnamesAsync(FOLLOWERS, uname, count);
+    }
 
-    public List<User> getUsersForUnames(List<String> unames) {
+    //Straight from storage, so follows made on other app servers show at once
+    public static boolean isFriend(String uname, String friend) {
+        return isFriendSince(storage.readColumn(uname, friend, FRIENDS));
+    }
+    public static CompletableFuture<Boolean> isFriendAsync(String uname, String friend) {
+        return storage.readColumnAsync(uname, friend, FRIENDS).thenApply(new Function<String, Boolean>() {
+            public Boolean apply(String since) {
+                return isFriendSince(since);
+            }
+        });
+    }
+    //A Friends column holds when the follow was made, a missing one reads as ""
+    private static boolean isFriendSince(String since) {
+        return since != null && !since.equals("");
+    }
+
+    public static List<User> getUsersForUnames(List<String> unames) {
         /*Selector selector = makeSel();
         ArrayList<User> users = new ArrayList<User>();
         Map<String, List<Column>> data;
@@ -218,45 +305,69 @@ public abstract class Base extends WebPage {
         return null;
     }
 
-    public List<User> getFriends(String uname) {
+    public static List<User> getFriends(String uname) {
         return getFriends(uname, 5000);
     }
-    public List<User> getFriends(String uname, int count) {
+    public static List<User> getFriends(String uname, int count) {
         List<String> friendUnames = getFriendUnames(uname, count);
         return getUsersForUnames(friendUnames);
     }
 
-    public List<User> getFollowers(String uname) {
+    public static List<User> getFollowers(String uname) {
         return getFollowers(uname, 5000);
     }
-    public List<User> getFollowers(String uname, int count) {
+    public static List<User> getFollowers(String uname, int count) {
         List<String> followerUnames = getFollowerUnames(uname, count);
         return getUsersForUnames(followerUnames);
     }
 
-    public Timeline getTimeline(String uname) {
+    public static Timeline getTimeline(String uname) {
         return getTimeline(uname, "", 40);
     }
-    public Timeline getTimeline(String uname, Long startkey) {
+    public static Timeline getTimeline(String uname, Long startkey) {
         String longAsStr = (startkey == null) ? "" : String.valueOf(startkey);
         return getTimeline(uname, longAsStr, 40);
     }
-    public Timeline getTimeline(String uname, String startkey, int limit) {
-        return getLine(TIMELINE, uname, startkey, limit);
+    /**
+     * uname's own tweets and those of everyone uname follows, newest first.
+     */
+    public static Timeline getTimeline(String uname, String startkey, int limit) {
+        //Fan-out copies tweets into followers' Timelines only, so merge in uname's own Userline,
+        //and the Userlines of the Celebrities uname follows, which are not fanned out at all.
+        //None of these reads depend on each other, so they are all in flight at once
+        Long cursor = cursor(startkey);
+        List<CompletableFuture<Slice<Long>>> reads = new ArrayList<CompletableFuture<Slice<Long>>>();
+        reads.add(readLineAsync(TIMELINE, uname, cursor, limit));
+        reads.add(readLineAsync(USERLINE, uname, cursor, limit));
+        //There are few celebrities and possibly many friends, so check the celebrities
+        for (String celebrity : Base.celebrities.getUnames()) {
+            if (graph.isFriend(uname, celebrity)) {
+                reads.add(readLineAsync(USERLINE, celebrity, cursor, limit));
+            }
+        }
+
+        List<Map<Long, String>> rows = new ArrayList<Map<Long, String>>(reads.size());
+        boolean more = false;
+        for (CompletableFuture<Slice<Long>> read : reads) {
+            Slice<Long> slice = read.join();
+            rows.add(slice.getColumns());
+            more |= slice.hasNext();
+        }
+        return makeTimeline(Slice.of(Lines.mergeNewestFirst(rows, limit + 1), limit, more));
     }
 
-    public Timeline getUserline(String uname) {
+    public static Timeline getUserline(String uname) {
         return getUserline(uname, "", 40);
     }
-    public Timeline getUserline(String uname, Long startkey) {
+    public static Timeline getUserline(String uname, Long startkey) {
         String longAsStr = (startkey == null) ? "" : String.valueOf(startkey);
         return getUserline(uname, longAsStr, 40);
     }
-    public Timeline getUserline(String uname, String startkey, int limit) {
+    public static Timeline getUserline(String uname, String startkey, int limit) {
         return getLine(USERLINE, uname, startkey, limit);
     }
 
-    public Tweet getTweet(String tweetid) {
+    public static Tweet getTweet(String tweetid) {
         /*Selector selector = makeSel();
         List<Column> tweetcols;
         try {
@@ -269,12 +380,21 @@ public abstract class Base extends WebPage {
         //maketweet from cols and return
         //return makeTweet(tweetid.getBytes(),tweetcols);
 
-        Map<String, String> map = cassandra.listColumns(tweetid, TWEETS);
+        Tweet tweet = tweetCache.get(tweetid);
+        if (tweet != null) {
+            return tweet;
+        }
+
+        Map<String, String> map = storage.readColumns(tweetid, TWEET_COLUMNS, TWEETS);
 
-        return new Tweet(tweetid.getBytes(), map.get("uname"), map.get("body"));
+        tweet = new Tweet(tweetid.getBytes(), map.get("uname"), map.get("body"));
+        if (!map.get("uname").equals("")) {
+            tweetCache.put(tweetid, tweet);
+        }
+        return tweet;
     }
 
-    public List<Tweet> getTweetsForTweetids(List<String> tweetids) {
+    public static List<Tweet> getTweetsForTweetids(List<String> tweetids) {
         /*Selector selector = makeSel();
         Map<String, List<Column>> data;
         ArrayList<Tweet> tweets = new ArrayList<Tweet>();
@@ -291,10 +411,32 @@ public abstract class Base extends WebPage {
         }
         return tweets;*/
 
-        ArrayList<Tweet> tweets = new ArrayList<Tweet>();
+        ArrayList<Tweet> tweets = new ArrayList<Tweet>(tweetids.size());
 
+        //Tweets never change, so only go to cassandra for the ones not cached
+        Map<String, Tweet> cached = tweetCache.getAll(tweetids);
+        List<String> missing = new ArrayList<String>(tweetids.size() - cached.size());
         for (String tweetid : tweetids) {
-            tweets.add(getTweet(tweetid));
+            if (!cached.containsKey(tweetid)) {
+                missing.add(tweetid);
+            }
+        }
+        Map<String, Map<String, String>> rows = missing.isEmpty()
+                ? Collections.<String, Map<String, String>>emptyMap()
+                : storage.multiGetColumns(missing, TWEET_COLUMNS, TWEETS);
+
+        for (String tweetid : tweetids) {
+            Tweet tweet = cached.get(tweetid);
+            if (tweet == null) {
+                Map<String, String> columns = rows.get(tweetid);
+                if (columns == null || columns.isEmpty()) {
+                    log.warn("Could not locate tweet for id: " + tweetid);
+                    continue;
+                }
+                tweet = new Tweet(tweetid.getBytes(), columns.get("uname"), columns.get("body"));
+                tweetCache.put(tweetid, tweet);
+            }
+            tweets.add(tweet);
         }
 
         return tweets;
@@ -302,10 +444,18 @@ public abstract class Base extends WebPage {
 
 
     //Data Writing
-    public void saveUser(User user) {
-        cassandra.updateColumn(bToS(user.getKey()), user.getPassword(), "password", USERS);
+    public static boolean isReservedUsername(String uname) {
+        return uname.startsWith(RESERVED_PREFIX);
+    }
+    public static void saveUser(User user) {
+        String uname = bToS(user.getKey());
+        if (isReservedUsername(uname)) {
+            throw new IllegalArgumentException("Usernames may not start with " + RESERVED_PREFIX + ": " + uname);
+        }
+        usernames.log(storage.batch().updateColumn(uname, user.getPassword(), "password", USERS), uname).execute();
+        usernames.added(uname);
     }
-    public void saveTweet(Tweet tweet) {
+    public static void saveTweet(Tweet tweet) {
         /*long timestamp = System.currentTimeMillis();
         Mutator mutator = makeMut();
 
@@ -330,20 +480,32 @@ public abstract class Base extends WebPage {
             log.error("Unable to save tweet: " + tweet.getUname() + ": " + tweet.getBody());
         }*/
 
-        long timestamp = System.currentTimeMillis();
+        //Unique and time-ordered, so tweets posted in the same millisecond both land
+        long column = timeIds.next();
         String key = bToS(tweet.getKey());
-        cassandra.updateColumn(key, tweet.getUname(), "uname", TWEETS);
-        cassandra.updateColumn(key, tweet.getBody(), "body", TWEETS);
-        cassandra.updateColumn(tweet.getUname(), key, String.valueOf(timestamp), USERLINE);
-        cassandra.updateColumn("!PUBLIC!", key, String.valueOf(timestamp), USERLINE);
-
-        ArrayList<String> followerUnames = new ArrayList<String>(getFollowerUnames(tweet.getUname()));
-        for (String follower : followerUnames) {
-            cassandra.updateColumn(follower, key, String.valueOf(timestamp), TIMELINE);
+        Storage.Batch batch = storage.batch();
+        //Insert the tweet into tweets cf
+        batch.updateColumn(key, tweet.getUname(), "uname", TWEETS);
+        batch.updateColumn(key, tweet.getBody(), "body", TWEETS);
+        //Insert into the user's timeline
+        lines.write(batch, tweet.getUname(), USERLINE, column, key);
+        //Insert into the public timeline
+        lines.write(batch, PublicLine.ROW, USERLINE, column, key);
+        try {
+            batch.execute();
+        }
+        catch (Exception e) {
+            log.error("Unable to save tweet: " + tweet.getUname() + ": " + tweet.getBody(), e);
+            return;
         }
+        tweetCache.put(key, tweet);
+        timelineHeads.append(tweet.getUname(), USERLINE, column, key);
+        timelineHeads.append(PublicLine.ROW, USERLINE, column, key);
+        //Insert into all followers streams, in the background
+        fanout.submit(tweet.getUname(), key, column);
     }
 
-    public void addFriends(String from_uname, List<String> to_unames) {
+    public static void addFriends(String from_uname, List<String> to_unames) {
         /*long timestamp = System.currentTimeMillis();
         Mutator mutator = makeMut();
         ArrayList<Column> friends = new ArrayList<Column>();
@@ -358,9 +520,24 @@ public abstract class Base extends WebPage {
         catch (Exception e) {
             log.error("Unable to add friendship from: " + from_uname + ", to: " + to_unames);
         }*/
+
+        String timestamp = String.valueOf(System.currentTimeMillis());
+        Storage.Batch batch = storage.batch();
+        for (String uname : to_unames) {
+            batch.updateColumn(from_uname, timestamp, uname, FRIENDS);
+            batch.updateColumn(uname, timestamp, from_uname, FOLLOWERS);
+        }
+        try {
+            batch.execute();
+            graph.followed(from_uname, to_unames);
+            backfill.submit(from_uname, to_unames);
+        }
+        catch (Exception e) {
+            log.error("Unable to add friendship from: " + from_uname + ", to: " + to_unames, e);
+        }
     }
 
-    public void removeFriends(String from_uname, List<String> to_unames) {
+    public static void removeFriends(String from_uname, List<String> to_unames) {
         /*Mutator mutator = makeMut();
         for (String uname : to_unames) {
             mutator.deleteColumn(from_uname, FRIENDS, uname);
@@ -372,6 +549,19 @@ public abstract class Base extends WebPage {
         catch (Exception e) {
             log.error("Unable to remove friendship from: " + from_uname + ", to: " + to_unames);
         }*/
+
+        Storage.Batch batch = storage.batch();
+        for (String uname : to_unames) {
+            batch.deleteColumn(from_uname, uname, FRIENDS);
+            batch.deleteColumn(uname, from_uname, FOLLOWERS);
+        }
+        try {
+            batch.execute();
+            graph.unfollowed(from_uname, to_unames);
+        }
+        catch (Exception e) {
+            log.error("Unable to remove friendship from: " + from_uname + ", to: " + to_unames, e);
+        }
     }
 
 }
\ No newline at end of file
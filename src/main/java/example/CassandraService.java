@@ -1,54 +1,221 @@
 package example;
 
-import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.connection.ConcurrentHClientPool;
+import me.prettyprint.cassandra.connection.HConnectionManager;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHost;
 import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.cassandra.service.ExceptionsTranslator;
+import me.prettyprint.cassandra.service.ExceptionsTranslatorImpl;
+import me.prettyprint.cassandra.service.FailoverPolicy;
+import me.prettyprint.cassandra.service.JmxMonitor;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.cassandra.service.OperationType;
 import me.prettyprint.cassandra.service.ThriftCfDef;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
 import me.prettyprint.hector.api.beans.*;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.ColumnType;
+import me.prettyprint.hector.api.ddl.ComparatorType;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.*;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 
+import java.nio.ByteBuffer;
+
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Nebula Cloud Platform
  * Copyright 2010 Innovation Works Limited, All Rights Reserved.
  * Author: dikang
  */
-public class CassandraService {
+public class CassandraService extends AbstractStorage {
 
     private static final Logger LOG = Logger.getLogger(CassandraService.class);
 
     private static final int CASSANDRA_THRIFT_SOCKET_TIMEOUT = 3000;
     private static final int MAXWAITTIMEWHENEXHAUSTED = 4000;
+    private static final int DEFAULT_MAX_ACTIVE = 100;
+    private static final int DEFAULT_MAX_IDLE = 10;
 
     private static final int MAX_ROW_COUNT = 1000;
-    private static final int MAX_COLUMN_COUNT = 1000;
-    private static final StringSerializer SE = StringSerializer.get();
+    private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    private static final int DEFAULT_MULTIGET_CHUNK_SIZE = 50;
+    private static final int DEFAULT_MULTIGET_THREADS = 8;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ExceptionsTranslator XLATE = new ExceptionsTranslatorImpl();
     private Cluster _cluster;
     private Keyspace _keyspace = null;
+    private int _maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int _multigetChunkSize = DEFAULT_MULTIGET_CHUNK_SIZE;
+    private final ExecutorService _multigetExecutor;
+    private final ExecutorService _scanExecutor;
+    // runs the attempts of hedged reads
+    private final ExecutorService _hedgeExecutor;
+    private volatile HedgedReads _hedging;
+    private final SingleFlight _flights = new SingleFlight(getMetrics());
+    private volatile boolean _coalesceReads = true;
+    private volatile IPartitioner<?> _partitioner;
+    // null when Hector's own policies pick the hosts
+    private final LatencyAwareBalancingPolicy _balancer;
 
     public CassandraService(final String hostPort,
                             final String clusterName,
                             final String keyspace) {
+        this(hostConfigurator(hostPort), clusterName, keyspace);
+    }
 
+    /**
+     * @param hosts the hosts, pool settings and load balancing policy, see hostConfigurator()
+     * @param clusterName
+     * @param keyspace
+     */
+    public CassandraService(final CassandraHostConfigurator hosts,
+                            final String clusterName,
+                            final String keyspace) {
+        LoadBalancingPolicy policy = hosts.getLoadBalancingPolicy();
+        _balancer = policy instanceof LatencyAwareBalancingPolicy ? (LatencyAwareBalancingPolicy) policy : null;
+        _cluster = HFactory.getOrCreateCluster(clusterName, hosts);
+        createKeyspaceIfAbsent(keyspace);
+        _keyspace = HFactory.createKeyspace(keyspace, _cluster);
+        _multigetExecutor = Executors.newFixedThreadPool(DEFAULT_MULTIGET_THREADS, daemonThreads("multiget"));
+        _scanExecutor = Executors.newCachedThreadPool(daemonThreads("scan"));
+        // an attempt holds a connection while it runs, so more threads than connections only queue up in Hector
+        int connections = 0;
+        for (CassandraHost host : hosts.buildCassandraHosts()) {
+            connections += host.getMaxActive();
+        }
+        _hedgeExecutor = new ThreadPoolExecutor(0, Math.max(1, connections), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), daemonThreads("hedge"));
+        getMetrics().setPool(pool(_cluster.getConnectionManager(), _balancer));
+    }
+
+    /**
+     * the default pool settings for the comma separated host:port list,
+     *  balanced by LatencyAwareBalancingPolicy.
+     *
+     * @param hostPort
+     * @return
+     */
+    public static CassandraHostConfigurator hostConfigurator(final String hostPort) {
         CassandraHostConfigurator cassandraHostConfigurator =
                 new CassandraHostConfigurator(hostPort);
-        cassandraHostConfigurator.setMaxActive(100);
-        cassandraHostConfigurator.setMaxIdle(10);
+        cassandraHostConfigurator.setMaxActive(DEFAULT_MAX_ACTIVE);
+        cassandraHostConfigurator.setMaxIdle(DEFAULT_MAX_IDLE);
         cassandraHostConfigurator.setCassandraThriftSocketTimeout(CASSANDRA_THRIFT_SOCKET_TIMEOUT);
         cassandraHostConfigurator.setMaxWaitTimeWhenExhausted(MAXWAITTIMEWHENEXHAUSTED);
         cassandraHostConfigurator.setRetryDownedHosts(true);
+        cassandraHostConfigurator.setLoadBalancingPolicy(new LatencyAwareBalancingPolicy());
+        return cassandraHostConfigurator;
+    }
 
-        _cluster = HFactory.getOrCreateCluster(clusterName, cassandraHostConfigurator);
-        createKeyspaceIfAbsent(keyspace);
-        _keyspace = HFactory.createKeyspace(keyspace, _cluster);
+    /**
+     * the end of a call that is not timed, so the balancer does not take it
+     *  to be still in flight.
+     */
+    private void untimed() {
+        if (null != _balancer) {
+            _balancer.forget();
+        }
+    }
+
+    /**
+     * the end of a timed call: record its latency, and let the balancer
+     *  know the host it went to has answered.
+     */
+    private void finished(final String operation, final String columnFamily, final long start) {
+        if (null != _balancer) {
+            _balancer.finished();
+        }
+        getMetrics().record(operation, columnFamily, start);
+    }
+
+    /**
+     * the stats of Hector's per-host pools, summed. Hector does not time
+     * how long a borrow waits, the threads blocked waiting are counted
+     * instead. The status has a line per host from the balancer, if any.
+     */
+    private static StorageMetrics.Pool pool(final HConnectionManager connections,
+                                            final LatencyAwareBalancingPolicy balancer) {
+        return new StorageMetrics.Pool() {
+            public int getActive() {
+                int active = 0;
+                for (ConcurrentHClientPool pool : connections.getActivePools()) {
+                    active += pool.getNumActive();
+                }
+                return active;
+            }
+
+            public int getIdle() {
+                int idle = 0;
+                for (ConcurrentHClientPool pool : connections.getActivePools()) {
+                    idle += pool.getNumIdle();
+                }
+                return idle;
+            }
+
+            public int getBlockedThreads() {
+                int blocked = 0;
+                for (ConcurrentHClientPool pool : connections.getActivePools()) {
+                    blocked += pool.getNumBlockedThreads();
+                }
+                return blocked;
+            }
+
+            public long getExhausted() {
+                return JmxMonitor.getInstance().getCassandraMonitor(connections).getNumPoolExhaustedEventCount();
+            }
+
+            public List<String> getStatus() {
+                List<String> status = new ArrayList<String>(connections.getStatusPerPool());
+                if (null != balancer) {
+                    status.addAll(balancer.getStatus());
+                }
+                return status;
+            }
+        };
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cassandra-" + name + "-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * stop the worker threads, called when the application goes away.
+     */
+    public void shutdown() {
+        _multigetExecutor.shutdown();
+        _scanExecutor.shutdown();
+        _hedgeExecutor.shutdown();
+        super.shutdown();
     }
 
     /**
@@ -64,22 +231,28 @@ public class CassandraService {
         } catch(Exception ex) {
             //ignore
             LOG.warn(ex.getMessage(), ex);
+        } finally {
+            untimed();
         }
     }
 
     /**
-     * create column family if absent, not super man.
+     * create column family if absent, with columns sorted by comparator.
      *
      * @param columnFamily
+     * @param comparator
      */
-    public void createColumnFamilyIfAbsent(final String columnFamily) {
+    public void createColumnFamilyIfAbsent(final String columnFamily,
+                                           final ComparatorType comparator) {
 
         try {
             ColumnFamilyDefinition def = HFactory.createColumnFamilyDefinition(_keyspace.getKeyspaceName(),
-                    columnFamily);
+                    columnFamily, comparator);
             _cluster.addColumnFamily(def);
         } catch (Exception ex) {
             LOG.warn(ex.getMessage(), ex);
+        } finally {
+            untimed();
         }
     }
 
@@ -98,6 +271,8 @@ public class CassandraService {
             _cluster.addColumnFamily(def);
         } catch (Exception ex) {
             LOG.warn(ex.getMessage(), ex);
+        } finally {
+            untimed();
         }
     }
 
@@ -113,14 +288,19 @@ public class CassandraService {
                              final String columnName,
                              final String columnFamily)
     {
-        ColumnQuery<String, String, String> columnQuery = HFactory.createStringColumnQuery(_keyspace);
-        columnQuery.setColumnFamily(columnFamily).setKey(key).setName(columnName);
-        QueryResult<HColumn<String, String>> result = columnQuery.execute();
-        HColumn<String, String> column = result.get();
-
-        if (null == column)
-            return "";
-        return column.getValue();
+        Callable<String> query = new Callable<String>() {
+            public String call() {
+                ColumnQuery<String, String, String> columnQuery = HFactory.createStringColumnQuery(_keyspace);
+                columnQuery.setColumnFamily(columnFamily).setKey(key).setName(columnName);
+                QueryResult<HColumn<String, String>> result = columnQuery.execute();
+                HColumn<String, String> column = result.get();
+
+                if (null == column)
+                    return "";
+                return column.getValue();
+            }
+        };
+        return read(StorageMetrics.READ, columnFamily, key, Arrays.<Object>asList("column", columnName), query);
     }
 
     /**
@@ -137,17 +317,21 @@ public class CassandraService {
                                 final String superColumn,
                                 final String columnFamily)
     {
-
-        SubColumnQuery<String, String, String, String> subColumnQuery = HFactory.createSubColumnQuery(_keyspace,
-                SE, SE, SE, SE);
-        subColumnQuery.setKey(key).setColumn(columnName).setSuperColumn(superColumn).setColumnFamily(columnFamily);
-
-        QueryResult<HColumn<String, String>> result = subColumnQuery.execute();
-        HColumn<String, String> column = result.get();
-
-        if (null == column)
-            return "";
-        return column.getValue();
+        long start = System.nanoTime();
+        try {
+            SubColumnQuery<String, String, String, String> subColumnQuery = HFactory.createSubColumnQuery(_keyspace,
+                    SE, SE, SE, SE);
+            subColumnQuery.setKey(key).setColumn(columnName).setSuperColumn(superColumn).setColumnFamily(columnFamily);
+
+            QueryResult<HColumn<String, String>> result = subColumnQuery.execute();
+            HColumn<String, String> column = result.get();
+
+            if (null == column)
+                return "";
+            return column.getValue();
+        } finally {
+            finished(StorageMetrics.READ, columnFamily, start);
+        }
     }
 
     /**
@@ -162,76 +346,427 @@ public class CassandraService {
                                                final String[] columns,
                                                final String columnFamily)
     {
-        HashMap<String, String> results = new HashMap<String, String>();
+        Callable<HashMap<String, String>> query = new Callable<HashMap<String, String>>() {
+            public HashMap<String, String> call() {
+                HashMap<String, String> results = new HashMap<String, String>();
 
-        SliceQuery<String, String, String> sliceQuery = HFactory.createSliceQuery(_keyspace, SE, SE, SE);
-        sliceQuery.setColumnFamily(columnFamily).setKey(key).setColumnNames(columns);
+                SliceQuery<String, String, String> sliceQuery = HFactory.createSliceQuery(_keyspace, SE, SE, SE);
+                sliceQuery.setColumnFamily(columnFamily).setKey(key).setColumnNames(columns);
 
-        ColumnSlice<String, String> columnSlice = sliceQuery.execute().get();
+                ColumnSlice<String, String> columnSlice = sliceQuery.execute().get();
 
-        for (String column : columns) {
-            HColumn<String, String> hColumn = columnSlice.getColumnByName(column);
-            if (null == hColumn) {
-                results.put(column, "");
-            } else {
-                results.put(column, hColumn.getValue());
-            }
-        }
+                for (String column : columns) {
+                    HColumn<String, String> hColumn = columnSlice.getColumnByName(column);
+                    if (null == hColumn) {
+                        results.put(column, "");
+                    } else {
+                        results.put(column, hColumn.getValue());
+                    }
+                }
 
-        return results;
+                return results;
+            }
+        };
+        // a copy, the map read may be shared with other callers
+        return new HashMap<String, String>(read(StorageMetrics.READ, columnFamily, key,
+                Arrays.<Object>asList("columns", Arrays.asList(columns)), query));
     }
 
     /**
-     * list columns in a column family
+     * list columns starting from startColumn (inclusive), in comparator
+     * order or, if reversed, newest first for time-ordered columns.
      *
-     * return  MAX_COLUMN_COUNT columns at most
+     * the returned map keeps the order the columns came back in.
      *
      * @param key
      * @param columnFamily
+     * @param startColumn
+     * @param count
+     * @param reversed
      * @return
      */
-    public HashMap<String, String> listColumns(final String key,
-                                               final String columnFamily) {
+    public LinkedHashMap<String, String> listColumns(final String key,
+                                                     final String columnFamily,
+                                                     final String startColumn,
+                                                     final int count,
+                                                     final boolean reversed) {
+        Callable<LinkedHashMap<String, String>> query = new Callable<LinkedHashMap<String, String>>() {
+            public LinkedHashMap<String, String> call() {
+                LinkedHashMap<String, String> results = new LinkedHashMap<String, String>();
+
+                RangeSlicesQuery<String, String, String> sliceQuery =
+                        HFactory.createRangeSlicesQuery(_keyspace, SE, SE, SE);
+                sliceQuery.setColumnFamily(columnFamily).setRange(startColumn, null, reversed, count)
+                        .setKeys(key, key).setRowCount(1);
+
+                OrderedRows<String, String, String> rows = sliceQuery.execute().get();
+
+                if (null == rows || 0 == rows.getCount()) {
+                    return results;
+                }
+
+                ColumnSlice<String, String> columnSlice = rows.getList().get(0).getColumnSlice();
+
+                if (null == columnSlice) {
+                    return results;
+                }
 
-        return listColumns(key, columnFamily, null, MAX_COLUMN_COUNT);
+                for (HColumn<String, String> hColumn : columnSlice.getColumns()) {
+                    results.put(hColumn.getName(), hColumn.getValue());
+                }
+
+                return results;
+            }
+        };
+        // a copy, the map read may be shared with other callers
+        return new LinkedHashMap<String, String>(read(StorageMetrics.SLICE, columnFamily, key,
+                Arrays.<Object>asList("list", startColumn, count, reversed), query));
     }
 
-    public HashMap<String, String> listColumns(final String key,
-                                               final String columnFamily,
-                                               final String startColumn) {
+    /**
+     * run an idempotent read of a row, sharing the call with identical
+     *  reads in flight if coalescing is on.
+     *
+     * @param request what tells this read apart from other reads of the row
+     */
+    private <T> T read(final String operation,
+                       final String columnFamily,
+                       final String key,
+                       final List<Object> request,
+                       final Callable<T> read) {
+        if (!_coalesceReads) {
+            return issue(operation, columnFamily, read);
+        }
+        List<Object> flight = new ArrayList<Object>(request);
+        flight.add(columnFamily);
+        flight.add(key);
+        return _flights.read(columnFamily, key, flight, new Callable<T>() {
+            public T call() {
+                return issue(operation, columnFamily, read);
+            }
+        });
+    }
 
-        return listColumns(key, columnFamily, startColumn, MAX_COLUMN_COUNT);
+    /**
+     * send a read to storage, hedged if hedging is on, and record its
+     *  latency as the caller saw it.
+     */
+    private <T> T issue(final String operation, final String columnFamily, final Callable<T> read) {
+        long start = System.nanoTime();
+        try {
+            HedgedReads hedging = _hedging;
+            if (null != hedging) {
+                return hedging.read(operation, columnFamily, read);
+            }
+            try {
+                return read.call();
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (null != _balancer) {
+                    _balancer.finished();
+                }
+            }
+        } finally {
+            getMetrics().record(operation, columnFamily, start);
+        }
     }
 
-    public HashMap<String, String> listColumns(final String key,
-                                               final String columnFamily,
-                                               final String startColumn,
-                                               final int count) {
-        HashMap<String, String> results = new HashMap<String, String>();
+    /**
+     * @param coalesceReads whether identical readColumn, readColumns,
+     *                      listColumns, slice and multiget calls in flight
+     *                      at once share one read
+     */
+    public void setCoalesceReads(final boolean coalesceReads) {
+        _coalesceReads = coalesceReads;
+    }
 
-        RangeSlicesQuery<String, String, String> sliceQuery = HFactory.createRangeSlicesQuery(_keyspace, SE, SE, SE);
-        sliceQuery.setColumnFamily(columnFamily).setRange(startColumn, null, false, count)
-                .setKeys(key, key).setRowCount(1);
+    /**
+     * hedge reads of rows, single or multiget: if the first attempt has not
+     *  answered after the given percentile of recent latencies, send a
+     *  second, and take whichever answers first.
+     *
+     * @param percentile     e.g. 0.95
+     * @param minDelayMillis the least time to wait before hedging
+     * @param budgetPercent  the most hedges, as a percentage of reads
+     */
+    public void setHedging(final double percentile, final long minDelayMillis, final int budgetPercent) {
+        _hedging = new HedgedReads(_hedgeExecutor, getMetrics(), _balancer, percentile, minDelayMillis,
+                budgetPercent);
+    }
 
-        OrderedRows<String, String, String> rows = sliceQuery.execute().get();
+    /**
+     * the most keys asked for in one multiget_slice call, bigger
+     * key sets are split and the pieces run in parallel.
+     *
+     * @param multigetChunkSize
+     */
+    public void setMultigetChunkSize(final int multigetChunkSize) {
+        if (multigetChunkSize < 1) {
+            throw new IllegalArgumentException("multigetChunkSize must be positive: " + multigetChunkSize);
+        }
+        _multigetChunkSize = multigetChunkSize;
+    }
 
-        if (null == rows || 0 == rows.getCount()) {
-            return results;
+    /**
+     * read the same columns from many rows at once.
+     *
+     * rows come back in the order of keys, a missing row is an empty map.
+     * if columnNames is null, return MAX_COLUMN_COUNT columns of each row at most.
+     *
+     * @param keys
+     * @param columnNames
+     * @param columnFamily
+     * @return
+     */
+    public LinkedHashMap<String, Map<String, String>> multiGetColumns(final List<String> keys,
+                                                                      final String[] columnNames,
+                                                                      final String columnFamily) {
+        return multiGet(keys, columnFamily, columnNames, null, MAX_COLUMN_COUNT, false, SE);
+    }
+
+    /**
+     * slice many rows at once, each from just after afterColumn in
+     * comparator order or, if reversed, backwards.
+     *
+     * rows come back in the order of keys and keep their column order,
+     * a missing row is an empty map. each row has count columns at most.
+     *
+     * @param keys
+     * @param columnFamily
+     * @param afterColumn null to start at the first column
+     * @param count
+     * @param reversed
+     * @param nameSerializer
+     * @return
+     */
+    public <N> LinkedHashMap<String, Map<N, String>> multiGetSlices(final List<String> keys,
+                                                                    final String columnFamily,
+                                                                    final N afterColumn,
+                                                                    final int count,
+                                                                    final boolean reversed,
+                                                                    final Serializer<N> nameSerializer) {
+        LinkedHashMap<String, Map<N, String>> rows = multiGet(keys, columnFamily, null, afterColumn,
+                fetchCount(afterColumn, count), reversed, nameSerializer);
+        if (null != afterColumn) {
+            for (Map.Entry<String, Map<N, String>> row : rows.entrySet()) {
+                row.getValue().remove(afterColumn);
+                row.setValue(Slice.of(row.getValue(), count).getColumns());
+            }
         }
+        return rows;
+    }
+
+    /**
+     * multiget, sharing the call with identical multigets of the same keys
+     *  in flight if coalescing is on.
+     */
+    private <N> LinkedHashMap<String, Map<N, String>> multiGet(final List<String> keys,
+                                                               final String columnFamily,
+                                                               final N[] columnNames,
+                                                               final N startColumn,
+                                                               final int count,
+                                                               final boolean reversed,
+                                                               final Serializer<N> nameSerializer) {
+        Callable<LinkedHashMap<String, Map<N, String>>> query = new Callable<LinkedHashMap<String, Map<N, String>>>() {
+            public LinkedHashMap<String, Map<N, String>> call() {
+                return multiGetChunks(keys, columnFamily, columnNames, startColumn, count, reversed,
+                        nameSerializer);
+            }
+        };
+        if (!_coalesceReads) {
+            return call(query);
+        }
+        List<Object> flight = Arrays.<Object>asList("multiget", null == columnNames ? null : Arrays.asList(columnNames),
+                startColumn, count, reversed, nameSerializer.getClass(), columnFamily, new ArrayList<String>(keys));
+        LinkedHashMap<String, Map<N, String>> rows = _flights.read(columnFamily, keys, flight, query);
+        // copies, the rows read may be shared with other callers
+        LinkedHashMap<String, Map<N, String>> results = new LinkedHashMap<String, Map<N, String>>();
+        for (Map.Entry<String, Map<N, String>> row : rows.entrySet()) {
+            results.put(row.getKey(), new LinkedHashMap<N, String>(row.getValue()));
+        }
+        return results;
+    }
 
-        ColumnSlice<String, String> columnSlice = rows.getList().get(0).getColumnSlice();
+    private <N> LinkedHashMap<String, Map<N, String>> multiGetChunks(final List<String> keys,
+                                                                     final String columnFamily,
+                                                                     final N[] columnNames,
+                                                                     final N startColumn,
+                                                                     final int count,
+                                                                     final boolean reversed,
+                                                                     final Serializer<N> nameSerializer) {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int i = 0; i < keys.size(); i += _multigetChunkSize) {
+            chunks.add(keys.subList(i, Math.min(keys.size(), i + _multigetChunkSize)));
+        }
 
-        if (null == columnSlice) {
-            return results;
+        // the first chunk runs on the calling thread, the rest on the pool
+        List<Future<Map<String, Map<N, String>>>> futures = new ArrayList<Future<Map<String, Map<N, String>>>>();
+        for (final List<String> chunk : chunks.subList(Math.min(1, chunks.size()), chunks.size())) {
+            futures.add(_multigetExecutor.submit(new Callable<Map<String, Map<N, String>>>() {
+                public Map<String, Map<N, String>> call() {
+                    return multiGetChunk(chunk, columnFamily, columnNames, startColumn, count, reversed,
+                            nameSerializer);
+                }
+            }));
         }
 
-        for (HColumn<String, String> hColumn : columnSlice.getColumns()) {
-            results.put(hColumn.getName(), hColumn.getValue());
+        Map<String, Map<N, String>> found = new HashMap<String, Map<N, String>>();
+        if (!chunks.isEmpty()) {
+            found.putAll(multiGetChunk(chunks.get(0), columnFamily, columnNames, startColumn, count, reversed,
+                    nameSerializer));
+        }
+        for (Future<Map<String, Map<N, String>>> future : futures) {
+            found.putAll(await(future));
         }
 
+        LinkedHashMap<String, Map<N, String>> results = new LinkedHashMap<String, Map<N, String>>();
+        for (String key : keys) {
+            Map<N, String> row = found.get(key);
+            results.put(key, null == row ? new LinkedHashMap<N, String>() : row);
+        }
         return results;
     }
 
+    private <N> Map<String, Map<N, String>> multiGetChunk(final List<String> keys,
+                                                         final String columnFamily,
+                                                         final N[] columnNames,
+                                                         final N startColumn,
+                                                         final int count,
+                                                         final boolean reversed,
+                                                         final Serializer<N> nameSerializer) {
+        return issue(StorageMetrics.MULTIGET, columnFamily, new Callable<Map<String, Map<N, String>>>() {
+            public Map<String, Map<N, String>> call() {
+                Map<String, Map<N, String>> results = new HashMap<String, Map<N, String>>();
+
+                MultigetSliceQuery<String, N, String> multigetSliceQuery =
+                        HFactory.createMultigetSliceQuery(_keyspace, SE, nameSerializer, SE);
+                multigetSliceQuery.setColumnFamily(columnFamily).setKeys(keys);
+                if (null == columnNames) {
+                    multigetSliceQuery.setRange(startColumn, null, reversed, count);
+                } else {
+                    multigetSliceQuery.setColumnNames(columnNames);
+                }
+
+                Rows<String, N, String> rows = multigetSliceQuery.execute().get();
+
+                if (null == rows) {
+                    return results;
+                }
+
+                for (Row<String, N, String> row : rows) {
+                    Map<N, String> columns = new LinkedHashMap<N, String>();
+                    ColumnSlice<N, String> columnSlice = row.getColumnSlice();
+                    if (null != columnSlice) {
+                        for (HColumn<N, String> hColumn : columnSlice.getColumns()) {
+                            columns.put(hColumn.getName(), hColumn.getValue());
+                        }
+                    }
+                    results.put(row.getKey(), columns);
+                }
+                return results;
+            }
+        });
+    }
+
+    private static <T> T await(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * count the columns in a row.
+     *
+     * @param key
+     * @param columnFamily
+     * @return
+     */
+    public int countColumns(final String key,
+                            final String columnFamily) {
+        long start = System.nanoTime();
+        try {
+            CountQuery<String, String> countQuery = HFactory.createCountQuery(_keyspace, SE, SE);
+            countQuery.setColumnFamily(columnFamily).setKey(key).setRange(null, null, Integer.MAX_VALUE);
+
+            Integer count = countQuery.execute().get();
+            return null == count ? 0 : count;
+        } finally {
+            finished(StorageMetrics.COUNT, columnFamily, start);
+        }
+    }
+
+    /**
+     * read one page of a row, in comparator order or, if reversed, backwards.
+     *
+     * afterColumn is the cursor of the previous page and is not returned
+     * itself. one column more than count is read to find out whether
+     * another page follows.
+     *
+     * @param key
+     * @param columnFamily
+     * @param afterColumn null for the first page
+     * @param count
+     * @param reversed
+     * @param nameSerializer
+     * @return
+     */
+    public <N> Slice<N> slice(final String key,
+                              final String columnFamily,
+                              final N afterColumn,
+                              final int count,
+                              final boolean reversed,
+                              final Serializer<N> nameSerializer) {
+        Callable<Slice<N>> query = new Callable<Slice<N>>() {
+            public Slice<N> call() {
+                SliceQuery<String, N, String> sliceQuery = HFactory.createSliceQuery(_keyspace, SE, nameSerializer, SE);
+                sliceQuery.setColumnFamily(columnFamily).setKey(key)
+                        .setRange(afterColumn, null, reversed, fetchCount(afterColumn, count + 1));
+
+                ColumnSlice<N, String> columnSlice = sliceQuery.execute().get();
+
+                LinkedHashMap<N, String> columns = new LinkedHashMap<N, String>();
+                if (null != columnSlice) {
+                    for (HColumn<N, String> hColumn : columnSlice.getColumns()) {
+                        if (!hColumn.getName().equals(afterColumn)) {
+                            columns.put(hColumn.getName(), hColumn.getValue());
+                        }
+                    }
+                }
+                return Slice.of(columns, count);
+            }
+        };
+        Slice<N> slice = read(StorageMetrics.SLICE, columnFamily, key,
+                Arrays.<Object>asList("slice", afterColumn, count, reversed, nameSerializer.getClass()), query);
+        // a copy, the slice read may be shared with other callers
+        return new Slice<N>(new LinkedHashMap<N, String>(slice.getColumns()), slice.getNext());
+    }
+
+    private static <T> T call(final Callable<T> query) {
+        try {
+            return query.call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // the start of a slice range is inclusive, so skipping the cursor costs one more column
+    private static int fetchCount(final Object afterColumn, final int count) {
+        return null == afterColumn ? count : count + 1;
+    }
+
     /**
      * read the columns in a super column.
      *
@@ -245,24 +780,29 @@ public class CassandraService {
                                                   final String[] columns,
                                                   final String superColumn,
                                                   final String columnFamily) {
-        HashMap<String, String> results = new HashMap<String, String>();
+        long start = System.nanoTime();
+        try {
+            HashMap<String, String> results = new HashMap<String, String>();
 
-        SubSliceQuery<String, String, String, String> subSliceQuery =
-                HFactory.createSubSliceQuery(_keyspace, SE, SE, SE, SE);
-        subSliceQuery.setColumnFamily(columnFamily).setSuperColumn(superColumn).setKey(key).setColumnNames(columns);
+            SubSliceQuery<String, String, String, String> subSliceQuery =
+                    HFactory.createSubSliceQuery(_keyspace, SE, SE, SE, SE);
+            subSliceQuery.setColumnFamily(columnFamily).setSuperColumn(superColumn).setKey(key).setColumnNames(columns);
 
-        ColumnSlice<String, String> columnSlice = subSliceQuery.execute().get();
+            ColumnSlice<String, String> columnSlice = subSliceQuery.execute().get();
 
-        for (String column : columns) {
-            HColumn<String, String> hColumn = columnSlice.getColumnByName(column);
-            if (null == hColumn) {
-                results.put(column, "");
-            } else {
-                results.put(column, hColumn.getValue());
+            for (String column : columns) {
+                HColumn<String, String> hColumn = columnSlice.getColumnByName(column);
+                if (null == hColumn) {
+                    results.put(column, "");
+                } else {
+                    results.put(column, hColumn.getValue());
+                }
             }
-        }
 
-        return results;
+            return results;
+        } finally {
+            finished(StorageMetrics.READ, columnFamily, start);
+        }
     }
 
     /**
@@ -276,22 +816,27 @@ public class CassandraService {
     public HashMap<String, String> readSuperColumns(final String key,
                                                     final String superColumn,
                                                     final String columnFamily) {
-        HashMap<String, String> results = new HashMap<String, String>();
+        long start = System.nanoTime();
+        try {
+            HashMap<String, String> results = new HashMap<String, String>();
 
-        SuperColumnQuery<String, String, String, String> superColumnQuery = HFactory.createSuperColumnQuery(_keyspace,
-                SE, SE, SE, SE);
-        superColumnQuery.setKey(key).setSuperName(superColumn).setColumnFamily(columnFamily);
+            SuperColumnQuery<String, String, String, String> superColumnQuery = HFactory.createSuperColumnQuery(_keyspace,
+                    SE, SE, SE, SE);
+            superColumnQuery.setKey(key).setSuperName(superColumn).setColumnFamily(columnFamily);
 
-        HSuperColumn<String, String, String> sColumn = superColumnQuery.execute().get();
+            HSuperColumn<String, String, String> sColumn = superColumnQuery.execute().get();
 
-        if (null == sColumn) {
-            return results;
-        }
+            if (null == sColumn) {
+                return results;
+            }
 
-        for (HColumn<String, String> column : sColumn.getColumns()) {
-            results.put(column.getName(), column.getValue());
+            for (HColumn<String, String> column : sColumn.getColumns()) {
+                results.put(column.getName(), column.getValue());
+            }
+            return results;
+        } finally {
+            finished(StorageMetrics.READ, columnFamily, start);
         }
-        return results;
     }
 
     /**
@@ -307,10 +852,16 @@ public class CassandraService {
                              final String columnName,
                              final String columnFamily)
     {
-        Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+        long start = System.nanoTime();
+        try {
+            Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
 
-        // insert (row, columnfamily, column(key, value));
-        mutator.insert(key, columnFamily, HFactory.createStringColumn(columnName, value));
+            // insert (row, columnfamily, column(key, value));
+            mutator.insert(key, columnFamily, HFactory.createStringColumn(columnName, value));
+        } finally {
+            _flights.written(columnFamily, key);
+            finished(StorageMetrics.MUTATE, columnFamily, start);
+        }
     }
 
     /**
@@ -328,11 +879,17 @@ public class CassandraService {
                                 final String superColumn,
                                 final String columnFamily)
     {
-        Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
-
-        // insert (row, columnfamily, column(key, value));
-        mutator.insert(key, columnFamily, HFactory.createSuperColumn(superColumn,
-                Arrays.asList(HFactory.createStringColumn(columnName, value)), SE, SE, SE));
+        long start = System.nanoTime();
+        try {
+            Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+
+            // insert (row, columnfamily, column(key, value));
+            mutator.insert(key, columnFamily, HFactory.createSuperColumn(superColumn,
+                    Arrays.asList(HFactory.createStringColumn(columnName, value)), SE, SE, SE));
+        } finally {
+            _flights.written(columnFamily, key);
+            finished(StorageMetrics.MUTATE, columnFamily, start);
+        }
     }
 
     /**
@@ -349,15 +906,49 @@ public class CassandraService {
                                  final String superColumn,
                                  final String columnFamily)
     {
-        Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+        long start = System.nanoTime();
+        try {
+            Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+
+            List<HColumn<String, String>> columnList = new ArrayList<HColumn<String, String>>();
+            for (String columnName : columns.keySet()) {
+                columnList.add(HFactory.createStringColumn(columnName, columns.get(columnName)));
+            }
 
-        List<HColumn<String, String>> columnList = new ArrayList<HColumn<String, String>>();
-        for (String columnName : columns.keySet()) {
-            columnList.add(HFactory.createStringColumn(columnName, columns.get(columnName)));
+            mutator.insert(key, columnFamily, HFactory.createSuperColumn(superColumn,
+                    columnList, SE, SE, SE));
+        } finally {
+            _flights.written(columnFamily, key);
+            finished(StorageMetrics.MUTATE, columnFamily, start);
         }
+    }
+
+    /**
+     * the most mutations sent in one batch_mutate call
+     *
+     * @return
+     */
+    public int getMaxBatchSize() {
+        return _maxBatchSize;
+    }
 
-        mutator.insert(key, columnFamily, HFactory.createSuperColumn(superColumn,
-                columnList, SE, SE, SE));
+    public void setMaxBatchSize(final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        _maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * start a batch of writes, which may span rows and column families.
+     *
+     * nothing is sent until the batch holds getMaxBatchSize() mutations
+     * or execute() is called.
+     *
+     * @return
+     */
+    public Batch batch() {
+        return new Batch(_maxBatchSize);
     }
 
     /**
@@ -370,9 +961,15 @@ public class CassandraService {
     public void deleteColumn(final String key,
                              final String columnName,
                              final String columnFamily){
-        Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+        long start = System.nanoTime();
+        try {
+            Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
 
-        mutator.delete(key, columnFamily, columnName, SE);
+            mutator.delete(key, columnFamily, columnName, SE);
+        } finally {
+            _flights.written(columnFamily, key);
+            finished(StorageMetrics.MUTATE, columnFamily, start);
+        }
     }
 
     /**
@@ -387,9 +984,15 @@ public class CassandraService {
                                 final String columnName,
                                 final String superColumn,
                                 final String columnFamily){
-        Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+        long start = System.nanoTime();
+        try {
+            Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
 
-        mutator.subDelete(key, columnFamily, superColumn, columnName, SE, SE);
+            mutator.subDelete(key, columnFamily, superColumn, columnName, SE, SE);
+        } finally {
+            _flights.written(columnFamily, key);
+            finished(StorageMetrics.MUTATE, columnFamily, start);
+        }
     }
 
     /**
@@ -397,40 +1000,144 @@ public class CassandraService {
      *
      * @param columnFamily
      * @return
+     * @deprecated holds every key of the column family in memory, walk
+     *  them with iterateKeys() instead
      */
+    @Deprecated
     public List<String> listKeys(final String columnFamily) {
-        RangeSlicesQuery<String, String, String> rangeSlicesQuery =
-                HFactory.createRangeSlicesQuery(_keyspace, SE, SE, SE);
+        List<String> result = new ArrayList<String>();
+        Iterator<String> keys = iterateKeys(columnFamily, MAX_ROW_COUNT, false);
+        while (keys.hasNext()) {
+            result.add(keys.next());
+        }
+        return result;
+    }
 
-        rangeSlicesQuery.setColumnFamily(columnFamily).setReturnKeysOnly().setRowCount(MAX_ROW_COUNT);
-        OrderedRows<String, String, String> rows = rangeSlicesQuery.execute().get();
+    /**
+     * walk the keys of a column family, pageSize at a time, in token order.
+     *
+     * only one page (two with prefetch) is held in memory, so any column
+     * family can be walked. keys of deleted rows may still show up until
+     * their tombstones are collected.
+     *
+     * @param columnFamily
+     * @param pageSize
+     * @param prefetch fetch the next page while the caller works on this one
+     * @return
+     */
+    public Iterator<String> iterateKeys(final String columnFamily,
+                                        final int pageSize,
+                                        final boolean prefetch) {
+        final RowIterator rows = new RowIterator(columnFamily, pageSize, 0, prefetch);
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
 
+            public String next() {
+                return rows.next().getKey();
+            }
 
-        List<String> result = new ArrayList<String>();
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
 
-        // return empty list
-        if (null == rows) {
-            return result;
+    /**
+     * walk the rows of a column family, pageSize at a time, in token order,
+     * with the first columnCount columns of each.
+     *
+     * rows without columns, i.e. deleted ones, are skipped.
+     *
+     * @param columnFamily
+     * @param pageSize
+     * @param columnCount
+     * @param prefetch fetch the next page while the caller works on this one
+     * @return
+     */
+    public RowIterator iterateRows(final String columnFamily,
+                                   final int pageSize,
+                                   final int columnCount,
+                                   final boolean prefetch) {
+        if (columnCount < 1) {
+            throw new IllegalArgumentException("columnCount must be positive: " + columnCount);
         }
+        return new RowIterator(columnFamily, pageSize, columnCount, prefetch);
+    }
 
-        for (Row<String, String, String> row : rows.getList()) {
-            result.add(row.getKey());
-        }
+    /**
+     * iterateKeys as a sequential Stream.
+     *
+     * @param columnFamily
+     * @param pageSize
+     * @param prefetch
+     * @return
+     */
+    public Stream<String> streamKeys(final String columnFamily,
+                                     final int pageSize,
+                                     final boolean prefetch) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterateKeys(columnFamily, pageSize, prefetch), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
 
-        if (result.size() < MAX_ROW_COUNT) {
-            return result;
-        }
+    /**
+     * iterateRows as a sequential Stream.
+     *
+     * @param columnFamily
+     * @param pageSize
+     * @param columnCount
+     * @param prefetch
+     * @return
+     */
+    public Stream<Map.Entry<String, Map<String, String>>> streamRows(final String columnFamily,
+                                                                    final int pageSize,
+                                                                    final int columnCount,
+                                                                    final boolean prefetch) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterateRows(columnFamily, pageSize, columnCount, prefetch),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
 
-        String startKey = rows.peekLast().getKey();
-        List<String> next = listKeys(columnFamily, startKey);
+    /**
+     * one get_range_slices call, starting at startKey (inclusive) or at
+     * the start of the ring if it is null.
+     */
+    private List<Map.Entry<String, Map<String, String>>> rangePage(final String columnFamily,
+                                                                   final String startKey,
+                                                                   final int rowCount,
+                                                                   final int columnCount) {
+        long start = System.nanoTime();
+        try {
+            RangeSlicesQuery<String, String, String> rangeSlicesQuery =
+                    HFactory.createRangeSlicesQuery(_keyspace, SE, SE, SE);
+            rangeSlicesQuery.setColumnFamily(columnFamily).setKeys(startKey, null).setRowCount(rowCount);
+            if (0 == columnCount) {
+                rangeSlicesQuery.setReturnKeysOnly();
+            } else {
+                rangeSlicesQuery.setRange(null, null, false, columnCount);
+            }
 
-        while(next.size() != 0) {
+            OrderedRows<String, String, String> rows = rangeSlicesQuery.execute().get();
 
-            result.addAll(next);
-            startKey = next.get(next.size() - 1);
-            next = listKeys(columnFamily, startKey);
+            List<Map.Entry<String, Map<String, String>>> results = new ArrayList<Map.Entry<String, Map<String, String>>>();
+            if (null == rows) {
+                return results;
+            }
+            for (Row<String, String, String> row : rows.getList()) {
+                Map<String, String> columns = new LinkedHashMap<String, String>();
+                ColumnSlice<String, String> columnSlice = row.getColumnSlice();
+                if (null != columnSlice) {
+                    for (HColumn<String, String> hColumn : columnSlice.getColumns()) {
+                        columns.put(hColumn.getName(), hColumn.getValue());
+                    }
+                }
+                results.add(new AbstractMap.SimpleImmutableEntry<String, Map<String, String>>(row.getKey(), columns));
+            }
+            return results;
+        } finally {
+            finished(StorageMetrics.RANGE, columnFamily, start);
         }
-        return result;
     }
 
     /**
@@ -442,28 +1149,33 @@ public class CassandraService {
      */
     public List<String> listKeys(final String columnFamily,
                                  final String startKey) {
-        RangeSlicesQuery<String, String, String> rangeSlicesQuery =
-                HFactory.createRangeSlicesQuery(_keyspace, SE, SE, SE);
+        long start = System.nanoTime();
+        try {
+            RangeSlicesQuery<String, String, String> rangeSlicesQuery =
+                    HFactory.createRangeSlicesQuery(_keyspace, SE, SE, SE);
 
-        rangeSlicesQuery.setColumnFamily(columnFamily).setReturnKeysOnly().
-                setRowCount(MAX_ROW_COUNT + 1).setKeys(startKey, null);
-        OrderedRows<String, String, String> rows = rangeSlicesQuery.execute().get();
+            rangeSlicesQuery.setColumnFamily(columnFamily).setReturnKeysOnly().
+                    setRowCount(MAX_ROW_COUNT + 1).setKeys(startKey, null);
+            OrderedRows<String, String, String> rows = rangeSlicesQuery.execute().get();
 
-        List<String> result = new ArrayList<String>();
+            List<String> result = new ArrayList<String>();
 
-        // return empty list
-        if (null == rows) {
-            return result;
-        }
+            // return empty list
+            if (null == rows) {
+                return result;
+            }
 
-        for (Row<String, String, String> row : rows.getList()) {
-            // ignore the startKey
-            if (row.getKey().equals(startKey)) {
-                continue;
+            for (Row<String, String, String> row : rows.getList()) {
+                // ignore the startKey
+                if (row.getKey().equals(startKey)) {
+                    continue;
+                }
+                result.add(row.getKey());
             }
-            result.add(row.getKey());
+            return result;
+        } finally {
+            finished(StorageMetrics.RANGE, columnFamily, start);
         }
-        return result;
     }
 
     /**
@@ -493,34 +1205,39 @@ public class CassandraService {
                                               final String superColumn,
                                               final String columnFamily,
                                               final boolean reversed) {
-        Map<String, String> result = new TreeMap<String, String>();
+        long start = System.nanoTime();
+        try {
+            Map<String, String> result = new TreeMap<String, String>();
 
-        RangeSubSlicesQuery<String, String, String, String> rangeSubSlicesQuery =
-                HFactory.createRangeSubSlicesQuery(_keyspace, SE, SE, SE, SE);
+            RangeSubSlicesQuery<String, String, String, String> rangeSubSlicesQuery =
+                    HFactory.createRangeSubSlicesQuery(_keyspace, SE, SE, SE, SE);
 
-        rangeSubSlicesQuery.setColumnFamily(columnFamily).setKeys(key, key)
-                .setRange(null, null, reversed, MAX_COLUMN_COUNT)
-                .setSuperColumn(superColumn);
+            rangeSubSlicesQuery.setColumnFamily(columnFamily).setKeys(key, key)
+                    .setRange(null, null, reversed, MAX_COLUMN_COUNT)
+                    .setSuperColumn(superColumn);
 
-        OrderedRows<String, String, String> rows = rangeSubSlicesQuery.execute().get();
+            OrderedRows<String, String, String> rows = rangeSubSlicesQuery.execute().get();
 
-        if (null == rows || 0 == rows.getCount()) {
-            return result;
-        }
+            if (null == rows || 0 == rows.getCount()) {
+                return result;
+            }
 
-        // get the row
-        Row<String, String, String> row = rows.getList().get(0);
-        ColumnSlice<String, String> columns = row.getColumnSlice();
+            // get the row
+            Row<String, String, String> row = rows.getList().get(0);
+            ColumnSlice<String, String> columns = row.getColumnSlice();
 
-        if (null == columns) {
-            return result;
-        }
+            if (null == columns) {
+                return result;
+            }
 
-        for (HColumn<String, String> column : columns.getColumns()) {
-            result.put(column.getName(), column.getValue());
-        }
+            for (HColumn<String, String> column : columns.getColumns()) {
+                result.put(column.getName(), column.getValue());
+            }
 
-        return result;
+            return result;
+        } finally {
+            finished(StorageMetrics.SLICE, columnFamily, start);
+        }
     }
 
     /**
@@ -555,43 +1272,47 @@ public class CassandraService {
                                               final String columnFamily,
                                               final String startColumn,
                                               final boolean reversed) {
+        long start = System.nanoTime();
+        try {
+            /*if (StringHelper.IsNullOrEmpty(startColumn)) {
+                return listSubColumns(key, superColumn, columnFamily);
+            }*/
 
-        /*if (StringHelper.IsNullOrEmpty(startColumn)) {
-            return listSubColumns(key, superColumn, columnFamily);
-        }*/
+            Map<String, String> result = new TreeMap<String, String>();
 
-        Map<String, String> result = new TreeMap<String, String>();
+            RangeSubSlicesQuery<String, String, String, String> rangeSubSlicesQuery =
+                    HFactory.createRangeSubSlicesQuery(_keyspace, SE, SE, SE, SE);
 
-        RangeSubSlicesQuery<String, String, String, String> rangeSubSlicesQuery =
-                HFactory.createRangeSubSlicesQuery(_keyspace, SE, SE, SE, SE);
+            rangeSubSlicesQuery.setColumnFamily(columnFamily).setKeys(key, key)
+                    .setRange(startColumn, null, reversed, MAX_COLUMN_COUNT + 1)
+                    .setSuperColumn(superColumn);
 
-        rangeSubSlicesQuery.setColumnFamily(columnFamily).setKeys(key, key)
-                .setRange(startColumn, null, reversed, MAX_COLUMN_COUNT + 1)
-                .setSuperColumn(superColumn);
+            OrderedRows<String, String, String> rows = rangeSubSlicesQuery.execute().get();
 
-        OrderedRows<String, String, String> rows = rangeSubSlicesQuery.execute().get();
+            if (null == rows || 0 == rows.getCount()) {
+                return result;
+            }
 
-        if (null == rows || 0 == rows.getCount()) {
-            return result;
-        }
+            // get the row
+            Row<String, String, String> row = rows.getList().get(0);
+            ColumnSlice<String, String> columns = row.getColumnSlice();
 
-        // get the row
-        Row<String, String, String> row = rows.getList().get(0);
-        ColumnSlice<String, String> columns = row.getColumnSlice();
+            if (null == columns) {
+                return result;
+            }
 
-        if (null == columns) {
-            return result;
-        }
+            for (HColumn<String, String> column : columns.getColumns()) {
+                if (startColumn.equals(column.getName())) {
+                    continue;
+                }
 
-        for (HColumn<String, String> column : columns.getColumns()) {
-            if (startColumn.equals(column.getName())) {
-                continue;
+                result.put(column.getName(), column.getValue());
             }
 
-            result.put(column.getName(), column.getValue());
+            return result;
+        } finally {
+            finished(StorageMetrics.SLICE, columnFamily, start);
         }
-
-        return result;
     }
 
     /**
@@ -605,12 +1326,425 @@ public class CassandraService {
     public int countSubColumns(final String key,
                                final String superColumn,
                                final String columnFamily) {
+        long start = System.nanoTime();
+        try {
+            SubCountQuery<String, String, String> subCountQuery = HFactory.createSubCountQuery(_keyspace, SE, SE, SE);
+            subCountQuery.setColumnFamily(columnFamily).setKey(key).setSuperColumn(superColumn).setRange(null, null,
+                    Integer.MAX_VALUE);
+
+            int count = subCountQuery.execute().get();
+            return count;
+        } finally {
+            finished(StorageMetrics.COUNT, columnFamily, start);
+        }
+    }
 
-        SubCountQuery<String, String, String> subCountQuery = HFactory.createSubCountQuery(_keyspace, SE, SE, SE);
-        subCountQuery.setColumnFamily(columnFamily).setKey(key).setSuperColumn(superColumn).setRange(null, null,
-                Integer.MAX_VALUE);
+    /**
+     * split the whole ring into token ranges holding about keysPerSplit
+     * keys of columnFamily each, as estimated by the nodes.
+     *
+     * @param columnFamily
+     * @param keysPerSplit
+     * @return (start, end] token pairs that together cover the ring
+     */
+    public List<String[]> tokenSplits(final String columnFamily,
+                                      final int keysPerSplit) {
+        final String keyspace = _keyspace.getKeyspaceName();
+        List<TokenRange> ring = operate(new ThriftOperation<List<TokenRange>>(OperationType.META_READ) {
+            public List<TokenRange> call(Cassandra.Client client) throws Exception {
+                return client.describe_ring(keyspace);
+            }
+        });
+
+        List<String[]> splits = new ArrayList<String[]>();
+        for (final TokenRange range : ring) {
+            List<String> tokens = operate(new ThriftOperation<List<String>>(OperationType.META_READ) {
+                public List<String> call(Cassandra.Client client) throws Exception {
+                    return client.describe_splits(columnFamily, range.start_token, range.end_token, keysPerSplit);
+                }
+            });
+            if (tokens.size() < 2) {
+                splits.add(new String[] {range.start_token, range.end_token});
+                continue;
+            }
+            for (int i = 1; i < tokens.size(); i++) {
+                splits.add(new String[] {tokens.get(i - 1), tokens.get(i)});
+            }
+        }
+        return splits;
+    }
 
-        int count = subCountQuery.execute().get();
-        return count;
+    /**
+     * read the rows whose tokens fall in (startToken, endToken].
+     *
+     * @param columnFamily
+     * @param startToken exclusive
+     * @param endToken   inclusive
+     * @param rowCount
+     * @param columnCount the first columns of each row
+     * @return
+     */
+    public List<KeySlice> rangeSlicesByToken(final String columnFamily,
+                                             final String startToken,
+                                             final String endToken,
+                                             final int rowCount,
+                                             final int columnCount) {
+        long start = System.nanoTime();
+        try {
+            return operate(new ThriftOperation<List<KeySlice>>(OperationType.READ) {
+                public List<KeySlice> call(Cassandra.Client client) throws Exception {
+                    KeyRange range = new KeyRange(rowCount);
+                    range.setStart_token(startToken).setEnd_token(endToken);
+                    return client.get_range_slices(new ColumnParent(columnFamily), predicate(EMPTY, columnCount),
+                            range, ConsistencyLevel.ONE);
+                }
+            });
+        } finally {
+            finished(StorageMetrics.RANGE, columnFamily, start);
+        }
+    }
+
+    /**
+     * read count raw columns of a row, starting at startColumn (inclusive).
+     *
+     * @param columnFamily
+     * @param key
+     * @param startColumn
+     * @param count
+     * @return
+     */
+    public List<ColumnOrSuperColumn> sliceRaw(final String columnFamily,
+                                              final ByteBuffer key,
+                                              final ByteBuffer startColumn,
+                                              final int count) {
+        long start = System.nanoTime();
+        try {
+            return operate(new ThriftOperation<List<ColumnOrSuperColumn>>(OperationType.READ) {
+                public List<ColumnOrSuperColumn> call(Cassandra.Client client) throws Exception {
+                    return client.get_slice(key, new ColumnParent(columnFamily), predicate(startColumn, count),
+                            ConsistencyLevel.ONE);
+                }
+            });
+        } finally {
+            finished(StorageMetrics.SLICE, columnFamily, start);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the token of key under the cluster's partitioner
+     */
+    @SuppressWarnings("unchecked")
+    public String tokenOf(final ByteBuffer key) {
+        if (null == _partitioner) {
+            String name = operate(new ThriftOperation<String>(OperationType.META_READ) {
+                public String call(Cassandra.Client client) throws Exception {
+                    return client.describe_partitioner();
+                }
+            });
+            try {
+                _partitioner = FBUtilities.newPartitioner(name);
+            } catch (Exception ex) {
+                throw new IllegalStateException("unknown partitioner: " + name, ex);
+            }
+        }
+        IPartitioner<?> partitioner = _partitioner;
+        return partitioner.getTokenFactory().toString(partitioner.getToken(key));
+    }
+
+    private static SlicePredicate predicate(final ByteBuffer startColumn, final int count) {
+        return new SlicePredicate().setSlice_range(new SliceRange(startColumn, EMPTY, false, count));
+    }
+
+    // reads and writes are timed by the caller, ring metadata is not
+    private <T> T operate(final ThriftOperation<T> operation) {
+        try {
+            _cluster.getConnectionManager().operateWithFailover(operation);
+        } finally {
+            if (OperationType.META_READ == operation.operationType) {
+                untimed();
+            }
+        }
+        return operation.getResult();
+    }
+
+    /**
+     * A raw thrift call run on a pooled connection of this keyspace, for
+     * the few things Hector's query API cannot do.
+     */
+    private abstract class ThriftOperation<T> extends Operation<T> {
+        ThriftOperation(final OperationType type) {
+            super(type, FailoverPolicy.ON_FAIL_TRY_ALL_AVAILABLE, _keyspace.getKeyspaceName(),
+                    _cluster.getCredentials());
+        }
+
+        public T execute(final Cassandra.Client client) {
+            try {
+                return call(client);
+            } catch (Exception ex) {
+                throw XLATE.translate(ex);
+            }
+        }
+
+        abstract T call(Cassandra.Client client) throws Exception;
+    }
+
+    /**
+     * Pages through the rows of a column family in token order. Each page
+     * after the first starts at the last key of the page before, which is
+     * read again and dropped. Not thread safe.
+     */
+    public class RowIterator implements Iterator<Map.Entry<String, Map<String, String>>> {
+        private final String _columnFamily;
+        private final int _pageSize;
+        private final int _columnCount;
+        private final boolean _prefetch;
+        private Iterator<Map.Entry<String, Map<String, String>>> _page;
+        private Future<RangePage> _nextPage;
+        private String _lastKey = null;
+        private boolean _exhausted = false;
+        private Map.Entry<String, Map<String, String>> _next;
+        private int _pages = 0;
+
+        private RowIterator(final String columnFamily,
+                            final int pageSize,
+                            final int columnCount,
+                            final boolean prefetch) {
+            if (pageSize < 1) {
+                throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+            }
+            _columnFamily = columnFamily;
+            _pageSize = pageSize;
+            _columnCount = columnCount;
+            _prefetch = prefetch;
+            _page = Collections.<Map.Entry<String, Map<String, String>>>emptyList().iterator();
+        }
+
+        public boolean hasNext() {
+            while (null == _next) {
+                if (_page.hasNext()) {
+                    Map.Entry<String, Map<String, String>> row = _page.next();
+                    if (_columnCount > 0 && row.getValue().isEmpty()) {
+                        continue;
+                    }
+                    _next = row;
+                } else if (_exhausted) {
+                    return false;
+                } else {
+                    _page = nextPage().iterator();
+                }
+            }
+            return true;
+        }
+
+        public Map.Entry<String, Map<String, String>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Map<String, String>> row = _next;
+            _next = null;
+            return row;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the number of get_range_slices calls made so far
+         */
+        public int getPages() {
+            return _pages;
+        }
+
+        private List<Map.Entry<String, Map<String, String>>> nextPage() {
+            RangePage page;
+            if (null != _nextPage) {
+                page = await(_nextPage);
+                _nextPage = null;
+            } else {
+                page = fetch(_lastKey);
+            }
+            _pages++;
+
+            if (page._last) {
+                _exhausted = true;
+            } else {
+                final String startKey = page._rows.get(page._rows.size() - 1).getKey();
+                _lastKey = startKey;
+                if (_prefetch) {
+                    _nextPage = _scanExecutor.submit(new Callable<RangePage>() {
+                        public RangePage call() {
+                            return fetch(startKey);
+                        }
+                    });
+                }
+            }
+            return page._rows;
+        }
+
+        private RangePage fetch(final String startKey) {
+            int rowCount = null == startKey ? _pageSize : _pageSize + 1;
+            List<Map.Entry<String, Map<String, String>>> rows =
+                    rangePage(_columnFamily, startKey, rowCount, _columnCount);
+            boolean last = rows.size() < rowCount;
+            if (null != startKey && !rows.isEmpty() && rows.get(0).getKey().equals(startKey)) {
+                rows = rows.subList(1, rows.size());
+            }
+            return new RangePage(rows, last || rows.isEmpty());
+        }
+    }
+
+    private static class RangePage {
+        private final List<Map.Entry<String, Map<String, String>>> _rows;
+        // true if nothing follows this page
+        private final boolean _last;
+
+        RangePage(final List<Map.Entry<String, Map<String, String>>> rows, final boolean last) {
+            _rows = rows;
+            _last = last;
+        }
+    }
+
+    /**
+     * A group of column writes and deletes sent with as few batch_mutate
+     * calls as possible. Not thread safe, use one per request.
+     *
+     * Hector's Mutator forgets its mutations as it sends them, so the batch
+     * keeps its own until they have gone through. If execute() throws, what
+     * it did not send is still pending and calling it again resends that.
+     */
+    public class Batch extends AbstractBatch {
+        private final int _maxSize;
+        private final List<Pending> _pending = new ArrayList<Pending>();
+        private int _roundTrips = 0;
+        // what the pending mutations write to, MIXED if more than one
+        private String _columnFamily;
+        // the SingleFlight stripes of the rows they write to
+        private int[] _written = new int[16];
+
+        private Batch(final int maxSize) {
+            _maxSize = maxSize;
+        }
+
+        /**
+         * queue an update of the value in the column
+         *
+         * @param key
+         * @param value
+         * @param columnName
+         * @param columnFamily
+         * @return
+         */
+        public Batch updateColumn(final String key,
+                                  final String value,
+                                  final String columnName,
+                                  final String columnFamily) {
+            final HColumn<String, String> column = HFactory.createStringColumn(columnName, value);
+            return added(key, columnFamily, new Pending() {
+                void addTo(final Mutator<String> mutator) {
+                    mutator.addInsertion(key, columnFamily, column);
+                }
+            });
+        }
+
+        /**
+         * queue an update of a column whose name is not a string
+         *
+         * @param key
+         * @param value
+         * @param columnName
+         * @param nameSerializer
+         * @param columnFamily
+         * @return
+         */
+        public <N> Batch updateColumn(final String key,
+                                      final String value,
+                                      final N columnName,
+                                      final Serializer<N> nameSerializer,
+                                      final String columnFamily) {
+            final HColumn<N, String> column = HFactory.createColumn(columnName, value, nameSerializer, SE);
+            return added(key, columnFamily, new Pending() {
+                void addTo(final Mutator<String> mutator) {
+                    mutator.addInsertion(key, columnFamily, column);
+                }
+            });
+        }
+
+        /**
+         * queue a delete of the column
+         *
+         * @param key
+         * @param columnName
+         * @param columnFamily
+         * @return
+         */
+        public Batch deleteColumn(final String key,
+                                  final String columnName,
+                                  final String columnFamily) {
+            return added(key, columnFamily, new Pending() {
+                void addTo(final Mutator<String> mutator) {
+                    mutator.addDeletion(key, columnFamily, columnName, SE);
+                }
+            });
+        }
+
+        /**
+         * send whatever is still pending.
+         *
+         * @return the number of batch_mutate calls this batch made
+         */
+        public int execute() {
+            flush();
+            executed();
+            return _roundTrips;
+        }
+
+        private Batch added(final String key, final String columnFamily, final Pending pending) {
+            int size = _pending.size();
+            if (size == _written.length) {
+                _written = Arrays.copyOf(_written, 2 * _written.length);
+            }
+            _written[size] = _flights.stripe(columnFamily, key);
+            if (null == _columnFamily) {
+                _columnFamily = columnFamily;
+            } else if (!_columnFamily.equals(columnFamily)) {
+                _columnFamily = StorageMetrics.MIXED;
+            }
+            _pending.add(pending);
+            if (_pending.size() >= _maxSize) {
+                flush();
+            }
+            return this;
+        }
+
+        private void flush() {
+            if (_pending.isEmpty()) {
+                return;
+            }
+            Mutator<String> mutator = HFactory.createMutator(_keyspace, SE);
+            for (Pending pending : _pending) {
+                pending.addTo(mutator);
+            }
+            long start = System.nanoTime();
+            try {
+                mutator.execute();
+            } finally {
+                for (int i = 0; i < _pending.size(); i++) {
+                    _flights.written(_written[i]);
+                }
+                finished(StorageMetrics.MUTATE, _columnFamily, start);
+            }
+            _pending.clear();
+            _columnFamily = null;
+            _roundTrips++;
+        }
+    }
+
+    /**
+     * one mutation of a Batch, added to a fresh Mutator on each send.
+     */
+    private abstract static class Pending {
+        abstract void addTo(Mutator<String> mutator);
     }
 }
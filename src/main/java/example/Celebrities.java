@@ -0,0 +1,129 @@
+package example;
+
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Celebrities are the accounts with more followers than it is worth copying
+ *  every tweet to. Their tweets only go to their own Userline, and readers
+ *  merge those Userlines into their Timeline when they read it.
+ *
+ * The set lives in a row of its own Celebrities column family, one column
+ *  per account, and is cached here for refreshMillis at a time. An account
+ *  stays a celebrity once marked, so none of its tweets can drop out of a
+ *  reader's Timeline if its follower count later dips.
+ *
+ * Follower counts come from SocialGraph, which fan-out reads the same row
+ *  through anyway, so checking a poster costs no read of its own.
+ */
+public class Celebrities {
+
+    private static final Logger LOG = Logger.getLogger(Celebrities.class);
+
+    public static final String ROW = "all";
+
+    // columns read at a time when reloading the set
+    private static final int PAGE_SIZE = 1000;
+
+    private final Storage _storage;
+    private final SocialGraph _graph;
+    private final int _threshold;
+    private final long _refreshMillis;
+
+    private volatile Set<String> _unames = Collections.emptySet();
+    private volatile long _loadedAt = 0;
+
+    /**
+     * @param storage
+     * @param graph         keeping Followers rows of at least threshold
+     * @param threshold     follower count above which an account stops being fanned out, 0 to never stop
+     * @param refreshMillis how long a loaded set is trusted
+     */
+    public Celebrities(final Storage storage,
+                       final SocialGraph graph,
+                       final int threshold,
+                       final long refreshMillis) {
+        if (threshold > graph.getMaxFollowers()) {
+            throw new IllegalArgumentException("threshold " + threshold
+                    + " is past the longest Followers row the graph keeps, " + graph.getMaxFollowers());
+        }
+        _storage = storage;
+        _graph = graph;
+        _threshold = threshold;
+        _refreshMillis = refreshMillis;
+    }
+
+    public boolean isEnabled() {
+        return _threshold > 0;
+    }
+
+    public int getThreshold() {
+        return _threshold;
+    }
+
+    public boolean contains(final String uname) {
+        return getUnames().contains(uname);
+    }
+
+    /**
+     * @return the current celebrities, never null
+     */
+    public Set<String> getUnames() {
+        if (!isEnabled()) {
+            return Collections.emptySet();
+        }
+        if (System.currentTimeMillis() - _loadedAt > _refreshMillis) {
+            reload();
+        }
+        return _unames;
+    }
+
+    /**
+     * decide whether a poster's tweets should skip the follower fan-out,
+     * marking the poster as a celebrity when it crosses the threshold.
+     *
+     * @param uname
+     * @return
+     */
+    public boolean checkPoster(final String uname) {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (contains(uname)) {
+            return true;
+        }
+        // null when there are more than the graph keeps, and so than threshold
+        SocialGraph.Users followers = _graph.followers(uname);
+        if (null != followers && followers.size() <= _threshold) {
+            return false;
+        }
+        _storage.updateColumn(ROW, String.valueOf(System.currentTimeMillis()), uname, Base.CELEBRITIES);
+        LOG.info(uname + " has more than " + _threshold + " followers, switching to read-time merge");
+        Set<String> unames = new HashSet<String>(_unames);
+        unames.add(uname);
+        _unames = Collections.unmodifiableSet(unames);
+        return true;
+    }
+
+    private synchronized void reload() {
+        if (System.currentTimeMillis() - _loadedAt <= _refreshMillis) {
+            return;
+        }
+        try {
+            Set<String> unames = new HashSet<String>();
+            Slice<String> slice = _storage.slice(ROW, Base.CELEBRITIES, null, PAGE_SIZE, false);
+            unames.addAll(slice.getColumns().keySet());
+            while (slice.hasNext()) {
+                slice = _storage.slice(ROW, Base.CELEBRITIES, slice.getNext(), PAGE_SIZE, false);
+                unames.addAll(slice.getColumns().keySet());
+            }
+            _unames = Collections.unmodifiableSet(unames);
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to reload celebrities, keeping " + _unames.size() + " cached", ex);
+        }
+        _loadedAt = System.currentTimeMillis();
+    }
+}
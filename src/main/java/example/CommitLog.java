@@ -0,0 +1,277 @@
+package example;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * CommitLog is the write-ahead log of EmbeddedStorage.
+ *
+ * Records are appended to an in-memory buffer. One syncer thread writes
+ *  the buffer out and fsyncs it, and every writer that appended while a
+ *  sync was running is made durable by the next one, so a burst of writes
+ *  costs a few fsyncs rather than one each (group commit).
+ *
+ * The log is a series of numbered segment files. roll() starts a new
+ *  segment, so that a snapshot can be taken after it and the older ones
+ *  deleted. Each record is its length, its CRC32 and its bytes. A torn
+ *  record at the end of a segment, from a crash mid-write, ends replay of
+ *  that segment.
+ */
+public class CommitLog {
+
+    private static final Logger LOG = Logger.getLogger(CommitLog.class);
+
+    private static final String PREFIX = "commitlog-";
+    private static final String SUFFIX = ".log";
+
+    private final File _dir;
+    private final boolean _fsync;
+    private final Thread _syncer;
+
+    private FileChannel _channel;
+    private long _segment;
+    private ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+    private long _appended = 0;
+    private long _synced = 0;
+    private IOException _failure;
+    private boolean _closed = false;
+
+    /**
+     * @param dir     where the segments live
+     * @param segment the number of the first segment to write, above every existing one
+     * @param fsync   false to leave flushing to the OS, for throwaway data
+     */
+    public CommitLog(final File dir, final long segment, final boolean fsync) throws IOException {
+        _dir = dir;
+        _fsync = fsync;
+        _segment = segment;
+        _channel = open(segment);
+        _syncer = new Thread(new Runnable() {
+            public void run() {
+                syncLoop();
+            }
+        }, "commitlog-sync");
+        _syncer.setDaemon(true);
+        _syncer.start();
+    }
+
+    private FileChannel open(final long segment) throws IOException {
+        return new RandomAccessFile(segmentFile(_dir, segment), "rw").getChannel();
+    }
+
+    private static File segmentFile(final File dir, final long segment) {
+        return new File(dir, PREFIX + segment + SUFFIX);
+    }
+
+    /**
+     * @param dir
+     * @return the numbers of the segments in dir, oldest first
+     */
+    public static List<Long> segments(final File dir) {
+        List<Long> segments = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (null == names) {
+            return segments;
+        }
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * read back the records of one segment, stopping at the first torn one.
+     *
+     * @param dir
+     * @param segment
+     * @return
+     */
+    public static List<byte[]> read(final File dir, final long segment) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        File file = segmentFile(dir, segment);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                long crc;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    crc = in.readLong();
+                    if (length < 0 || length > file.length()) {
+                        LOG.warn("Bad record length in " + file + ", ignoring the rest of it");
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (crc != crc(record)) {
+                    LOG.warn("Torn record in " + file + ", ignoring the rest of it");
+                    break;
+                }
+                records.add(record);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static long crc(final byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return crc.getValue();
+    }
+
+    /**
+     * queue a record for the next sync.
+     *
+     * @param record
+     * @return the position to pass to sync()
+     */
+    public synchronized long append(final byte[] record) throws IOException {
+        if (_closed) {
+            throw new IOException("commit log is closed");
+        }
+        DataOutputStream out = new DataOutputStream(_pending);
+        out.writeInt(record.length);
+        out.writeLong(crc(record));
+        out.write(record);
+        _appended += 12 + record.length;
+        notifyAll();
+        return _appended;
+    }
+
+    /**
+     * wait until everything up to position is on disk.
+     *
+     * @param position
+     */
+    public synchronized void sync(final long position) throws IOException {
+        boolean interrupted = false;
+        while (_synced < position) {
+            if (null != _failure) {
+                throw new IOException("commit log failed", _failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            ByteArrayOutputStream pending;
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                while (0 == _pending.size() && !_closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (0 == _pending.size()) {
+                    return;
+                }
+                pending = _pending;
+                _pending = new ByteArrayOutputStream(Math.max(32, pending.size()));
+                channel = _channel;
+                target = _appended;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (_fsync) {
+                    channel.force(false);
+                }
+            } catch (IOException ex) {
+                LOG.error("Unable to write the commit log", ex);
+                synchronized (this) {
+                    _failure = ex;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                _synced = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * finish the current segment and start the next one.
+     *
+     * @return the number of the new segment, every record appended
+     *  before the call is in an older one
+     */
+    public synchronized long roll() throws IOException {
+        sync(_appended);
+        _channel.close();
+        _segment++;
+        _channel = open(_segment);
+        return _segment;
+    }
+
+    /**
+     * delete the segments older than segment.
+     *
+     * @param segment
+     */
+    public void deleteBefore(final long segment) {
+        for (long old : segments(_dir)) {
+            if (old < segment && !segmentFile(_dir, old).delete()) {
+                LOG.warn("Unable to delete " + segmentFile(_dir, old));
+            }
+        }
+    }
+
+    /**
+     * sync what is pending and stop.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            sync(_appended);
+            _closed = true;
+            notifyAll();
+        }
+        try {
+            _syncer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        _channel.close();
+    }
+}
@@ -0,0 +1,209 @@
+package example;
+
+import java.util.Arrays;
+
+/**
+ * DeltaIntSet is an immutable sorted set of non-negative ints kept as the
+ *  gaps between them, each a varint, so a set of user ids that are close
+ *  together takes one or two bytes an id.
+ *
+ * Every SKIP-th id is also kept uncompressed, so contains() decodes at most
+ *  SKIP gaps. A Cursor walks the ids without allocating anything per id.
+ *  Changes return a new set and leave this one alone.
+ */
+public final class DeltaIntSet {
+
+    public static final DeltaIntSet EMPTY = new DeltaIntSet(new byte[0], 0, new int[0], new int[0]);
+
+    private static final int SKIP = 64;
+
+    // the first id, then the gap to each next one
+    private final byte[] _bytes;
+    private final int _size;
+    // every SKIP-th id, and where the gap to the id after it starts
+    private final int[] _skipIds;
+    private final int[] _skipOffsets;
+
+    private DeltaIntSet(final byte[] bytes, final int size, final int[] skipIds, final int[] skipOffsets) {
+        _bytes = bytes;
+        _size = size;
+        _skipIds = skipIds;
+        _skipOffsets = skipOffsets;
+    }
+
+    /**
+     * @param ids    in any order, repeats allowed
+     * @param length how many of ids to take
+     * @return
+     */
+    public static DeltaIntSet of(final int[] ids, final int length) {
+        int[] sorted = Arrays.copyOf(ids, length);
+        Arrays.sort(sorted);
+        return encode(sorted, dedupe(sorted, length));
+    }
+
+    // sorted[0, length) must be sorted, without repeats
+    private static DeltaIntSet encode(final int[] sorted, final int length) {
+        if (0 == length) {
+            return EMPTY;
+        }
+        if (sorted[0] < 0) {
+            throw new IllegalArgumentException("negative id: " + sorted[0]);
+        }
+        byte[] bytes = new byte[5 * length];
+        int[] skipIds = new int[(length + SKIP - 1) / SKIP];
+        int[] skipOffsets = new int[skipIds.length];
+        int pos = 0;
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            for (int gap = sorted[i] - previous; ; gap >>>= 7) {
+                if (gap < 0x80) {
+                    bytes[pos++] = (byte) gap;
+                    break;
+                }
+                bytes[pos++] = (byte) (gap | 0x80);
+            }
+            if (0 == i % SKIP) {
+                skipIds[i / SKIP] = sorted[i];
+                skipOffsets[i / SKIP] = pos;
+            }
+            previous = sorted[i];
+        }
+        return new DeltaIntSet(Arrays.copyOf(bytes, pos), length, skipIds, skipOffsets);
+    }
+
+    // squeeze repeats out of sorted[0, length), returning the new length
+    private static int dedupe(final int[] sorted, final int length) {
+        int unique = 0;
+        for (int i = 0; i < length; i++) {
+            if (0 == unique || sorted[i] != sorted[unique - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return unique;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return 0 == _size;
+    }
+
+    public boolean contains(final int id) {
+        int skip = Arrays.binarySearch(_skipIds, id);
+        if (skip >= 0) {
+            return true;
+        }
+        skip = -skip - 2;
+        if (skip < 0) {
+            // smaller than the first id
+            return false;
+        }
+        int pos = _skipOffsets[skip];
+        int value = _skipIds[skip];
+        int end = Math.min(_size, (skip + 1) * SKIP);
+        for (int i = skip * SKIP + 1; i < end; i++) {
+            int gap = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = _bytes[pos++];
+                gap |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            value += gap;
+            if (value >= id) {
+                return value == id;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the ids, in order
+     */
+    public int[] toArray() {
+        int[] ids = new int[_size];
+        Cursor cursor = cursor();
+        for (int i = 0; cursor.next(); i++) {
+            ids[i] = cursor.id();
+        }
+        return ids;
+    }
+
+    /**
+     * @param ids in any order
+     * @return this set with ids added, or this if they all were in it already
+     */
+    public DeltaIntSet withAll(final int... ids) {
+        int[] merged = Arrays.copyOf(toArray(), _size + ids.length);
+        System.arraycopy(ids, 0, merged, _size, ids.length);
+        Arrays.sort(merged);
+        int length = dedupe(merged, merged.length);
+        return length == _size ? this : encode(merged, length);
+    }
+
+    /**
+     * @param ids in any order
+     * @return this set without ids, or this if none of them were in it
+     */
+    public DeltaIntSet withoutAll(final int... ids) {
+        int[] removed = ids.clone();
+        Arrays.sort(removed);
+        int[] kept = new int[_size];
+        int length = 0;
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            if (Arrays.binarySearch(removed, cursor.id()) < 0) {
+                kept[length++] = cursor.id();
+            }
+        }
+        return length == _size ? this : encode(kept, length);
+    }
+
+    public long getSizeBytes() {
+        return _bytes.length + 8L * _skipIds.length;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Walks the ids in order: while (cursor.next()) { ... cursor.id() ... }
+     */
+    public final class Cursor {
+        private int _pos;
+        private int _index;
+        private int _id;
+
+        private Cursor() {
+        }
+
+        /**
+         * @return false once there are no more ids
+         */
+        public boolean next() {
+            if (_index == _size) {
+                return false;
+            }
+            int gap = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = _bytes[_pos++];
+                gap |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            _id += gap;
+            _index++;
+            return true;
+        }
+
+        public int id() {
+            return _id;
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package example;
+
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.ddl.ComparatorType;
+import me.prettyprint.hector.api.exceptions.HInvalidRequestException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EmbeddedStorage keeps the column families in this JVM, for running the
+ *  whole app on one box: perf tests, development and small deployments.
+ *
+ * Each column family is a ConcurrentSkipListMap of rows, and each row a
+ *  ConcurrentSkipListMap of columns sorted by the family's comparator, so
+ *  reads take no locks. Writes are serialized, appended to a CommitLog and
+ *  applied, and return once the log has been synced; concurrent writers
+ *  share fsyncs. A batch is one log record, so it survives a crash whole or
+ *  not at all.
+ *
+ * Every snapshotMillis the log is rolled and the maps are written out to a
+ *  snapshot file, after which the older segments are deleted. The snapshot
+ *  runs alongside writes, so it may hold some of the writes made after the
+ *  roll too. That is harmless, because every write sets or deletes a whole
+ *  column and replaying the newer segments over it ends in the same state.
+ *
+ * On start the newest snapshot is loaded and the segments after it are
+ *  replayed. Failures surface as HectorExceptions, as from CassandraService.
+ */
+public class EmbeddedStorage extends AbstractStorage {
+
+    private static final Logger LOG = Logger.getLogger(EmbeddedStorage.class);
+
+    private static final byte CREATE = 1;
+    private static final byte UPDATE = 2;
+    private static final byte DELETE = 3;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".db";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int SNAPSHOT_MAGIC = 0x54574a31;
+    private static final byte FAMILY = 'F';
+    private static final byte ROW = 'R';
+    private static final byte COLUMN = 'C';
+    private static final byte END = 0;
+
+    private static final Comparator<ByteBuffer> BYTES = new Comparator<ByteBuffer>() {
+        public int compare(ByteBuffer a, ByteBuffer b) {
+            int length = Math.min(a.remaining(), b.remaining());
+            for (int i = 0; i < length; i++) {
+                int x = a.get(a.position() + i) & 0xff;
+                int y = b.get(b.position() + i) & 0xff;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return a.remaining() - b.remaining();
+        }
+    };
+
+    private static final Comparator<ByteBuffer> LONGS = new Comparator<ByteBuffer>() {
+        public int compare(ByteBuffer a, ByteBuffer b) {
+            if (8 == a.remaining() && 8 == b.remaining()) {
+                return Long.compare(a.getLong(a.position()), b.getLong(b.position()));
+            }
+            return BYTES.compare(a, b);
+        }
+    };
+
+    private final File _dir;
+    private final ConcurrentMap<String, Family> _families = new ConcurrentHashMap<String, Family>();
+    private final Object _writeLock = new Object();
+    private final Object _snapshotLock = new Object();
+    private final CommitLog _log;
+    private final ScheduledExecutorService _snapshotter;
+
+    /**
+     * open the data in dir, creating it if there is none.
+     *
+     * @param dir
+     * @param fsync          false to leave flushing to the OS, for throwaway data
+     * @param snapshotMillis how often to snapshot and drop old log segments, 0 for never
+     */
+    public EmbeddedStorage(final File dir,
+                           final boolean fsync,
+                           final long snapshotMillis) throws IOException {
+        _dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        _log = new CommitLog(dir, recover(), fsync);
+        // fold what was replayed into a snapshot, so the next start is quick
+        snapshot();
+
+        _snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "embedded-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (snapshotMillis > 0) {
+            _snapshotter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        snapshot();
+                    } catch (Exception ex) {
+                        LOG.error("Unable to snapshot " + _dir, ex);
+                    }
+                }
+            }, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * snapshot and close the log, called when the application goes away.
+     */
+    public void shutdown() {
+        _snapshotter.shutdownNow();
+        try {
+            snapshot();
+        } catch (IOException ex) {
+            LOG.error("Unable to snapshot " + _dir + ", the log will be replayed on the next start", ex);
+        }
+        try {
+            _log.close();
+        } catch (IOException ex) {
+            LOG.error("Unable to close the commit log", ex);
+        }
+        super.shutdown();
+    }
+
+    //
+    // Recovery and snapshots
+    //
+
+    private long recover() throws IOException {
+        long snapshot = -1;
+        for (String name : _dir.list()) {
+            if (name.endsWith(TMP_SUFFIX)) {
+                // a snapshot that never finished
+                new File(_dir, name).delete();
+            } else if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+                snapshot = Math.max(snapshot, Long.parseLong(
+                        name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())));
+            }
+        }
+        if (snapshot >= 0) {
+            loadSnapshot(snapshotFile(snapshot));
+        }
+
+        long next = Math.max(0, snapshot);
+        int replayed = 0;
+        for (long segment : CommitLog.segments(_dir)) {
+            if (segment >= snapshot) {
+                for (byte[] record : CommitLog.read(_dir, segment)) {
+                    for (Mutation mutation : decode(record)) {
+                        apply(mutation);
+                    }
+                    replayed++;
+                }
+            }
+            next = Math.max(next, segment + 1);
+        }
+        LOG.info("Opened " + _dir + ": " + _families.size() + " column families, "
+                + replayed + " log records replayed");
+        return next;
+    }
+
+    private File snapshotFile(final long segment) {
+        return new File(_dir, SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * write every column family out and drop the log segments it covers.
+     */
+    public void snapshot() throws IOException {
+        synchronized (_snapshotLock) {
+            long segment;
+            synchronized (_writeLock) {
+                segment = _log.roll();
+            }
+
+            File tmp = new File(_dir, SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX + TMP_SUFFIX);
+            FileOutputStream file = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                for (Map.Entry<String, Family> family : _families.entrySet()) {
+                    out.writeByte(FAMILY);
+                    writeString(out, family.getKey());
+                    writeString(out, family.getValue()._comparator.getClassName());
+                    for (Map.Entry<String, ConcurrentSkipListMap<ByteBuffer, String>> row
+                            : family.getValue()._rows.entrySet()) {
+                        out.writeByte(ROW);
+                        writeString(out, row.getKey());
+                        for (Map.Entry<ByteBuffer, String> column : row.getValue().entrySet()) {
+                            out.writeByte(COLUMN);
+                            writeBytes(out, column.getKey());
+                            writeString(out, column.getValue());
+                        }
+                    }
+                }
+                out.writeByte(END);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            File snapshot = snapshotFile(segment);
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Unable to rename " + tmp + " to " + snapshot);
+            }
+
+            _log.deleteBefore(segment);
+            for (String name : _dir.list()) {
+                if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)
+                        && !name.equals(snapshot.getName())) {
+                    new File(_dir, name).delete();
+                }
+            }
+        }
+    }
+
+    private void loadSnapshot(final File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (SNAPSHOT_MAGIC != in.readInt()) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            Family family = null;
+            ConcurrentSkipListMap<ByteBuffer, String> row = null;
+            for (byte tag = in.readByte(); END != tag; tag = in.readByte()) {
+                if (FAMILY == tag) {
+                    String name = readString(in);
+                    family = new Family(ComparatorType.getByClassName(readString(in)));
+                    _families.put(name, family);
+                } else if (ROW == tag) {
+                    row = family.write(readString(in));
+                } else if (COLUMN == tag) {
+                    row.put(readBytes(in), readString(in));
+                } else {
+                    throw new IOException(file + " is corrupt");
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    //
+    // Writes
+    //
+
+    private void write(final List<Mutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        // refuse unknown column families before anything is logged
+        for (Mutation mutation : mutations) {
+            if (CREATE != mutation._op) {
+                family(mutation._columnFamily);
+            }
+        }
+        long start = System.nanoTime();
+        byte[] record = encode(mutations);
+        try {
+            long position;
+            synchronized (_writeLock) {
+                position = _log.append(record);
+                for (Mutation mutation : mutations) {
+                    apply(mutation);
+                }
+            }
+            _log.sync(position);
+        } catch (IOException ex) {
+            throw new HectorException("Unable to write the commit log", ex);
+        } finally {
+            getMetrics().record(StorageMetrics.MUTATE, columnFamily(mutations), start);
+        }
+    }
+
+    private static String columnFamily(final List<Mutation> mutations) {
+        String columnFamily = mutations.get(0)._columnFamily;
+        for (Mutation mutation : mutations) {
+            if (!columnFamily.equals(mutation._columnFamily)) {
+                return StorageMetrics.MIXED;
+            }
+        }
+        return columnFamily;
+    }
+
+    private void apply(final Mutation mutation) {
+        if (CREATE == mutation._op) {
+            _families.putIfAbsent(mutation._columnFamily,
+                    new Family(ComparatorType.getByClassName(mutation._key)));
+            return;
+        }
+        Family family = _families.get(mutation._columnFamily);
+        if (null == family) {
+            LOG.warn("Skipping a write to unknown column family " + mutation._columnFamily);
+            return;
+        }
+        if (UPDATE == mutation._op) {
+            family.write(mutation._key).put(mutation._name, mutation._value);
+        } else {
+            ConcurrentSkipListMap<ByteBuffer, String> row = family._rows.get(mutation._key);
+            if (null != row) {
+                row.remove(mutation._name);
+                if (row.isEmpty()) {
+                    family._rows.remove(mutation._key, row);
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(final List<Mutation> mutations) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * mutations.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(mutations.size());
+            for (Mutation mutation : mutations) {
+                out.writeByte(mutation._op);
+                writeString(out, mutation._columnFamily);
+                writeString(out, mutation._key);
+                if (CREATE != mutation._op) {
+                    writeBytes(out, mutation._name);
+                }
+                if (UPDATE == mutation._op) {
+                    writeString(out, mutation._value);
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Mutation> decode(final byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int count = in.readInt();
+        List<Mutation> mutations = new ArrayList<Mutation>(count);
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            String columnFamily = readString(in);
+            String key = readString(in);
+            ByteBuffer name = CREATE == op ? null : readBytes(in);
+            String value = UPDATE == op ? readString(in) : null;
+            mutations.add(new Mutation(op, columnFamily, key, name, value));
+        }
+        return mutations;
+    }
+
+    private static void writeString(final DataOutput out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(final DataOutput out, final ByteBuffer value) throws IOException {
+        out.writeInt(value.remaining());
+        for (int i = value.position(); i < value.limit(); i++) {
+            out.writeByte(value.get(i));
+        }
+    }
+
+    private static ByteBuffer readBytes(final DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    public void createColumnFamilyIfAbsent(final String columnFamily,
+                                           final ComparatorType comparator) {
+        if (!_families.containsKey(columnFamily)) {
+            write(Collections.singletonList(new Mutation(CREATE, columnFamily, comparator.getClassName(),
+                    null, null)));
+        }
+    }
+
+    public void updateColumn(final String key,
+                             final String value,
+                             final String columnName,
+                             final String columnFamily) {
+        write(Collections.singletonList(new Mutation(UPDATE, columnFamily, key, SE.toByteBuffer(columnName),
+                value)));
+    }
+
+    public void deleteColumn(final String key,
+                             final String columnName,
+                             final String columnFamily) {
+        write(Collections.singletonList(new Mutation(DELETE, columnFamily, key, SE.toByteBuffer(columnName),
+                null)));
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    //
+    // Reads
+    //
+
+    private Family family(final String columnFamily) {
+        Family family = _families.get(columnFamily);
+        if (null == family) {
+            throw new HInvalidRequestException("unconfigured columnfamily " + columnFamily);
+        }
+        return family;
+    }
+
+    private NavigableMap<ByteBuffer, String> row(final String key, final String columnFamily) {
+        NavigableMap<ByteBuffer, String> row = family(columnFamily)._rows.get(key);
+        return null == row ? Collections.<ByteBuffer, String>emptyNavigableMap() : row;
+    }
+
+    // the columns of row from start on, backwards if reversed
+    private static NavigableMap<ByteBuffer, String> range(final NavigableMap<ByteBuffer, String> row,
+                                                          final ByteBuffer start,
+                                                          final boolean inclusive,
+                                                          final boolean reversed) {
+        NavigableMap<ByteBuffer, String> columns = reversed ? row.descendingMap() : row;
+        return null == start ? columns : columns.tailMap(start, inclusive);
+    }
+
+    // null and the empty name both mean the edge of the row, as in a Cassandra slice range
+    private static <N> ByteBuffer toBytes(final N name, final Serializer<N> nameSerializer) {
+        if (null == name) {
+            return null;
+        }
+        ByteBuffer bytes = nameSerializer.toByteBuffer(name);
+        return 0 == bytes.remaining() ? null : bytes;
+    }
+
+    private static <N> LinkedHashMap<N, String> take(final NavigableMap<ByteBuffer, String> columns,
+                                                     final int count,
+                                                     final Serializer<N> nameSerializer) {
+        LinkedHashMap<N, String> results = new LinkedHashMap<N, String>();
+        for (Map.Entry<ByteBuffer, String> column : columns.entrySet()) {
+            if (results.size() == count) {
+                break;
+            }
+            results.put(nameSerializer.fromByteBuffer(column.getKey().duplicate()), column.getValue());
+        }
+        return results;
+    }
+
+    public String readColumn(final String key,
+                             final String columnName,
+                             final String columnFamily) {
+        long start = System.nanoTime();
+        try {
+            String value = row(key, columnFamily).get(SE.toByteBuffer(columnName));
+            return null == value ? "" : value;
+        } finally {
+            getMetrics().record(StorageMetrics.READ, columnFamily, start);
+        }
+    }
+
+    public HashMap<String, String> readColumns(final String key,
+                                               final String[] columns,
+                                               final String columnFamily) {
+        long start = System.nanoTime();
+        try {
+            NavigableMap<ByteBuffer, String> row = row(key, columnFamily);
+            HashMap<String, String> results = new HashMap<String, String>();
+            for (String column : columns) {
+                String value = row.get(SE.toByteBuffer(column));
+                results.put(column, null == value ? "" : value);
+            }
+            return results;
+        } finally {
+            getMetrics().record(StorageMetrics.READ, columnFamily, start);
+        }
+    }
+
+    public LinkedHashMap<String, String> listColumns(final String key,
+                                                     final String columnFamily,
+                                                     final String startColumn,
+                                                     final int count,
+                                                     final boolean reversed) {
+        long start = System.nanoTime();
+        try {
+            return take(range(row(key, columnFamily), toBytes(startColumn, SE), true, reversed), count, SE);
+        } finally {
+            getMetrics().record(StorageMetrics.SLICE, columnFamily, start);
+        }
+    }
+
+    public LinkedHashMap<String, Map<String, String>> multiGetColumns(final List<String> keys,
+                                                                      final String[] columnNames,
+                                                                      final String columnFamily) {
+        long start = System.nanoTime();
+        try {
+            LinkedHashMap<String, Map<String, String>> results = new LinkedHashMap<String, Map<String, String>>();
+            for (String key : keys) {
+                NavigableMap<ByteBuffer, String> row = row(key, columnFamily);
+                if (null == columnNames) {
+                    results.put(key, take(row, MAX_COLUMN_COUNT, SE));
+                    continue;
+                }
+                Map<String, String> columns = new LinkedHashMap<String, String>();
+                for (String columnName : columnNames) {
+                    String value = row.get(SE.toByteBuffer(columnName));
+                    if (null != value) {
+                        columns.put(columnName, value);
+                    }
+                }
+                results.put(key, columns);
+            }
+            return results;
+        } finally {
+            getMetrics().record(StorageMetrics.MULTIGET, columnFamily, start);
+        }
+    }
+
+    public <N> LinkedHashMap<String, Map<N, String>> multiGetSlices(final List<String> keys,
+                                                                    final String columnFamily,
+                                                                    final N afterColumn,
+                                                                    final int count,
+                                                                    final boolean reversed,
+                                                                    final Serializer<N> nameSerializer) {
+        long start = System.nanoTime();
+        try {
+            ByteBuffer after = toBytes(afterColumn, nameSerializer);
+            LinkedHashMap<String, Map<N, String>> results = new LinkedHashMap<String, Map<N, String>>();
+            for (String key : keys) {
+                results.put(key, take(range(row(key, columnFamily), after, false, reversed), count, nameSerializer));
+            }
+            return results;
+        } finally {
+            getMetrics().record(StorageMetrics.MULTIGET, columnFamily, start);
+        }
+    }
+
+    public int countColumns(final String key,
+                            final String columnFamily) {
+        long start = System.nanoTime();
+        try {
+            return row(key, columnFamily).size();
+        } finally {
+            getMetrics().record(StorageMetrics.COUNT, columnFamily, start);
+        }
+    }
+
+    /**
+     * walk the keys in key order, straight off the family's skip list:
+     * pageSize and prefetch do not apply, and rows written during the walk
+     * may or may not show up.
+     */
+    public Iterator<String> iterateKeys(final String columnFamily,
+                                        final int pageSize,
+                                        final boolean prefetch) {
+        return Collections.unmodifiableSet(family(columnFamily)._rows.keySet()).iterator();
+    }
+
+    public <N> Slice<N> slice(final String key,
+                              final String columnFamily,
+                              final N afterColumn,
+                              final int count,
+                              final boolean reversed,
+                              final Serializer<N> nameSerializer) {
+        long start = System.nanoTime();
+        try {
+            NavigableMap<ByteBuffer, String> columns = range(row(key, columnFamily),
+                    toBytes(afterColumn, nameSerializer), false, reversed);
+            return Slice.of(take(columns, count + 1, nameSerializer), count);
+        } finally {
+            getMetrics().record(StorageMetrics.SLICE, columnFamily, start);
+        }
+    }
+
+    /**
+     * queued writes, logged and applied as one record by execute().
+     */
+    public class Batch extends AbstractBatch {
+        private final List<Mutation> _mutations = new ArrayList<Mutation>();
+        private int _records = 0;
+
+        private Batch() {
+        }
+
+        public <N> Batch updateColumn(final String key,
+                                      final String value,
+                                      final N columnName,
+                                      final Serializer<N> nameSerializer,
+                                      final String columnFamily) {
+            _mutations.add(new Mutation(UPDATE, columnFamily, key, nameSerializer.toByteBuffer(columnName), value));
+            return this;
+        }
+
+        public Batch deleteColumn(final String key,
+                                  final String columnName,
+                                  final String columnFamily) {
+            _mutations.add(new Mutation(DELETE, columnFamily, key, SE.toByteBuffer(columnName), null));
+            return this;
+        }
+
+        public int execute() {
+            if (!_mutations.isEmpty()) {
+                write(_mutations);
+                _mutations.clear();
+                _records++;
+            }
+            executed();
+            return _records;
+        }
+    }
+
+    /**
+     * one column family: rows by key, each a map of columns sorted by the
+     * family's comparator.
+     */
+    private static class Family {
+        private final ComparatorType _comparator;
+        private final ConcurrentSkipListMap<String, ConcurrentSkipListMap<ByteBuffer, String>> _rows =
+                new ConcurrentSkipListMap<String, ConcurrentSkipListMap<ByteBuffer, String>>();
+
+        Family(final ComparatorType comparator) {
+            _comparator = comparator;
+        }
+
+        // only called under the write lock, or before the storage is open
+        ConcurrentSkipListMap<ByteBuffer, String> write(final String key) {
+            ConcurrentSkipListMap<ByteBuffer, String> row = _rows.get(key);
+            if (null == row) {
+                row = new ConcurrentSkipListMap<ByteBuffer, String>(
+                        ComparatorType.LONGTYPE.getClassName().equals(_comparator.getClassName()) ? LONGS : BYTES);
+                _rows.put(key, row);
+            }
+            return row;
+        }
+    }
+
+    /**
+     * one write as it goes into the log. for CREATE the key is the
+     * comparator's class name.
+     */
+    private static class Mutation {
+        private final byte _op;
+        private final String _columnFamily;
+        private final String _key;
+        private final ByteBuffer _name;
+        private final String _value;
+
+        Mutation(final byte op,
+                 final String columnFamily,
+                 final String key,
+                 final ByteBuffer name,
+                 final String value) {
+            _op = op;
+            _columnFamily = columnFamily;
+            _key = key;
+            _name = name;
+            _value = value;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package example;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FanoutService copies a freshly saved tweet into the Timeline row of every
+ *  follower of its author, off the request thread.
+ *
+ * Work waits in a bounded queue. When the queue is full the poster waits a
+ *  little for room and then does its own fan-out, so a burst slows posting
+ *  down instead of piling up unbounded memory. Failed batches are retried
+ *  with a growing backoff, and shutdown() lets queued work finish.
+ *
+ * Followers are written to chunkSize at a time, one batch per chunk, and a
+ *  failed chunk is retried on its own. They come from SocialGraph, or, for
+ *  accounts with more followers than it keeps, from pages of the Followers
+ *  row, so no more than a chunk of them is held at once.
+ *
+ * A chunk that is still failing once its attempts are used up does not stop
+ *  the rest of the fan-out: it is queued again on its own, once, and only if
+ *  that fails too are its followers given up on and counted. A page of the
+ *  Followers row that cannot be read is queued again the same way, and the
+ *  fan-out carries on from it.
+ *
+ * Tweets from Celebrities are not copied at all, see Base.getTimeline.
+ */
+public class FanoutService implements FanoutServiceMBean {
+
+    private static final Logger LOG = Logger.getLogger(FanoutService.class);
+
+    private final Storage _storage;
+    private final SocialGraph _graph;
+    private final Lines _lines;
+    private final Celebrities _celebrities;
+    private final TimelineHeads _timelineHeads;
+    private final ThreadPoolExecutor _executor;
+    private final BlockingQueue<Runnable> _queue;
+    private final int _maxAttempts;
+    private final long _retryBackoffMillis;
+    private final int _chunkSize;
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _retries = new AtomicLong();
+    private final AtomicLong _callerRuns = new AtomicLong();
+    private final AtomicLong _celebritySkips = new AtomicLong();
+    private final AtomicLong _chunks = new AtomicLong();
+    private final AtomicLong _paged = new AtomicLong();
+    private final AtomicLong _requeued = new AtomicLong();
+    private final AtomicLong _failedChunks = new AtomicLong();
+    private final AtomicLong _failedFollowers = new AtomicLong();
+    private final AtomicLong _lastLagMillis = new AtomicLong();
+    private final AtomicLong _maxLagMillis = new AtomicLong();
+    private final AtomicLong _totalLagMillis = new AtomicLong();
+
+    public FanoutService(final Storage storage,
+                         final SocialGraph graph,
+                         final Lines lines,
+                         final Celebrities celebrities,
+                         final TimelineHeads timelineHeads,
+                         final int threads,
+                         final int queueCapacity,
+                         final int maxAttempts,
+                         final long retryBackoffMillis,
+                         final long enqueueTimeoutMillis,
+                         final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        _storage = storage;
+        _graph = graph;
+        _lines = lines;
+        _celebrities = celebrities;
+        _timelineHeads = timelineHeads;
+        _maxAttempts = maxAttempts;
+        _retryBackoffMillis = retryBackoffMillis;
+        _chunkSize = chunkSize;
+        _queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        _executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, _queue,
+                new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "fanout-" + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        try {
+                            if (!executor.isShutdown()
+                                    && executor.getQueue().offer(r, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                                return;
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        // backpressure: the posting thread pays for its own fan-out
+                        _callerRuns.incrementAndGet();
+                        r.run();
+                    }
+                });
+    }
+
+    /**
+     * queue the copy of a tweet into its author's followers' timelines.
+     *
+     * @param uname  the author
+     * @param tweetid
+     * @param column the TimeIds id the tweet was saved under
+     */
+    public void submit(final String uname, final String tweetid, final long column) {
+        _submitted.incrementAndGet();
+        _executor.execute(new FanoutTask(uname, tweetid, column));
+    }
+
+    /**
+     * stop taking work and wait for the queue to drain.
+     *
+     * @param timeoutMillis
+     * @return true if every queued fan-out finished
+     */
+    public boolean shutdown(final long timeoutMillis) {
+        _executor.shutdown();
+        try {
+            if (_executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        int dropped = _executor.shutdownNow().size();
+        LOG.error("Fan-out did not drain in " + timeoutMillis + "ms, dropped " + dropped + " tweets");
+        return false;
+    }
+
+    /**
+     * copy a tweet into its author's followers' timelines on the calling
+     * thread, without retries. Chunks that fail are counted in
+     * getFailedFollowers() and the rest are still written. submit() is what
+     * the app uses.
+     *
+     * @param uname  the author
+     * @param tweetid
+     * @param column the TimeIds id the tweet was saved under
+     */
+    public void fanout(final String uname, final String tweetid, final long column) {
+        fanout(uname, tweetid, column, 1, false);
+    }
+
+    /**
+     * @param maxAttempts at each page read and each chunk written
+     * @param requeue     whether chunks and pages that fail are queued again
+     */
+    private void fanout(final String uname,
+                        final String tweetid,
+                        final long column,
+                        final int maxAttempts,
+                        final boolean requeue) {
+        if (_celebrities.checkPoster(uname)) {
+            // readers merge this poster's Userline instead
+            _celebritySkips.incrementAndGet();
+            return;
+        }
+        String[] chunk = new String[_chunkSize];
+        SocialGraph.Users followers = _graph.followers(uname);
+        if (null != followers) {
+            SocialGraph.Users.Cursor cursor = followers.cursor();
+            int size = 0;
+            while (cursor.next()) {
+                chunk[size++] = cursor.uname();
+                if (size == chunk.length) {
+                    write(chunk, size, tweetid, column, maxAttempts, requeue);
+                    size = 0;
+                }
+            }
+            write(chunk, size, tweetid, column, maxAttempts, requeue);
+            return;
+        }
+
+        // too many followers to keep in memory, page through them
+        _paged.incrementAndGet();
+        page(uname, null, tweetid, column, maxAttempts, requeue);
+    }
+
+    // write uname's followers after the given one, a page at a time
+    private void page(final String uname,
+                      final String after,
+                      final String tweetid,
+                      final long column,
+                      final int maxAttempts,
+                      final boolean requeue) {
+        String[] chunk = new String[_chunkSize];
+        String next = after;
+        while (true) {
+            Slice<String> page;
+            try {
+                page = read(uname, next, maxAttempts);
+            } catch (RuntimeException ex) {
+                if (!requeue) {
+                    throw ex;
+                }
+                // the rest of the row is only reachable from this page, carry on from it later
+                LOG.warn("Queueing the rest of tweet " + tweetid + "'s fan-out again: " + ex.getMessage());
+                _requeued.incrementAndGet();
+                _executor.execute(new PageTask(uname, next, tweetid, column));
+                return;
+            }
+            int size = 0;
+            for (String follower : page.getColumns().keySet()) {
+                chunk[size++] = follower;
+            }
+            write(chunk, size, tweetid, column, maxAttempts, requeue);
+            if (!page.hasNext()) {
+                return;
+            }
+            next = page.getNext();
+        }
+    }
+
+    private Slice<String> read(final String uname, final String after, final int maxAttempts) {
+        return attempt(new Callable<Slice<String>>() {
+            public Slice<String> call() {
+                return _storage.slice(uname, Base.FOLLOWERS, after, _chunkSize, false);
+            }
+        }, maxAttempts, "read of " + uname + "'s followers");
+    }
+
+    private void write(final String[] followers,
+                       final int size,
+                       final String tweetid,
+                       final long column,
+                       final int maxAttempts,
+                       final boolean requeue) {
+        if (0 == size) {
+            return;
+        }
+        try {
+            attempt(new Callable<Void>() {
+                public Void call() {
+                    Storage.Batch batch = _storage.batch();
+                    for (int i = 0; i < size; i++) {
+                        _lines.write(batch, followers[i], Base.TIMELINE, column, tweetid);
+                    }
+                    batch.execute();
+                    return null;
+                }
+            }, maxAttempts, "fan-out of tweet " + tweetid);
+        } catch (RuntimeException ex) {
+            if (requeue) {
+                // the chunk is reused for the next followers, the requeued one gets its own
+                LOG.warn("Queueing a chunk of tweet " + tweetid + "'s fan-out again: " + ex.getMessage());
+                _requeued.incrementAndGet();
+                _executor.execute(new ChunkTask(Arrays.copyOf(followers, size), tweetid, column));
+            } else {
+                _failedChunks.incrementAndGet();
+                _failedFollowers.addAndGet(size);
+                LOG.error("Unable to fan out tweet " + tweetid + " to " + size + " followers", ex);
+            }
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            _timelineHeads.append(followers[i], Base.TIMELINE, column, tweetid);
+        }
+        _chunks.incrementAndGet();
+    }
+
+    // call, retrying with a growing backoff
+    private <T> T attempt(final Callable<T> call, final int maxAttempts, final String what) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (Exception ex) {
+                RuntimeException failure = ex instanceof RuntimeException
+                        ? (RuntimeException) ex : new RuntimeException(ex);
+                if (attempt >= maxAttempts) {
+                    throw failure;
+                }
+                _retries.incrementAndGet();
+                LOG.warn("Retrying " + what + ": " + ex.getMessage());
+                try {
+                    Thread.sleep(_retryBackoffMillis << (attempt - 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw failure;
+                }
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    public int getActiveWorkers() {
+        return _executor.getActiveCount();
+    }
+
+    public long getSubmitted() {
+        return _submitted.get();
+    }
+
+    public long getCompleted() {
+        return _completed.get();
+    }
+
+    public long getFailed() {
+        return _failed.get();
+    }
+
+    public long getRetries() {
+        return _retries.get();
+    }
+
+    public long getCallerRuns() {
+        return _callerRuns.get();
+    }
+
+    public long getCelebritySkips() {
+        return _celebritySkips.get();
+    }
+
+    public long getChunks() {
+        return _chunks.get();
+    }
+
+    public long getPaged() {
+        return _paged.get();
+    }
+
+    public long getRequeued() {
+        return _requeued.get();
+    }
+
+    public long getFailedChunks() {
+        return _failedChunks.get();
+    }
+
+    public long getFailedFollowers() {
+        return _failedFollowers.get();
+    }
+
+    public long getLastLagMillis() {
+        return _lastLagMillis.get();
+    }
+
+    public long getMaxLagMillis() {
+        return _maxLagMillis.get();
+    }
+
+    public long getAverageLagMillis() {
+        long done = _completed.get() + _failed.get();
+        return 0 == done ? 0 : _totalLagMillis.get() / done;
+    }
+
+    public long getOldestQueuedMillis() {
+        Runnable head = _queue.peek();
+        if (!(head instanceof FanoutTask)) {
+            return 0;
+        }
+        return System.currentTimeMillis() - ((FanoutTask) head)._enqueuedAt;
+    }
+
+    private void recordLag(final long enqueuedAt) {
+        long lag = System.currentTimeMillis() - enqueuedAt;
+        _lastLagMillis.set(lag);
+        _totalLagMillis.addAndGet(lag);
+        long max = _maxLagMillis.get();
+        while (lag > max && !_maxLagMillis.compareAndSet(max, lag)) {
+            max = _maxLagMillis.get();
+        }
+    }
+
+    private class FanoutTask implements Runnable {
+        private final String _uname;
+        private final String _tweetid;
+        private final long _column;
+        private final long _enqueuedAt = System.currentTimeMillis();
+
+        FanoutTask(final String uname, final String tweetid, final long column) {
+            _uname = uname;
+            _tweetid = tweetid;
+            _column = column;
+        }
+
+        public void run() {
+            try {
+                fanout(_uname, _tweetid, _column, _maxAttempts, true);
+                _completed.incrementAndGet();
+            } catch (RuntimeException ex) {
+                _failed.incrementAndGet();
+                LOG.error("Unable to fan out tweet " + _tweetid + " from " + _uname, ex);
+            }
+            recordLag(_enqueuedAt);
+        }
+    }
+
+    /**
+     * The rest of a paged fan-out, queued again after a page kept failing.
+     */
+    private class PageTask implements Runnable {
+        private final String _uname;
+        private final String _after;
+        private final String _tweetid;
+        private final long _column;
+
+        PageTask(final String uname, final String after, final String tweetid, final long column) {
+            _uname = uname;
+            _after = after;
+            _tweetid = tweetid;
+            _column = column;
+        }
+
+        public void run() {
+            try {
+                page(_uname, _after, _tweetid, _column, _maxAttempts, false);
+            } catch (RuntimeException ex) {
+                // how many followers are past this page is not known
+                _failedChunks.incrementAndGet();
+                LOG.error("Unable to fan out tweet " + _tweetid + " to " + _uname + "'s followers after " + _after, ex);
+            }
+        }
+    }
+
+    /**
+     * A chunk of followers queued again after its batch kept failing.
+     */
+    private class ChunkTask implements Runnable {
+        private final String[] _followers;
+        private final String _tweetid;
+        private final long _column;
+
+        ChunkTask(final String[] followers, final String tweetid, final long column) {
+            _followers = followers;
+            _tweetid = tweetid;
+            _column = column;
+        }
+
+        public void run() {
+            write(_followers, _followers.length, _tweetid, _column, _maxAttempts, false);
+        }
+    }
+}
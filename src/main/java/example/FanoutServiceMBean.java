@@ -0,0 +1,41 @@
+package example;
+
+/**
+ * JMX view of the follower fan-out queue.
+ */
+public interface FanoutServiceMBean {
+
+    int getQueueDepth();
+
+    int getActiveWorkers();
+
+    long getSubmitted();
+
+    long getCompleted();
+
+    long getFailed();
+
+    long getRetries();
+
+    long getCallerRuns();
+
+    long getCelebritySkips();
+
+    long getChunks();
+
+    long getPaged();
+
+    long getRequeued();
+
+    long getFailedChunks();
+
+    long getFailedFollowers();
+
+    long getLastLagMillis();
+
+    long getMaxLagMillis();
+
+    long getAverageLagMillis();
+
+    long getOldestQueuedMillis();
+}
@@ -0,0 +1,205 @@
+package example;
+
+import org.apache.log4j.Logger;
+import org.mortbay.thread.ThreadPool;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HandlerThreadPool runs the Launcher's requests. In virtual mode every
+ *  request runs on its own virtual thread, so a page blocked on Hector holds
+ *  no platform thread. The number of requests in flight is capped at
+ *  maxRequests either way.
+ *
+ * Virtual threads need Java 21. On older JVMs, or in platform mode, requests
+ *  run on a fixed pool of platform threads behind a bounded queue, and the
+ *  cap is no more than the threads and the queue hold.
+ *
+ * Past the cap dispatch() waits for a request to finish rather than refuse
+ *  the job: Jetty 6 answers a refused dispatch by re-arming the connection,
+ *  and the selector would spin on it. Waiting stalls the selector instead,
+ *  which stops it reading new requests until there is room.
+ *
+ * Only requests come here. The connector's accept and select loops, which
+ *  never return, run on a thread pool of their own, see Launcher.
+ */
+public class HandlerThreadPool implements ThreadPool {
+
+    private static final Logger LOG = Logger.getLogger(HandlerThreadPool.class);
+
+    private final ExecutorService _handlers;
+    private final ThreadPoolExecutor _platform;
+    private final boolean _virtual;
+    private final int _maxRequests;
+    // one per request in flight
+    private final Semaphore _slots;
+    private final CountDownLatch _stopped = new CountDownLatch(1);
+
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicInteger _peakActive = new AtomicInteger();
+    private final AtomicLong _dispatched = new AtomicLong();
+    private final AtomicLong _waits = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+
+    /**
+     * @param virtual       run requests on virtual threads, if this JVM has them
+     * @param maxRequests   requests in flight at most
+     * @param threads       platform threads, when not virtual
+     * @param queueCapacity requests waiting for a platform thread, when not virtual
+     */
+    public HandlerThreadPool(final boolean virtual,
+                             final int maxRequests,
+                             final int threads,
+                             final int queueCapacity) {
+        ExecutorService handlers = virtual ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtual && null == handlers) {
+            LOG.warn("Virtual threads need Java 21, running requests on " + threads + " platform threads");
+        }
+        _virtual = null != handlers;
+        if (_virtual) {
+            _platform = null;
+            _handlers = handlers;
+        } else {
+            _platform = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), threads("jetty-handler"));
+            _handlers = _platform;
+        }
+        _maxRequests = _virtual ? maxRequests : Math.min(maxRequests, threads + queueCapacity);
+        _slots = new Semaphore(_maxRequests);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public boolean dispatch(final Runnable job) {
+        if (!_slots.tryAcquire()) {
+            _waits.incrementAndGet();
+            try {
+                _slots.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                _rejected.incrementAndGet();
+                return false;
+            }
+        }
+        int active = _active.incrementAndGet();
+        int peak = _peakActive.get();
+        while (active > peak && !_peakActive.compareAndSet(peak, active)) {
+            peak = _peakActive.get();
+        }
+
+        try {
+            _handlers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        _active.decrementAndGet();
+                        _slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // stopped
+            _active.decrementAndGet();
+            _slots.release();
+            _rejected.incrementAndGet();
+            return false;
+        }
+        _dispatched.incrementAndGet();
+        return true;
+    }
+
+    public void join() throws InterruptedException {
+        _stopped.await();
+    }
+
+    /**
+     * stop taking jobs, called after the server has stopped.
+     */
+    public void stop() {
+        _handlers.shutdown();
+        _stopped.countDown();
+    }
+
+    public int getThreads() {
+        return _virtual ? _active.get() : _platform.getPoolSize();
+    }
+
+    public int getIdleThreads() {
+        if (_virtual) {
+            return Math.max(0, _maxRequests - _active.get());
+        }
+        return Math.max(0, _platform.getPoolSize() - _platform.getActiveCount());
+    }
+
+    public boolean isLowOnThreads() {
+        // Jetty cuts idle connections short while this is true
+        return _active.get() >= _maxRequests - _maxRequests / 10;
+    }
+
+    public boolean isVirtual() {
+        return _virtual;
+    }
+
+    public int getMaxRequests() {
+        return _maxRequests;
+    }
+
+    public int getActiveRequests() {
+        return _active.get();
+    }
+
+    public int getPeakActiveRequests() {
+        return _peakActive.get();
+    }
+
+    public int getQueuedRequests() {
+        return _virtual ? 0 : _platform.getQueue().size();
+    }
+
+    public long getDispatched() {
+        return _dispatched.get();
+    }
+
+    /**
+     * @return dispatches that had to wait for a request to finish
+     */
+    public long getWaits() {
+        return _waits.get();
+    }
+
+    /**
+     * @return dispatches refused, only once stopped
+     */
+    public long getRejected() {
+        return _rejected.get();
+    }
+}
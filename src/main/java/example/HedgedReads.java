@@ -0,0 +1,256 @@
+package example;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HedgedReads runs idempotent reads so that one slow replica does not hold
+ *  them up: if the first attempt has not answered after the given
+ *  percentile of recent first-attempt latencies, a second attempt is sent,
+ *  and whichever answers first is returned. The loser runs to the end,
+ *  Hector calls cannot be abandoned half way.
+ *
+ * The delay is worked out per operation and column family, from at least
+ *  MIN_SAMPLES first attempts over at least a second; until then reads are
+ *  not hedged. Hedges are paid for out of a budget that every read adds
+ *  budgetPercent hundredths of a hedge to, so they add at most that much
+ *  load, however slow the cluster gets.
+ *
+ * With LatencyAwareBalancingPolicy the second attempt goes to a different
+ *  host than the first; Hector's own policies may pick the same one.
+ *
+ * The executor is bounded. When it refuses the first attempt the read runs
+ *  on the caller, unhedged, and when it refuses the second the read waits
+ *  for the first alone; both are counted as saturated.
+ */
+public class HedgedReads {
+
+    // first attempts a delay is worked out from
+    private static final int MIN_SAMPLES = 100;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // the budget is kept in thousandths of a hedge, and at most this many can be saved up
+    private static final long HEDGE = 1000;
+    private static final long MAX_BUDGET = 10 * HEDGE;
+
+    private final Executor _executor;
+    private final StorageMetrics _metrics;
+    private final LatencyAwareBalancingPolicy _balancer;
+    private final double _percentile;
+    private final long _minDelayNanos;
+    private final long _deposit;
+    private final AtomicLong _budget = new AtomicLong();
+    private final ConcurrentMap<String, Delay> _delays = new ConcurrentHashMap<String, Delay>();
+
+    /**
+     * @param executor      runs the attempts, the caller only waits; may refuse them
+     * @param metrics       counts the hedges sent, won and refused
+     * @param balancer      keeps the second attempt off the first one's host, may be null
+     * @param percentile    of first-attempt latency to wait before hedging, e.g. 0.95
+     * @param minDelayMillis the least time to wait before hedging
+     * @param budgetPercent the most hedges, as a percentage of reads
+     */
+    public HedgedReads(final Executor executor,
+                       final StorageMetrics metrics,
+                       final LatencyAwareBalancingPolicy balancer,
+                       final double percentile,
+                       final long minDelayMillis,
+                       final int budgetPercent) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: " + percentile);
+        }
+        if (budgetPercent < 1 || budgetPercent > 100) {
+            throw new IllegalArgumentException("budgetPercent must be 1-100: " + budgetPercent);
+        }
+        _executor = executor;
+        _metrics = metrics;
+        _balancer = balancer;
+        _percentile = percentile;
+        _minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        _deposit = HEDGE * budgetPercent / 100;
+    }
+
+    /**
+     * @param operation    the StorageMetrics operation, e.g. READ
+     * @param columnFamily
+     * @param read         the read, safe to run twice at once
+     * @return what the first attempt to answer returned
+     */
+    public <T> T read(final String operation, final String columnFamily, final Callable<T> read) {
+        Delay delay = delay(operation, columnFamily);
+        deposit();
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        // attempts that have not failed yet
+        AtomicInteger running = new AtomicInteger(1);
+        LatencyAwareBalancingPolicy.Attempt first = new LatencyAwareBalancingPolicy.Attempt(null);
+        try {
+            _executor.execute(attempt(read, first, result, running, delay));
+        } catch (RejectedExecutionException ex) {
+            _metrics.hedgeSaturated();
+            return unhedged(read);
+        }
+
+        long delayNanos = delay._delayNanos;
+        if (Long.MAX_VALUE != delayNanos) {
+            try {
+                return result.get(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                // slower than most, hedge below
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                throw unwrap(ex);
+            }
+            if (!result.isDone()) {
+                if (withdraw()) {
+                    running.incrementAndGet();
+                    try {
+                        _executor.execute(attempt(read, new LatencyAwareBalancingPolicy.Attempt(first),
+                                result, running, null));
+                        _metrics.hedgeSent();
+                    } catch (RejectedExecutionException ex) {
+                        running.decrementAndGet();
+                        refund();
+                        _metrics.hedgeSaturated();
+                    }
+                } else {
+                    _metrics.hedgeOverBudget();
+                }
+            }
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw unwrap(ex);
+        }
+    }
+
+    private <T> T unhedged(final Callable<T> read) {
+        try {
+            return read.call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (null != _balancer) {
+                _balancer.finished();
+            }
+        }
+    }
+
+    /**
+     * @param delay where to record the attempt's latency, null for the hedge
+     */
+    private <T> Runnable attempt(final Callable<T> read,
+                                 final LatencyAwareBalancingPolicy.Attempt attempt,
+                                 final CompletableFuture<T> result,
+                                 final AtomicInteger running,
+                                 final Delay delay) {
+        return new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                if (null != _balancer) {
+                    _balancer.begin(attempt);
+                }
+                try {
+                    if (result.complete(read.call()) && null == delay) {
+                        _metrics.hedgeWon();
+                    }
+                } catch (Throwable ex) {
+                    // the read fails only when every attempt sent has failed
+                    if (0 == running.decrementAndGet()) {
+                        result.completeExceptionally(ex);
+                    }
+                } finally {
+                    if (null != _balancer) {
+                        _balancer.finished();
+                    }
+                    if (null != delay) {
+                        delay.record(System.nanoTime() - start);
+                    }
+                }
+            }
+        };
+    }
+
+    private Delay delay(final String operation, final String columnFamily) {
+        String name = operation + " " + columnFamily;
+        Delay delay = _delays.get(name);
+        if (null == delay) {
+            _delays.putIfAbsent(name, new Delay());
+            delay = _delays.get(name);
+        }
+        return delay;
+    }
+
+    private void deposit() {
+        long budget = _budget.get();
+        while (budget < MAX_BUDGET && !_budget.compareAndSet(budget, Math.min(MAX_BUDGET, budget + _deposit))) {
+            budget = _budget.get();
+        }
+    }
+
+    private boolean withdraw() {
+        long budget = _budget.get();
+        while (budget >= HEDGE) {
+            if (_budget.compareAndSet(budget, budget - HEDGE)) {
+                return true;
+            }
+            budget = _budget.get();
+        }
+        return false;
+    }
+
+    private void refund() {
+        long budget = _budget.get();
+        while (budget < MAX_BUDGET && !_budget.compareAndSet(budget, Math.min(MAX_BUDGET, budget + HEDGE))) {
+            budget = _budget.get();
+        }
+    }
+
+    private static RuntimeException unwrap(final ExecutionException ex) {
+        if (ex.getCause() instanceof RuntimeException) {
+            return (RuntimeException) ex.getCause();
+        }
+        if (ex.getCause() instanceof Error) {
+            throw (Error) ex.getCause();
+        }
+        return new RuntimeException(ex.getCause());
+    }
+
+    /**
+     * How long to wait before hedging reads of one column family.
+     */
+    private class Delay {
+        private final LatencyHistogram _latencies = new LatencyHistogram();
+        private final AtomicLong _samples = new AtomicLong();
+        private volatile long _windowStartNanos = System.nanoTime();
+        // no hedging until there are enough samples
+        private volatile long _delayNanos = Long.MAX_VALUE;
+
+        private void record(final long nanos) {
+            _latencies.record(nanos / 1000);
+            long samples = _samples.incrementAndGet();
+            long now = System.nanoTime();
+            if (samples >= MIN_SAMPLES && now - _windowStartNanos >= WINDOW_NANOS
+                    && _samples.compareAndSet(samples, 0)) {
+                long micros = _latencies.snapshotAndReset().getValueAt(_percentile);
+                _delayNanos = Math.max(_minDelayNanos, TimeUnit.MICROSECONDS.toNanos(micros));
+                _windowStartNanos = now;
+            }
+        }
+    }
+}
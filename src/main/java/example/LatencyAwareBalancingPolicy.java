@@ -0,0 +1,256 @@
+package example;
+
+import me.prettyprint.cassandra.connection.ConcurrentHClientPool;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHost;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LatencyAwareBalancingPolicy sends each call to the host with the lowest
+ *  cost, its recent latency times one more than the calls it has in flight,
+ *  so a node that slows down, or stops for a GC pause, is routed around
+ *  within a few calls instead of getting its share of them.
+ *
+ * Recent latency is a decaying average weighted by time rather than by
+ *  sample, so a host answering a thousand calls a second and one answering
+ *  a call a second both forget within about decayMillis. While nothing is
+ *  sent to a host its latency decays towards zero, so a host that was
+ *  routed away from is tried again after a while, and stays in use if it
+ *  has recovered.
+ *
+ * A host that has stopped, a long GC pause or a hang, finishes no calls and
+ *  so takes no samples. Its latency is therefore never below the age of the
+ *  oldest call it has in flight, and it stays the dear host for as long as
+ *  it does not answer.
+ *
+ * Hector only asks the policy for a pool, it never says when the call
+ *  ends. The call is taken to end when the same thread calls finished(),
+ *  which CassandraService does when it records the call's latency. A call
+ *  that fails over to another host counts as a sample of the time it took
+ *  the first host to fail.
+ *
+ * A hedged read makes its attempts inside begin(Attempt) and finished(),
+ *  which keeps the hedge off the host the first attempt went to.
+ */
+public class LatencyAwareBalancingPolicy implements LoadBalancingPolicy {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final long DEFAULT_DECAY_MILLIS = 1000;
+    // far past any socket timeout, a call in flight this long was never finished
+    private static final long ABANDONED_NANOS = 60L * 1000000000;
+
+    private final long _decayNanos;
+    private final transient ConcurrentMap<CassandraHost, Score> _scores =
+            new ConcurrentHashMap<CassandraHost, Score>();
+    // the host the calling thread's current call went to, and when
+    private final transient ThreadLocal<Pick> _picks = new ThreadLocal<Pick>();
+    // the hedged read attempt the calling thread is making, if any
+    private final transient ThreadLocal<Attempt> _attempts = new ThreadLocal<Attempt>();
+
+    public LatencyAwareBalancingPolicy() {
+        this(DEFAULT_DECAY_MILLIS);
+    }
+
+    /**
+     * @param decayMillis how quickly latencies follow a host getting faster,
+     *                    and are forgotten when it is not being used
+     */
+    public LatencyAwareBalancingPolicy(final long decayMillis) {
+        if (decayMillis < 1) {
+            throw new IllegalArgumentException("decayMillis must be positive: " + decayMillis);
+        }
+        _decayNanos = decayMillis * 1000000;
+    }
+
+    public ConcurrentHClientPool getPool(final Collection<ConcurrentHClientPool> pools,
+                                         final Set<CassandraHost> excludeHosts) {
+        long now = System.nanoTime();
+        Pick last = _picks.get();
+        if (null != last) {
+            // the thread has moved on, so the last pick is no longer in flight
+            Score lastScore = score(last._host);
+            lastScore._inFlight.remove(last);
+            if (null != excludeHosts && excludeHosts.contains(last._host)) {
+                // failing over, the host of the last pick failed this call
+                lastScore.observe(now - last._startNanos, now);
+            }
+        }
+        Attempt attempt = _attempts.get();
+        CassandraHost avoid = null == attempt || null == attempt._avoid ? null : attempt._avoid._host;
+
+        ConcurrentHClientPool best = null;
+        double bestCost = Double.MAX_VALUE;
+        int ties = 0;
+        for (ConcurrentHClientPool pool : pools) {
+            if (null != excludeHosts && excludeHosts.contains(pool.getCassandraHost())) {
+                continue;
+            }
+            double cost = pool.getCassandraHost().equals(avoid)
+                    ? Double.POSITIVE_INFINITY
+                    : score(pool.getCassandraHost()).latency(now)
+                            * (pool.getNumActive() + pool.getNumBlockedThreads() + 1);
+            if (null == best || cost < bestCost) {
+                best = pool;
+                bestCost = cost;
+                ties = 1;
+            } else if (cost == bestCost && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                // spread ties, e.g. before any samples, evenly
+                best = pool;
+            }
+        }
+        if (null == best) {
+            // every host has been tried, let Hector try one again
+            best = pools.iterator().next();
+        }
+        Pick pick = new Pick(best.getCassandraHost(), now);
+        Score bestScore = score(best.getCassandraHost());
+        bestScore._picks.incrementAndGet();
+        bestScore._inFlight.add(pick);
+        _picks.set(pick);
+        if (null != attempt) {
+            attempt._host = best.getCassandraHost();
+        }
+        return best;
+    }
+
+    /**
+     * the calls the calling thread makes until finished() are the given
+     *  attempt at a hedged read.
+     *
+     * @param attempt
+     */
+    public void begin(final Attempt attempt) {
+        _attempts.set(attempt);
+    }
+
+    /**
+     * the calling thread's call to the host it was last given has ended.
+     *  Does nothing if there is no such call, e.g. it was already finished.
+     */
+    public void finished() {
+        _attempts.remove();
+        Pick pick = _picks.get();
+        if (null == pick) {
+            return;
+        }
+        _picks.remove();
+        long now = System.nanoTime();
+        Score score = score(pick._host);
+        score._inFlight.remove(pick);
+        score.observe(now - pick._startNanos, now);
+    }
+
+    /**
+     * the calling thread's call has ended, but says nothing about the host's
+     *  latency, e.g. a schema change. Does nothing if there is no such call.
+     */
+    public void forget() {
+        _attempts.remove();
+        Pick pick = _picks.get();
+        if (null == pick) {
+            return;
+        }
+        _picks.remove();
+        score(pick._host)._inFlight.remove(pick);
+    }
+
+    /**
+     * @return one line per host: its recent latency, its calls in flight and
+     *  how many calls it has been given
+     */
+    public List<String> getStatus() {
+        long now = System.nanoTime();
+        List<String> status = new ArrayList<String>();
+        for (Map.Entry<CassandraHost, Score> entry : _scores.entrySet()) {
+            status.add(entry.getKey().getUrl() + " latencyMicros="
+                    + Math.round(entry.getValue().latency(now) / 1000)
+                    + " inFlight=" + entry.getValue()._inFlight.size()
+                    + " picks=" + entry.getValue()._picks.get());
+        }
+        return status;
+    }
+
+    private Score score(final CassandraHost host) {
+        Score score = _scores.get(host);
+        if (null == score) {
+            _scores.putIfAbsent(host, new Score());
+            score = _scores.get(host);
+        }
+        return score;
+    }
+
+    private class Score {
+        private final AtomicLong _picks = new AtomicLong();
+        // calls sent to the host that have not finished, a few per pooled connection
+        private final Set<Pick> _inFlight = ConcurrentHashMap.newKeySet();
+        private boolean _sampled;
+        private double _latencyNanos;
+        private long _stampNanos;
+
+        private synchronized void observe(final long sampleNanos, final long now) {
+            if (_sampled) {
+                double weight = Math.exp(-(double) Math.max(0, now - _stampNanos) / _decayNanos);
+                _latencyNanos = sampleNanos + (_latencyNanos - sampleNanos) * weight;
+                _stampNanos = Math.max(_stampNanos, now);
+            } else {
+                _latencyNanos = sampleNanos;
+                _stampNanos = now;
+                _sampled = true;
+            }
+        }
+
+        // the average, decayed for the time since the last sample, or the
+        // age of the oldest call in flight if that is longer
+        private double latency(final long now) {
+            double latency;
+            synchronized (this) {
+                latency = _latencyNanos * Math.exp(-(double) Math.max(0, now - _stampNanos) / _decayNanos);
+            }
+            for (Pick pick : _inFlight) {
+                long age = now - pick._startNanos;
+                if (age > ABANDONED_NANOS) {
+                    _inFlight.remove(pick);
+                } else {
+                    latency = Math.max(latency, age);
+                }
+            }
+            return latency;
+        }
+    }
+
+    /**
+     * One attempt at a hedged read, which remembers the host it went to.
+     */
+    public static class Attempt {
+        private final Attempt _avoid;
+        private volatile CassandraHost _host;
+
+        /**
+         * @param avoid the attempt whose host this one should stay off if
+         *              there is another, null for the first attempt
+         */
+        public Attempt(final Attempt avoid) {
+            _avoid = avoid;
+        }
+    }
+
+    private static class Pick {
+        private final CassandraHost _host;
+        private final long _startNanos;
+
+        private Pick(final CassandraHost host, final long startNanos) {
+            _host = host;
+            _startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * LatencyHistogram counts latencies, in microseconds, into log-linear
+ *  buckets: 16 buckets per power of two, so a percentile read back is
+ *  within 1/16 of the true value. Recording is a couple of atomic
+ *  increments, with no locks and no allocation.
+ *
+ * snapshotAndReset() swaps in empty counts and returns the old ones, which
+ *  gives per-interval histograms. A sample recorded by a thread that read
+ *  the counts just before the swap can land in the old counts after they
+ *  were read and be lost; the odd lost sample does not move a percentile.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // one set of sub-buckets below SUB_BUCKETS, then one per power of two up to 2^62
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicReference<Counts> _counts = new AtomicReference<Counts>(new Counts());
+
+    /**
+     * @param micros
+     */
+    public void record(final long micros) {
+        Counts counts = _counts.get();
+        long value = Math.max(0, micros);
+        counts._buckets.incrementAndGet(index(value));
+        counts._sum.addAndGet(value);
+        long max = counts._max.get();
+        while (value > max && !counts._max.compareAndSet(max, value)) {
+            max = counts._max.get();
+        }
+    }
+
+    /**
+     * @return what was recorded since the last call, or since creation
+     */
+    public Snapshot snapshotAndReset() {
+        return new Snapshot(_counts.getAndSet(new Counts()));
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the largest value that falls in the bucket
+    static long highestValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BITS;
+        return ((SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+
+    private static class Counts {
+        private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _max = new AtomicLong();
+    }
+
+    /**
+     * The latencies of one interval, no longer changing.
+     */
+    public static class Snapshot {
+        private final long[] _buckets = new long[BUCKETS];
+        private final long _count;
+        private final long _sum;
+        private final long _max;
+
+        private Snapshot(final Counts counts) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                _buckets[i] = counts._buckets.get(i);
+                count += _buckets[i];
+            }
+            _count = count;
+            _sum = counts._sum.get();
+            _max = counts._max.get();
+        }
+
+        public long getCount() {
+            return _count;
+        }
+
+        public double getMean() {
+            return 0 == _count ? 0 : (double) _sum / _count;
+        }
+
+        public long getMax() {
+            return _max;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99
+         * @return the latency that quantile of the samples are at or under, 0 if there are none
+         */
+        public long getValueAt(final double quantile) {
+            if (0 == _count) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * _count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += _buckets[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), _max);
+                }
+            }
+            return _max;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package example;
+
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.webapp.WebAppContext;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Launcher runs twissjava in an embedded Jetty for production and load
+ *  tests, where Start is meant for debugging.
+ *
+ * Connections are served by a non-blocking SelectChannelConnector, so an
+ *  idle keep-alive connection costs no thread, and requests run on a
+ *  HandlerThreadPool. Jetty 6 runs the connector's accept and select loops
+ *  as jobs on the connector's own thread pool, and dispatches requests
+ *  through getThreadPool(), so the connector is given a small pool of
+ *  platform threads for the loops and answers getThreadPool() with the
+ *  request pool. All settings come from the server.* keys of
+ *  twissjava.properties. Thread and connection metrics are published over
+ *  JMX as twissjava:type=Server.
+ *
+ *   java -Dserver.port=8080 -Dserver.war=twissjava.war example.Launcher
+ */
+public class Launcher {
+    final static Logger log = LoggerFactory.getLogger(Launcher.class);
+
+    private static final String SERVER_MBEAN = "twissjava:type=Server";
+
+    public static void main(String[] args) throws Exception {
+        final Server server = new Server();
+
+        final HandlerThreadPool pool = new HandlerThreadPool(
+                "virtual".equals(TwissConfig.getString("server.threads", "virtual")),
+                TwissConfig.getInt("server.maxRequests", 10000),
+                TwissConfig.getInt("server.platformThreads", 200),
+                TwissConfig.getInt("server.queueCapacity", 1000));
+        server.setThreadPool(pool);
+
+        SelectChannelConnector connector = new SelectChannelConnector() {
+            @Override
+            public ThreadPool getThreadPool() {
+                // requests; the loops were dispatched to the pool set below
+                return pool;
+            }
+        };
+        connector.setPort(TwissConfig.getInt("server.port", 8888));
+        // in Jetty 6 every acceptor thread also runs one selector
+        int acceptors = TwissConfig.getInt("server.acceptors",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        connector.setAcceptors(acceptors);
+        QueuedThreadPool loops = new QueuedThreadPool(acceptors);
+        loops.setMinThreads(acceptors);
+        loops.setName("jetty-loop");
+        loops.setDaemon(true);
+        connector.setThreadPool(loops);
+        connector.setAcceptQueueSize(TwissConfig.getInt("server.acceptQueueSize", 1024));
+        connector.setMaxIdleTime(TwissConfig.getInt("server.maxIdleMillis", 30000));
+        connector.setLowResourcesConnections(TwissConfig.getInt("server.lowResourcesConnections", 20000));
+        connector.setLowResourceMaxIdleTime(TwissConfig.getInt("server.lowResourcesMaxIdleMillis", 5000));
+        server.setConnectors(new Connector[] { connector });
+
+        WebAppContext context = new WebAppContext();
+        context.setServer(server);
+        context.setContextPath("/");
+        context.setWar(TwissConfig.getString("server.war", "src/main/webapp"));
+        server.addHandler(context);
+
+        ObjectName name = new ObjectName(SERVER_MBEAN);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(pool, connector), name);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("launcher-shutdown") {
+            public void run() {
+                try {
+                    server.stop();
+                } catch (Exception e) {
+                    log.error("Unable to stop the server cleanly", e);
+                }
+                pool.stop();
+            }
+        });
+
+        server.start();
+        log.info("twissjava listening on port " + connector.getPort() + " with "
+                + (pool.isVirtual() ? "virtual" : "platform") + " request threads");
+        server.join();
+    }
+}
@@ -0,0 +1,171 @@
+package example;
+
+import org.apache.cassandra.thrift.Column;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * LineMigration is a TokenRangeScanner job that brings Timeline and Userline
+ *  rows written before lines were bucketed into the current layout.
+ *
+ * An old row is named by its owner alone, e.g. "jane", and its columns may
+ *  still be plain milliseconds rather than TimeIds. Its columns are copied,
+ *  through Lines.write, into the bucket rows and bucket index a new write
+ *  would have gone to; the old row itself is left for the operator to drop
+ *  once the copy has been checked. Bucket rows already in the new layout
+ *  have their bucket added to their line's index, which they lack if they
+ *  were written before there was one; public line rows, e.g.
+ *  "!PUBLIC!:2026-10-17:5", are added to the public line's.
+ *
+ * Copying is idempotent, so a scan that fails part way can simply be run
+ *  again.
+ */
+public class LineMigration implements TokenRangeScanner.Job<LineMigration.Migrated> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // plain milliseconds stay below this until 2109, TimeIds made after 2010-01-01T00:17Z are above it
+    private static final long MAX_MILLIS = 1L << 42;
+
+    private final Storage _storage;
+    private final Lines _lines;
+    private final int _pageColumns;
+
+    /**
+     * @param storage
+     * @param lines
+     * @param pageColumns columns copied per batch
+     */
+    public LineMigration(final Storage storage,
+                         final Lines lines,
+                         final int pageColumns) {
+        _storage = storage;
+        _lines = lines;
+        _pageColumns = pageColumns;
+    }
+
+    public Migrated newResult() {
+        return new Migrated();
+    }
+
+    public void visit(final Migrated result, final TokenRangeScanner.ScannedRow row) {
+        String key = row.getKey();
+        int colon = key.lastIndexOf(':');
+        if (colon < 0) {
+            copy(result, row);
+        } else if (key.startsWith(PublicLine.ROW + ":")) {
+            if (Base.USERLINE.equals(row.getColumnFamily()) && !key.equals(PublicLine.INDEX_ROW)) {
+                // !PUBLIC!:label:shard
+                indexPublic(result, key.substring(PublicLine.ROW.length() + 1, colon));
+            }
+        } else if (!key.equals(Lines.indexRow(key.substring(0, colon)))) {
+            index(result, row, key.substring(0, colon), key.substring(colon + 1));
+        }
+    }
+
+    private void copy(final Migrated result, final TokenRangeScanner.ScannedRow row) {
+        List<Column> page = row.getColumns();
+        boolean more = row.isPartial();
+        while (!page.isEmpty()) {
+            Storage.Batch batch = _storage.batch();
+            for (Column column : page) {
+                long name = column.name.duplicate().getLong();
+                _lines.write(batch, row.getKey(), row.getColumnFamily(),
+                        name < MAX_MILLIS ? TimeIds.firstIdAt(name) : name,
+                        UTF8.decode(column.value.duplicate()).toString());
+            }
+            batch.execute();
+            result._copied += page.size();
+            if (!more) {
+                break;
+            }
+            page = row.more(page.get(page.size() - 1), _pageColumns);
+            more = page.size() >= _pageColumns;
+        }
+        result._oldRows++;
+    }
+
+    private void index(final Migrated result,
+                       final TokenRangeScanner.ScannedRow row,
+                       final String uname,
+                       final String label) {
+        long start;
+        try {
+            start = _lines.getBuckets().startOfLabel(label);
+        } catch (IllegalArgumentException e) {
+            // e.g. cut into buckets of another width
+            result._skipped++;
+            return;
+        }
+        Storage.Batch batch = _storage.batch();
+        _lines.index(batch, uname, row.getColumnFamily(), start);
+        batch.execute();
+        result._indexed++;
+    }
+
+    private void indexPublic(final Migrated result, final String label) {
+        PublicLine publicLine = _lines.getPublicLine();
+        long start;
+        try {
+            start = publicLine.getBuckets().startOfLabel(label);
+        } catch (IllegalArgumentException e) {
+            result._skipped++;
+            return;
+        }
+        Storage.Batch batch = _storage.batch();
+        publicLine.index(batch, start);
+        batch.execute();
+        result._indexed++;
+    }
+
+    public Migrated merge(final Migrated left, final Migrated right) {
+        left._oldRows += right._oldRows;
+        left._copied += right._copied;
+        left._indexed += right._indexed;
+        left._skipped += right._skipped;
+        return left;
+    }
+
+    /**
+     * What was migrated in part of, or after merging, all of a column family.
+     */
+    public static class Migrated {
+        private long _oldRows = 0;
+        private long _copied = 0;
+        private long _indexed = 0;
+        private long _skipped = 0;
+
+        /**
+         * @return old, unbucketed rows copied
+         */
+        public long getOldRows() {
+            return _oldRows;
+        }
+
+        /**
+         * @return columns copied out of old rows
+         */
+        public long getCopied() {
+            return _copied;
+        }
+
+        /**
+         * @return bucket rows added to their line's index
+         */
+        public long getIndexed() {
+            return _indexed;
+        }
+
+        /**
+         * @return bucket rows whose label did not parse
+         */
+        public long getSkipped() {
+            return _skipped;
+        }
+
+        public String report(final String columnFamily) {
+            return columnFamily + ": " + _oldRows + " old rows, " + _copied + " columns copied, " + _indexed
+                    + " bucket rows indexed, " + _skipped + " skipped\n";
+        }
+    }
+}
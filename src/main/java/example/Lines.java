@@ -0,0 +1,444 @@
+package example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Lines maps a logical Timeline or Userline, named by its owner, onto the
+ *  rows it is actually stored in, for both reading and writing. Columns are
+ *  TimeIds, stored as longs, and values are tweet ids; reads are always
+ *  newest first.
+ *
+ * A user's line is cut into one row per time bucket, e.g. "jane:2026-10" for
+ *  monthly buckets, so no row grows forever. A read starts in the bucket of
+ *  its start column and walks back through older buckets, a few per
+ *  multiget, until the page is full or lookback buckets have been tried.
+ *  Since every id carries its timestamp, a page cursor (the last column
+ *  shown) also names the bucket the next page starts in.
+ *
+ * Each line also has an index row, e.g. "jane:buckets", with a column per
+ *  bucket it has columns in, named by the bucket's start. Past lookback a
+ *  read only visits the buckets the index lists, so it skips a quiet spell
+ *  of any length and stops at the line's oldest bucket. Writes add the
+ *  bucket to the index until one batch doing so has gone through.
+ */
+public class Lines {
+
+    // buckets sliced together in one multiget while walking back
+    private static final int BUCKETS_PER_READ = 4;
+    private static final String INDEX = "buckets";
+    // index columns read at a time past lookback
+    private static final int INDEX_PAGE = 64;
+
+    private final Storage _storage;
+    private final PublicLine _publicLine;
+    private final TimeBuckets _buckets;
+    private final int _lookback;
+    // bucket rows this process has added to an index lately, to write each once, per column family
+    private final ConcurrentMap<String, Cache<String, Boolean>> _indexed =
+            new ConcurrentHashMap<String, Cache<String, Boolean>>();
+
+    public Lines(final Storage storage,
+                 final PublicLine publicLine,
+                 final TimeBuckets buckets,
+                 final int lookback) {
+        _storage = storage;
+        _publicLine = publicLine;
+        _buckets = buckets;
+        _lookback = lookback;
+    }
+
+    public PublicLine getPublicLine() {
+        return _publicLine;
+    }
+
+    public TimeBuckets getBuckets() {
+        return _buckets;
+    }
+
+    /**
+     * @param uname
+     * @param timestamp
+     * @return the row holding uname's line at timestamp
+     */
+    public String rowFor(final String uname, final long timestamp) {
+        return uname + ":" + _buckets.labelOf(timestamp);
+    }
+
+    /**
+     * @param uname
+     * @return the row listing the buckets uname's line has columns in
+     */
+    public static String indexRow(final String uname) {
+        return uname + ":" + INDEX;
+    }
+
+    private static boolean isPublic(final String uname, final String columnFamily) {
+        return Base.USERLINE.equals(columnFamily) && PublicLine.ROW.equals(uname);
+    }
+
+    /**
+     * read a page of a line, newest first, starting just after the
+     * previous page's cursor.
+     *
+     * @param uname
+     * @param columnFamily
+     * @param afterColumn null for the newest page
+     * @param count
+     * @return
+     */
+    public Slice<Long> read(final String uname,
+                            final String columnFamily,
+                            final Long afterColumn,
+                            final int count) {
+        if (isPublic(uname, columnFamily)) {
+            return _publicLine.read(afterColumn, count);
+        }
+
+        Walk walk = new Walk(uname, columnFamily, afterColumn, count);
+        while (!walk.done()) {
+            List<String> rows = walk.rows();
+            if (null == rows) {
+                walk.addIndex(_storage.slice(indexRow(uname), columnFamily, walk._indexAfter, INDEX_PAGE, true,
+                        Storage.LE));
+            } else {
+                walk.add(rows, _storage.multiGetSlices(rows, columnFamily, afterColumn, walk.remaining(), true,
+                        Storage.LE));
+            }
+        }
+        return walk.slice();
+    }
+
+    /**
+     * read() through the Storage ...Async calls, which never holds a thread
+     * while a read is out.
+     *
+     * @param uname
+     * @param columnFamily
+     * @param afterColumn null for the newest page
+     * @param count
+     * @return
+     */
+    public CompletableFuture<Slice<Long>> readAsync(final String uname,
+                                                    final String columnFamily,
+                                                    final Long afterColumn,
+                                                    final int count) {
+        if (isPublic(uname, columnFamily)) {
+            // a multiget per bucket, merged as it goes, and not read with the lines of users
+            return _storage.async(new Callable<Slice<Long>>() {
+                public Slice<Long> call() {
+                    return _publicLine.read(afterColumn, count);
+                }
+            });
+        }
+        return walk(new Walk(uname, columnFamily, afterColumn, count));
+    }
+
+    private CompletableFuture<Slice<Long>> walk(final Walk walk) {
+        if (walk.done()) {
+            return CompletableFuture.completedFuture(walk.slice());
+        }
+        final List<String> rows = walk.rows();
+        CompletableFuture<Void> step;
+        if (null == rows) {
+            step = _storage.sliceAsync(indexRow(walk._uname), walk._columnFamily, walk._indexAfter, INDEX_PAGE,
+                    true, Storage.LE).thenAccept(new Consumer<Slice<Long>>() {
+                        public void accept(Slice<Long> index) {
+                            walk.addIndex(index);
+                        }
+                    });
+        } else {
+            step = _storage.multiGetSlicesAsync(rows, walk._columnFamily, walk._afterColumn, walk.remaining(),
+                    true, Storage.LE).thenAccept(new Consumer<Map<String, Map<Long, String>>>() {
+                        public void accept(Map<String, Map<Long, String>> slices) {
+                            walk.add(rows, slices);
+                        }
+                    });
+        }
+        return step.thenCompose(new Function<Void, CompletableFuture<Slice<Long>>>() {
+            public CompletableFuture<Slice<Long>> apply(Void done) {
+                return walk(walk);
+            }
+        });
+    }
+
+    /**
+     * @param uname
+     * @param columnFamily
+     * @param since
+     * @return the newest column of uname's line in the buckets from since
+     *  on, usually just the current one, or null if they are empty
+     */
+    public Long newestSince(final String uname, final String columnFamily, final long since) {
+        long oldest = _buckets.startOf(since);
+        for (long bucket = _buckets.startOf(System.currentTimeMillis()); bucket >= oldest;
+             bucket = _buckets.previous(bucket)) {
+            Map<Long, String> newest = _storage.slice(rowFor(uname, bucket), columnFamily, null, 1, true,
+                    Storage.LE).getColumns();
+            if (!newest.isEmpty()) {
+                return newest.keySet().iterator().next();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * newestSince() through the Storage ...Async calls.
+     */
+    public CompletableFuture<Long> newestSinceAsync(final String uname, final String columnFamily, final long since) {
+        return newestFrom(uname, columnFamily, _buckets.startOf(System.currentTimeMillis()), _buckets.startOf(since));
+    }
+
+    private CompletableFuture<Long> newestFrom(final String uname,
+                                               final String columnFamily,
+                                               final long bucket,
+                                               final long oldest) {
+        if (bucket < oldest) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return _storage.sliceAsync(rowFor(uname, bucket), columnFamily, null, 1, true, Storage.LE)
+                .thenCompose(new Function<Slice<Long>, CompletableFuture<Long>>() {
+                    public CompletableFuture<Long> apply(Slice<Long> newest) {
+                        if (!newest.isEmpty()) {
+                            return CompletableFuture.completedFuture(newest.getColumns().keySet().iterator().next());
+                        }
+                        return newestFrom(uname, columnFamily, _buckets.previous(bucket), oldest);
+                    }
+                });
+    }
+
+    private static void add(final LinkedHashMap<Long, String> columns,
+                            final List<String> rows,
+                            final Map<String, Map<Long, String>> slices,
+                            final int fetch) {
+        for (String row : rows) {
+            for (Map.Entry<Long, String> column : slices.get(row).entrySet()) {
+                if (columns.size() == fetch) {
+                    return;
+                }
+                columns.put(column.getKey(), column.getValue());
+            }
+        }
+    }
+
+    /**
+     * queue the write of a tweet into a line.
+     *
+     * @param batch
+     * @param uname
+     * @param columnFamily
+     * @param columnName a TimeIds id
+     * @param tweetid
+     */
+    public void write(final Storage.Batch batch,
+                      final String uname,
+                      final String columnFamily,
+                      final long columnName,
+                      final String tweetid) {
+        long timestamp = TimeIds.timestampOf(columnName);
+        if (isPublic(uname, columnFamily)) {
+            batch.updateColumn(_publicLine.rowFor(tweetid, timestamp), tweetid, columnName, Storage.LE, columnFamily);
+            _publicLine.index(batch, timestamp);
+            return;
+        }
+        // the row doubles as the index cache's key, so a write to a line costs one new String
+        String row = rowFor(uname, timestamp);
+        batch.updateColumn(row, tweetid, columnName, Storage.LE, columnFamily);
+        index(batch, uname, row, columnFamily, _buckets.startOf(timestamp));
+    }
+
+    /**
+     * queue the write of uname's bucket holding timestamp into its line's
+     * index, unless a batch of this process did so lately.
+     *
+     * @param batch
+     * @param uname
+     * @param columnFamily
+     * @param timestamp
+     */
+    public void index(final Storage.Batch batch,
+                      final String uname,
+                      final String columnFamily,
+                      final long timestamp) {
+        long bucket = _buckets.startOf(timestamp);
+        index(batch, uname, rowFor(uname, bucket), columnFamily, bucket);
+    }
+
+    private void index(final Storage.Batch batch,
+                       final String uname,
+                       final String row,
+                       final String columnFamily,
+                       final long bucket) {
+        final Cache<String, Boolean> indexed = indexed(columnFamily);
+        if (null == indexed.getIfPresent(row)) {
+            // remembered only once written, the write is repeated until then
+            batch.updateColumn(indexRow(uname), "", bucket, Storage.LE, columnFamily).onExecuted(new Runnable() {
+                public void run() {
+                    indexed.put(row, Boolean.TRUE);
+                }
+            });
+        }
+    }
+
+    private Cache<String, Boolean> indexed(final String columnFamily) {
+        Cache<String, Boolean> indexed = _indexed.get(columnFamily);
+        if (null == indexed) {
+            _indexed.putIfAbsent(columnFamily, Caffeine.newBuilder()
+                    .maximumSize(100000)
+                    .expireAfterWrite(1, TimeUnit.HOURS)
+                    .<String, Boolean>build());
+            indexed = _indexed.get(columnFamily);
+        }
+        return indexed;
+    }
+
+    /**
+     * k-way merge of newest-first lines, dropping tweets seen in more than one.
+     *
+     * @param lines
+     * @param count
+     * @return
+     */
+    public static LinkedHashMap<Long, String> mergeNewestFirst(final List<? extends Map<Long, String>> lines,
+                                                               final int count) {
+        PriorityQueue<MergeHead> heads = new PriorityQueue<MergeHead>(Math.max(1, lines.size()));
+        for (Map<Long, String> line : lines) {
+            MergeHead head = new MergeHead(line.entrySet().iterator());
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+
+        LinkedHashMap<Long, String> merged = new LinkedHashMap<Long, String>();
+        Set<String> seen = new HashSet<String>();
+        while (merged.size() < count && !heads.isEmpty()) {
+            MergeHead head = heads.poll();
+            if (seen.add(head._column.getValue())) {
+                merged.put(head._column.getKey(), head._column.getValue());
+            }
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Where a read of a line has got to: the lookback buckets newest first,
+     *  a few per multiget, then the buckets the index lists, a page of it at
+     *  a time. The caller makes the reads rows() and _indexAfter ask for.
+     */
+    private class Walk {
+        private final String _uname;
+        private final String _columnFamily;
+        private final Long _afterColumn;
+        private final int _count;
+        // one column past the page tells whether another page follows
+        private final int _fetch;
+        private final LinkedHashMap<Long, String> _columns = new LinkedHashMap<Long, String>();
+        private long _bucket;
+        private int _walked = 0;
+        // the next index page, null once the index is read to the end
+        private Long _indexAfter;
+        private List<String> _older = new ArrayList<String>();
+        private int _olderRead = 0;
+
+        Walk(final String uname, final String columnFamily, final Long afterColumn, final int count) {
+            _uname = uname;
+            _columnFamily = columnFamily;
+            _afterColumn = afterColumn;
+            _count = count;
+            _fetch = count + 1;
+            _bucket = _buckets.startOf(null == afterColumn
+                    ? System.currentTimeMillis() : TimeIds.timestampOf(afterColumn));
+            _indexAfter = _bucket + 1;
+        }
+
+        boolean done() {
+            return _columns.size() >= _fetch
+                    || (_walked >= _lookback && _olderRead >= _older.size() && null == _indexAfter);
+        }
+
+        int remaining() {
+            return _fetch - _columns.size();
+        }
+
+        // the bucket rows to slice next, null if the next index page has to be read first
+        List<String> rows() {
+            if (_walked < _lookback) {
+                List<String> rows = new ArrayList<String>(BUCKETS_PER_READ);
+                for (int i = 0; i < BUCKETS_PER_READ && _walked < _lookback; i++, _walked++) {
+                    rows.add(rowFor(_uname, _bucket));
+                    _bucket = _buckets.previous(_bucket);
+                }
+                // past lookback, only the buckets the line has columns in
+                _indexAfter = _bucket + 1;
+                return rows;
+            }
+            if (_olderRead < _older.size()) {
+                List<String> rows = _older.subList(_olderRead, Math.min(_older.size(), _olderRead + BUCKETS_PER_READ));
+                _olderRead += rows.size();
+                return rows;
+            }
+            return null;
+        }
+
+        // afterColumn is newer than anything in an older bucket, so it is a safe cursor for all of them
+        void add(final List<String> rows, final Map<String, Map<Long, String>> slices) {
+            Lines.add(_columns, rows, slices, _fetch);
+        }
+
+        void addIndex(final Slice<Long> index) {
+            _older = new ArrayList<String>();
+            for (Long start : index.getColumns().keySet()) {
+                _older.add(rowFor(_uname, start));
+            }
+            _olderRead = 0;
+            _indexAfter = index.getNext();
+        }
+
+        Slice<Long> slice() {
+            return Slice.of(_columns, _count);
+        }
+    }
+
+    private static class MergeHead implements Comparable<MergeHead> {
+        private final Iterator<Map.Entry<Long, String>> _rest;
+        private Map.Entry<Long, String> _column;
+        private long _id;
+
+        MergeHead(final Iterator<Map.Entry<Long, String>> rest) {
+            _rest = rest;
+        }
+
+        boolean advance() {
+            if (!_rest.hasNext()) {
+                return false;
+            }
+            _column = _rest.next();
+            _id = _column.getKey();
+            return true;
+        }
+
+        public int compareTo(final MergeHead other) {
+            // newest first
+            return _id > other._id ? -1 : (_id == other._id ? 0 : 1);
+        }
+    }
+}
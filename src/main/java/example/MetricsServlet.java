@@ -0,0 +1,29 @@
+package example;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * MetricsServlet serves StorageMetrics.scrape() as plain text at /metrics,
+ *  for monitoring that scrapes HTTP rather than reading JMX.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException {
+        Storage storage = Base.storage;
+        if (null == storage) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "storage is not up yet");
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(storage.getMetrics().scrape());
+    }
+}
@@ -0,0 +1,186 @@
+package example;
+
+import org.apache.cassandra.thrift.Column;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * PartitionWidths is a TokenRangeScanner job that measures how wide the rows
+ *  of a column family are: a histogram of the column count and of the bytes
+ *  (column names plus values) per row, and the topN widest rows by column
+ *  count.
+ *
+ * Wide rows are read to the end pageColumns at a time, so a row like the old
+ *  "!PUBLIC!" is counted exactly but costs many round trips.
+ */
+public class PartitionWidths implements TokenRangeScanner.Job<PartitionWidths.Widths> {
+
+    // log2 buckets, enough for any long
+    private static final int BUCKETS = 64;
+
+    private final int _topN;
+    private final int _pageColumns;
+
+    public PartitionWidths(final int topN, final int pageColumns) {
+        _topN = topN;
+        _pageColumns = pageColumns;
+    }
+
+    public Widths newResult() {
+        return new Widths(_topN);
+    }
+
+    public void visit(final Widths result, final TokenRangeScanner.ScannedRow row) {
+        long columns = 0;
+        long bytes = 0;
+        List<Column> page = row.getColumns();
+        boolean more = row.isPartial();
+        while (!page.isEmpty()) {
+            for (Column column : page) {
+                bytes += column.name.remaining() + (null == column.value ? 0 : column.value.remaining());
+            }
+            columns += page.size();
+            if (!more) {
+                break;
+            }
+            page = row.more(page.get(page.size() - 1), _pageColumns);
+            more = page.size() >= _pageColumns;
+        }
+        result.add(row.getKey(), columns, bytes);
+    }
+
+    public Widths merge(final Widths left, final Widths right) {
+        for (int i = 0; i < BUCKETS; i++) {
+            left._columnHistogram[i] += right._columnHistogram[i];
+            left._byteHistogram[i] += right._byteHistogram[i];
+        }
+        left._rows += right._rows;
+        left._columns += right._columns;
+        left._bytes += right._bytes;
+        for (Wide wide : right._widest) {
+            left.offer(wide);
+        }
+        return left;
+    }
+
+    private static int bucket(final long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * The widths seen in part of, or after merging, all of a column family.
+     */
+    public static class Widths {
+        private final int _topN;
+        private final long[] _columnHistogram = new long[BUCKETS];
+        private final long[] _byteHistogram = new long[BUCKETS];
+        // narrowest of the widest on top
+        private final PriorityQueue<Wide> _widest = new PriorityQueue<Wide>();
+        private long _rows = 0;
+        private long _columns = 0;
+        private long _bytes = 0;
+
+        Widths(final int topN) {
+            _topN = topN;
+        }
+
+        void add(final String key, final long columns, final long bytes) {
+            _columnHistogram[Math.min(BUCKETS - 1, bucket(columns))]++;
+            _byteHistogram[Math.min(BUCKETS - 1, bucket(bytes))]++;
+            _rows++;
+            _columns += columns;
+            _bytes += bytes;
+            offer(new Wide(key, columns, bytes));
+        }
+
+        private void offer(final Wide wide) {
+            if (_widest.size() < _topN) {
+                _widest.add(wide);
+            } else if (_topN > 0 && _widest.peek().compareTo(wide) < 0) {
+                _widest.poll();
+                _widest.add(wide);
+            }
+        }
+
+        public long getRows() {
+            return _rows;
+        }
+
+        public long getColumns() {
+            return _columns;
+        }
+
+        public long getBytes() {
+            return _bytes;
+        }
+
+        /**
+         * @return the widest rows, widest first
+         */
+        public List<Wide> getWidest() {
+            List<Wide> widest = new ArrayList<Wide>(_widest);
+            Collections.sort(widest, Collections.reverseOrder());
+            return widest;
+        }
+
+        /**
+         * @param columnFamily
+         * @return the histograms and widest rows as text
+         */
+        public String report(final String columnFamily) {
+            StringBuilder out = new StringBuilder();
+            out.append(columnFamily).append(": ").append(_rows).append(" rows, ").append(_columns)
+                    .append(" columns, ").append(_bytes).append(" bytes\n");
+            out.append("  up to\tcolumns\tbytes\n");
+            int top = BUCKETS - 1;
+            while (top > 0 && 0 == _columnHistogram[top] && 0 == _byteHistogram[top]) {
+                top--;
+            }
+            for (int i = 0; i <= top; i++) {
+                long upTo = 0 == i ? 0 : (1L << i) - 1;
+                out.append("  ").append(upTo).append('\t').append(_columnHistogram[i]).append('\t')
+                        .append(_byteHistogram[i]).append('\n');
+            }
+            out.append("  widest rows:\n");
+            for (Wide wide : getWidest()) {
+                out.append("    ").append(wide.getKey()).append('\t').append(wide.getColumns()).append(" columns\t")
+                        .append(wide.getBytes()).append(" bytes\n");
+            }
+            return out.toString();
+        }
+    }
+
+    public static class Wide implements Comparable<Wide> {
+        private final String _key;
+        private final long _columns;
+        private final long _bytes;
+
+        Wide(final String key, final long columns, final long bytes) {
+            _key = key;
+            _columns = columns;
+            _bytes = bytes;
+        }
+
+        public String getKey() {
+            return _key;
+        }
+
+        public long getColumns() {
+            return _columns;
+        }
+
+        public long getBytes() {
+            return _bytes;
+        }
+
+        public int compareTo(final Wide other) {
+            if (_columns != other._columns) {
+                return _columns < other._columns ? -1 : 1;
+            }
+            return _bytes < other._bytes ? -1 : (_bytes == other._bytes ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PublicLine spreads the public timeline, which every tweet is written to,
+ *  over many Userline rows instead of the single "!PUBLIC!" row.
+ *
+ * Each tweet goes to one of shards rows picked by its id, and the rows roll
+ *  over with each time bucket, e.g. "!PUBLIC!:2026-10-17:5" for daily
+ *  buckets. A read slices every shard of a bucket in one multiget, merges
+ *  them newest first, and walks back to older buckets until the page is
+ *  full or lookback buckets have been tried.
+ *
+ * Past lookback a read only visits the buckets listed in the index row
+ *  "!PUBLIC!:buckets", one column per bucket named by its start, so it
+ *  reaches the oldest public tweet however quiet the site has been.
+ */
+public class PublicLine {
+
+    public static final String ROW = "!PUBLIC!";
+    public static final String INDEX_ROW = Lines.indexRow(ROW);
+    // index columns read at a time past lookback
+    private static final int INDEX_PAGE = 16;
+
+    private final Storage _storage;
+    private final int _shards;
+    private final TimeBuckets _buckets;
+    private final int _lookback;
+    // buckets this process has added to the index lately, to write each once
+    private final Cache<Long, Boolean> _indexed = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .build();
+
+    public PublicLine(final Storage storage,
+                      final int shards,
+                      final TimeBuckets buckets,
+                      final int lookback) {
+        _storage = storage;
+        _shards = shards;
+        _buckets = buckets;
+        _lookback = lookback;
+    }
+
+    public TimeBuckets getBuckets() {
+        return _buckets;
+    }
+
+    /**
+     * @param tweetid
+     * @param timestamp when the tweet was posted
+     * @return the Userline row the tweet belongs in
+     */
+    public String rowFor(final String tweetid, final long timestamp) {
+        return row(_buckets.labelOf(timestamp), (tweetid.hashCode() & Integer.MAX_VALUE) % _shards);
+    }
+
+    /**
+     * queue the write of the bucket holding timestamp into the index, unless
+     * a batch of this process did so lately.
+     *
+     * @param batch
+     * @param timestamp
+     */
+    public void index(final Storage.Batch batch, final long timestamp) {
+        final long bucket = _buckets.startOf(timestamp);
+        if (null == _indexed.getIfPresent(bucket)) {
+            // remembered only once written, the write is repeated until then
+            batch.updateColumn(INDEX_ROW, "", bucket, Storage.LE, Base.USERLINE).onExecuted(new Runnable() {
+                public void run() {
+                    _indexed.put(bucket, Boolean.TRUE);
+                }
+            });
+        }
+    }
+
+    private static String row(final String bucket, final int shard) {
+        return ROW + ":" + bucket + ":" + shard;
+    }
+
+    private List<String> rows(final long bucketStart) {
+        String bucket = _buckets.labelOf(bucketStart);
+        List<String> rows = new ArrayList<String>(_shards);
+        for (int shard = 0; shard < _shards; shard++) {
+            rows.add(row(bucket, shard));
+        }
+        return rows;
+    }
+
+    /**
+     * a page of the public line, newest first, starting just after the
+     * previous page's cursor.
+     *
+     * @param afterColumn null for the newest page
+     * @param count
+     * @return
+     */
+    public Slice<Long> read(final Long afterColumn, final int count) {
+        long bucket = _buckets.startOf(null == afterColumn
+                ? System.currentTimeMillis() : TimeIds.timestampOf(afterColumn));
+
+        // one column past the page tells whether another page follows
+        int fetch = count + 1;
+        LinkedHashMap<Long, String> columns = new LinkedHashMap<Long, String>();
+        for (int i = 0; i < _lookback && columns.size() < fetch; i++) {
+            read(columns, bucket, afterColumn, fetch);
+            bucket = _buckets.previous(bucket);
+        }
+
+        // past lookback, only the buckets with public tweets in them
+        Long indexAfter = bucket + 1;
+        while (columns.size() < fetch && null != indexAfter) {
+            Slice<Long> index = _storage.slice(INDEX_ROW, Base.USERLINE, indexAfter, INDEX_PAGE, true, Storage.LE);
+            for (Long start : index.getColumns().keySet()) {
+                if (columns.size() == fetch) {
+                    break;
+                }
+                read(columns, start, afterColumn, fetch);
+            }
+            indexAfter = index.getNext();
+        }
+        return Slice.of(columns, count);
+    }
+
+    private void read(final LinkedHashMap<Long, String> columns,
+                      final long bucket,
+                      final Long afterColumn,
+                      final int fetch) {
+        int wanted = fetch - columns.size();
+        Map<String, Map<Long, String>> shards = _storage.multiGetSlices(rows(bucket), Base.USERLINE,
+                afterColumn, wanted, true, Storage.LE);
+        // every column of an older bucket is older than every column already read
+        columns.putAll(Lines.mergeNewestFirst(new ArrayList<Map<Long, String>>(shards.values()), wanted));
+    }
+}
@@ -26,7 +26,7 @@ public class Publicline extends HomePage {
         nextpage = parameters.get("nextpage").toLong(0);
         username = parameters.get("username").toString();
         if (username == null) {
-            username = "!PUBLIC!";
+            username = PublicLine.ROW;
             add(new Label("h2name", "Public"));
         }
         else {
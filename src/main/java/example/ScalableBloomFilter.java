@@ -0,0 +1,245 @@
+package example;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ScalableBloomFilter tells whether a string might have been added to it,
+ *  in a few bits per string: never no for one that was, and yes for one
+ *  that was not at most falsePositiveRate of the time, however many are
+ *  added (Almeida et al., Scalable Bloom Filters).
+ *
+ * It is a series of plain Bloom filters. Strings go into the newest, and
+ *  once that holds as many as it was sized for the next is started, twice
+ *  as big and with half the false positive rate, so the rates of the whole
+ *  series add up to less than falsePositiveRate.
+ *
+ * Adding and looking up take no locks, only starting a filter does.
+ *  Strings cannot be taken out.
+ */
+public class ScalableBloomFilter {
+
+    private static final int MAGIC = 0x5CA1AB1E;
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+    private static final double LN2 = Math.log(2);
+
+    private final double _falsePositiveRate;
+    private volatile Stage[] _stages;
+
+    /**
+     * @param initialCapacity   strings the first filter is sized for
+     * @param falsePositiveRate e.g. 0.01
+     */
+    public ScalableBloomFilter(final long initialCapacity, final double falsePositiveRate) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("initialCapacity must be positive: " + initialCapacity);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate);
+        }
+        _falsePositiveRate = falsePositiveRate;
+        // the later filters' rates add up to the first one's
+        _stages = new Stage[]{new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING))};
+    }
+
+    private ScalableBloomFilter(final double falsePositiveRate, final Stage[] stages) {
+        _falsePositiveRate = falsePositiveRate;
+        _stages = stages;
+    }
+
+    public boolean mightContain(final String s) {
+        return mightContain(hash(s));
+    }
+
+    private boolean mightContain(final long hash) {
+        for (Stage stage : _stages) {
+            if (stage.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param s
+     * @return false if s might have been added already, in which case it
+     *  is not added again, so strings added over and over, or that are
+     *  false positives, do not use up capacity
+     */
+    public boolean add(final String s) {
+        long hash = hash(s);
+        if (mightContain(hash)) {
+            return false;
+        }
+        Stage[] stages = _stages;
+        Stage stage = stages[stages.length - 1];
+        if (stage._count.get() >= stage._capacity) {
+            stage = grow(stage);
+        }
+        stage.put(hash);
+        return true;
+    }
+
+    private synchronized Stage grow(final Stage full) {
+        Stage[] stages = _stages;
+        Stage last = stages[stages.length - 1];
+        if (last != full) {
+            // another thread got here first
+            return last;
+        }
+        Stage[] grown = new Stage[stages.length + 1];
+        System.arraycopy(stages, 0, grown, 0, stages.length);
+        grown[stages.length] = new Stage(full._capacity * GROWTH, full._falsePositiveRate * TIGHTENING);
+        _stages = grown;
+        return grown[stages.length];
+    }
+
+    public double getFalsePositiveRate() {
+        return _falsePositiveRate;
+    }
+
+    /**
+     * @return how many plain filters the series has grown to
+     */
+    public int getStages() {
+        return _stages.length;
+    }
+
+    /**
+     * @return the strings added, not counting those that were already there
+     */
+    public long getCount() {
+        long count = 0;
+        for (Stage stage : _stages) {
+            count += stage._count.get();
+        }
+        return count;
+    }
+
+    public long getSizeBytes() {
+        long bytes = 0;
+        for (Stage stage : _stages) {
+            bytes += 8L * stage._words.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * write the filter out. strings added meanwhile may or may not be in
+     * what is written.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+        Stage[] stages = _stages;
+        out.writeInt(MAGIC);
+        out.writeDouble(_falsePositiveRate);
+        out.writeInt(stages.length);
+        for (Stage stage : stages) {
+            out.writeLong(stage._capacity);
+            out.writeDouble(stage._falsePositiveRate);
+            out.writeLong(stage._count.get());
+            out.writeInt(stage._words.length());
+            for (int i = 0; i < stage._words.length(); i++) {
+                out.writeLong(stage._words.get(i));
+            }
+        }
+    }
+
+    /**
+     * @param in
+     * @return a filter as written by writeTo
+     * @throws IOException
+     */
+    public static ScalableBloomFilter readFrom(final DataInput in) throws IOException {
+        if (MAGIC != in.readInt()) {
+            throw new IOException("not a ScalableBloomFilter");
+        }
+        double falsePositiveRate = in.readDouble();
+        Stage[] stages = new Stage[in.readInt()];
+        for (int s = 0; s < stages.length; s++) {
+            stages[s] = new Stage(in.readLong(), in.readDouble());
+            stages[s]._count.set(in.readLong());
+            int words = in.readInt();
+            if (words != stages[s]._words.length()) {
+                throw new IOException("filter " + s + " has " + words + " words, expected "
+                        + stages[s]._words.length());
+            }
+            for (int i = 0; i < words; i++) {
+                stages[s]._words.set(i, in.readLong());
+            }
+        }
+        return new ScalableBloomFilter(falsePositiveRate, stages);
+    }
+
+    // FNV-1a over the chars, then MurmurHash3's finalizer to spread the bits
+    private static long hash(final String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * One plain Bloom filter. Its k bit positions for a string are
+     *  h1 + i * h2, both taken from the string's 64 bit hash.
+     */
+    private static class Stage {
+        private final long _capacity;
+        private final double _falsePositiveRate;
+        private final long _bits;
+        private final int _hashes;
+        private final AtomicLongArray _words;
+        private final AtomicLong _count = new AtomicLong();
+
+        private Stage(final long capacity, final double falsePositiveRate) {
+            _capacity = capacity;
+            _falsePositiveRate = falsePositiveRate;
+            long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+            int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+            _words = new AtomicLongArray(words);
+            _bits = 64L * words;
+            _hashes = (int) Math.max(1, Math.round((double) _bits / capacity * LN2));
+        }
+
+        private boolean contains(final long hash) {
+            long step = mix(hash) | 1;
+            for (int i = 0; i < _hashes; i++) {
+                long bit = ((hash + i * step) & Long.MAX_VALUE) % _bits;
+                if (0 == (_words.get((int) (bit >>> 6)) & (1L << bit))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void put(final long hash) {
+            long step = mix(hash) | 1;
+            for (int i = 0; i < _hashes; i++) {
+                long bit = ((hash + i * step) & Long.MAX_VALUE) % _bits;
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word = _words.get(index);
+                while (0 == (word & mask) && !_words.compareAndSet(index, word, word | mask)) {
+                    word = _words.get(index);
+                }
+            }
+            _count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package example;
+
+import org.mortbay.jetty.AbstractConnector;
+
+/**
+ * ServerMetrics puts the Launcher's thread pool and connector stats side by
+ *  side for JMX.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final HandlerThreadPool _pool;
+    private final AbstractConnector _connector;
+
+    public ServerMetrics(final HandlerThreadPool pool, final AbstractConnector connector) {
+        _pool = pool;
+        _connector = connector;
+        _connector.setStatsOn(true);
+    }
+
+    public boolean isVirtualThreads() {
+        return _pool.isVirtual();
+    }
+
+    public int getThreads() {
+        return _pool.getThreads();
+    }
+
+    public int getMaxRequests() {
+        return _pool.getMaxRequests();
+    }
+
+    public int getActiveRequests() {
+        return _pool.getActiveRequests();
+    }
+
+    public int getPeakActiveRequests() {
+        return _pool.getPeakActiveRequests();
+    }
+
+    public int getQueuedRequests() {
+        return _pool.getQueuedRequests();
+    }
+
+    public long getDispatched() {
+        return _pool.getDispatched();
+    }
+
+    public long getWaits() {
+        return _pool.getWaits();
+    }
+
+    public long getRejected() {
+        return _pool.getRejected();
+    }
+
+    public int getConnectionsOpen() {
+        return _connector.getConnectionsOpen();
+    }
+
+    public int getConnectionsOpenMax() {
+        return _connector.getConnectionsOpenMax();
+    }
+
+    public int getConnections() {
+        return _connector.getConnections();
+    }
+
+    public int getRequests() {
+        return _connector.getRequests();
+    }
+
+    public long getConnectionsDurationAve() {
+        return _connector.getConnectionsDurationAve();
+    }
+}
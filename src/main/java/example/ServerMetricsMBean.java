@@ -0,0 +1,35 @@
+package example;
+
+/**
+ * JMX view of the Launcher's request threads and connections.
+ */
+public interface ServerMetricsMBean {
+
+    boolean isVirtualThreads();
+
+    int getThreads();
+
+    int getMaxRequests();
+
+    int getActiveRequests();
+
+    int getPeakActiveRequests();
+
+    int getQueuedRequests();
+
+    long getDispatched();
+
+    long getWaits();
+
+    long getRejected();
+
+    int getConnectionsOpen();
+
+    int getConnectionsOpenMax();
+
+    int getConnections();
+
+    int getRequests();
+
+    long getConnectionsDurationAve();
+}
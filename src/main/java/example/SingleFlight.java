@@ -0,0 +1,157 @@
+package example;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SingleFlight lets identical reads that are in flight at the same time
+ *  share one call to storage: the first caller makes the call, and callers
+ *  asking for the same thing before it returns wait for it and get the same
+ *  result. A popular account's tweet or the public timeline being rendered
+ *  for hundreds of readers at once then costs one read, not hundreds.
+ *
+ * A caller never joins a read that started before a write to the same row
+ *  finished, it starts a read of its own instead, so it always sees writes
+ *  that finished before it asked. Writes are tracked per stripe of rows;
+ *  two rows sharing a stripe only cost the odd read that could have been
+ *  shared. A read of several rows is shared only while none of them has
+ *  been written to.
+ */
+public class SingleFlight {
+
+    private static final int STRIPES = 4096;
+
+    private final StorageMetrics _metrics;
+    private final ConcurrentMap<Object, Flight> _flights = new ConcurrentHashMap<Object, Flight>();
+    // writes finished, per stripe of rows
+    private final AtomicLongArray _writes = new AtomicLongArray(STRIPES);
+
+    /**
+     * @param metrics counts reads issued and reads coalesced into them
+     */
+    public SingleFlight(final StorageMetrics metrics) {
+        _metrics = metrics;
+    }
+
+    /**
+     * @param columnFamily
+     * @param key     the row read
+     * @param request everything else that tells reads of the row apart,
+     *                e.g. the column names or slice range, compared by equals()
+     * @param read    makes the call to storage
+     * @return the result of read, possibly shared with other callers, so not to be changed
+     */
+    public <T> T read(final String columnFamily,
+                      final String key,
+                      final Object request,
+                      final Callable<T> read) {
+        return read(_writes.get(stripe(columnFamily, key)), request, read);
+    }
+
+    /**
+     * @param columnFamily
+     * @param keys    the rows read
+     * @param request everything that tells the read apart, keys included
+     * @param read    makes the call to storage
+     * @return the result of read, possibly shared with other callers, so not to be changed
+     */
+    public <T> T read(final String columnFamily,
+                      final Collection<String> keys,
+                      final Object request,
+                      final Callable<T> read) {
+        // the counters only grow, so for the same keys an equal sum means no stripe has moved
+        long writes = 0;
+        for (String key : keys) {
+            writes += _writes.get(stripe(columnFamily, key));
+        }
+        return read(writes, request, read);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T read(final long writes, final Object request, final Callable<T> read) {
+        Flight flight = new Flight(writes);
+        while (true) {
+            Flight inFlight = _flights.putIfAbsent(request, flight);
+            if (null == inFlight) {
+                break;
+            }
+            if (inFlight._writes >= writes) {
+                _metrics.readCoalesced();
+                return (T) inFlight.await();
+            }
+            // started before a write this caller has to see, take its place
+            if (_flights.replace(request, inFlight, flight)) {
+                break;
+            }
+        }
+
+        _metrics.readIssued();
+        try {
+            T result = read.call();
+            flight._result.complete(result);
+            return result;
+        } catch (RuntimeException ex) {
+            flight._result.completeExceptionally(ex);
+            throw ex;
+        } catch (Error ex) {
+            flight._result.completeExceptionally(ex);
+            throw ex;
+        } catch (Exception ex) {
+            flight._result.completeExceptionally(ex);
+            throw new RuntimeException(ex);
+        } finally {
+            _flights.remove(request, flight);
+        }
+    }
+
+    /**
+     * @return the stripe the row is in, for written(int)
+     */
+    public int stripe(final String columnFamily, final String key) {
+        int hash = columnFamily.hashCode() * 31 + key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * a write to the row has finished, reads that started before it are no
+     *  longer shared.
+     */
+    public void written(final String columnFamily, final String key) {
+        written(stripe(columnFamily, key));
+    }
+
+    public void written(final int stripe) {
+        _writes.incrementAndGet(stripe);
+    }
+
+    private static class Flight {
+        private final long _writes;
+        private final CompletableFuture<Object> _result = new CompletableFuture<Object>();
+
+        private Flight(final long writes) {
+            _writes = writes;
+        }
+
+        private Object await() {
+            try {
+                return _result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Slice is one page of a row's columns, in the order they were read, plus
+ *  the cursor to read the page after it.
+ *
+ * The cursor is the name of the last column on this page and is exclusive:
+ *  the next page starts with the column after it. It is null when nothing
+ *  follows this page.
+ *
+ * N is the type of the column names, String for most rows and the long ids
+ *  of TimeIds for Timeline and Userline.
+ */
+public class Slice<N> {
+
+    private final LinkedHashMap<N, String> columns;
+    private final N next;
+
+    public Slice(final LinkedHashMap<N, String> columns, final N next) {
+        this.columns = columns;
+        this.next = next;
+    }
+
+    /**
+     * cut a page of count columns out of columns read with one to spare.
+     *
+     * @param columns up to count + 1 columns, in order
+     * @param count
+     * @return
+     */
+    public static <N> Slice<N> of(final Map<N, String> columns, final int count) {
+        return of(columns, count, false);
+    }
+
+    /**
+     * @param columns
+     * @param count
+     * @param more    true if more columns are known to follow the given ones
+     * @return
+     */
+    public static <N> Slice<N> of(final Map<N, String> columns, final int count, final boolean more) {
+        LinkedHashMap<N, String> page = new LinkedHashMap<N, String>();
+        N last = null;
+        for (Map.Entry<N, String> column : columns.entrySet()) {
+            if (page.size() == count) {
+                break;
+            }
+            page.put(column.getKey(), column.getValue());
+            last = column.getKey();
+        }
+        boolean hasNext = columns.size() > count || more;
+        return new Slice<N>(page, hasNext ? last : null);
+    }
+
+    public LinkedHashMap<N, String> getColumns() {
+        return columns;
+    }
+
+    public N getNext() {
+        return next;
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+}
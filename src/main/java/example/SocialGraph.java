@@ -0,0 +1,338 @@
+package example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * SocialGraph keeps recently used Friends and Followers rows in memory as
+ *  DeltaIntSets of UserIds, a byte or two per edge instead of a String, so
+ *  fan-out and "is this a friend" checks walk primitive ids.
+ *
+ * A row is read in full, a page at a time, the first time it is asked for.
+ *  addFriends and removeFriends change the rows that are in memory once
+ *  their writes have gone through. Follows made on other app servers do not
+ *  reach this process, so rows are also dropped maxAgeMillis after they
+ *  were read, and the least used go when the rows outgrow capacityBytes.
+ *
+ * Followers rows of more than maxFollowers are not kept, followers()
+ *  answers null for them and they have to be paged through in storage.
+ *
+ * The usernames behind the ids count against capacityBytes too: the rows
+ *  get half of it and the ids a quarter. When the ids outgrow their quarter
+ *  a new generation starts, with a new id table numbered on from the old
+ *  one and no rows, which are read again as they are asked for. Rows are
+ *  handed out as Users, which carry the table their ids were numbered in,
+ *  so a caller still walking one when the generation turns over, or two,
+ *  gets the right names; the old table goes once no one holds its rows.
+ */
+public class SocialGraph implements SocialGraphMBean {
+
+    private static final int PAGE_SIZE = 1000;
+    // object headers, the set's fields and the cache's own entry
+    private static final int ENTRY_OVERHEAD = 160;
+    // stands in for rows too long to keep, told apart by identity
+    private static final DeltaIntSet TOO_LONG = DeltaIntSet.of(new int[]{0}, 1);
+
+    private final Storage _storage;
+    private final long _capacityBytes;
+    private final long _maxAgeMillis;
+    private final int _maxFollowers;
+    private volatile Generation _generation;
+    // guarded by this
+    private long _generations = 1;
+    private long _retiredHits = 0;
+    private long _retiredMisses = 0;
+
+    /**
+     * @param storage
+     * @param capacityBytes rough heap budget for the rows and the usernames of their ids
+     * @param maxAgeMillis  how long a row read from storage is trusted
+     * @param maxFollowers  the longest Followers row kept
+     */
+    public SocialGraph(final Storage storage,
+                       final long capacityBytes,
+                       final long maxAgeMillis,
+                       final int maxFollowers) {
+        _storage = storage;
+        _capacityBytes = capacityBytes;
+        _maxAgeMillis = maxAgeMillis;
+        _maxFollowers = maxFollowers;
+        _generation = new Generation(0);
+    }
+
+    // the generation to use, a new one if the ids have outgrown their budget
+    private Generation current() {
+        Generation generation = _generation;
+        if (generation._ids.getSizeBytes() <= _capacityBytes / 4) {
+            return generation;
+        }
+        synchronized (this) {
+            if (generation == _generation) {
+                int end = generation._ids.end();
+                // ids stay non-negative; by the time they wrap the first tables are long gone
+                _generation = new Generation(end > Integer.MAX_VALUE / 2 ? 0 : end);
+                _generations++;
+                _retiredHits += generation._friends.stats().hitCount() + generation._followers.stats().hitCount();
+                _retiredMisses += generation._friends.stats().missCount()
+                        + generation._followers.stats().missCount();
+                generation._friends.invalidateAll();
+                generation._followers.invalidateAll();
+            }
+            return _generation;
+        }
+    }
+
+    private static Cache<Integer, DeltaIntSet> newCache(final long capacityBytes, final long maxAgeMillis) {
+        return Caffeine.newBuilder()
+                .maximumWeight(capacityBytes)
+                .weigher(new Weigher<Integer, DeltaIntSet>() {
+                    public int weigh(Integer id, DeltaIntSet ids) {
+                        return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + ids.getSizeBytes());
+                    }
+                })
+                .expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the longest Followers row kept, followers() answers null past it
+     */
+    public int getMaxFollowers() {
+        return _maxFollowers;
+    }
+
+    /**
+     * @param uname
+     * @return the users uname follows
+     */
+    public Users friends(final String uname) {
+        Generation generation = current();
+        return new Users(row(generation, generation._friends, Base.FRIENDS, uname, Integer.MAX_VALUE),
+                generation._ids);
+    }
+
+    /**
+     * @param uname
+     * @return the users following uname, null if there are more than
+     *  maxFollowers of them
+     */
+    public Users followers(final String uname) {
+        Generation generation = current();
+        DeltaIntSet followers = row(generation, generation._followers, Base.FOLLOWERS, uname, _maxFollowers);
+        return TOO_LONG == followers ? null : new Users(followers, generation._ids);
+    }
+
+    public boolean isFriend(final String uname, final String friend) {
+        Generation generation = current();
+        DeltaIntSet friends = row(generation, generation._friends, Base.FRIENDS, uname, Integer.MAX_VALUE);
+        // an id is handed out to every name in a row as the row is read
+        int id = generation._ids.lookup(friend);
+        return id >= 0 && friends.contains(id);
+    }
+
+    /**
+     * @param users
+     * @param count
+     * @return the first count usernames of users, in name order
+     */
+    public List<String> unames(final Users users, final int count) {
+        List<String> unames = new ArrayList<String>(users.size());
+        Users.Cursor cursor = users.cursor();
+        while (cursor.next()) {
+            unames.add(cursor.uname());
+        }
+        Collections.sort(unames);
+        return unames.size() > count ? new ArrayList<String>(unames.subList(0, count)) : unames;
+    }
+
+    /**
+     * uname now follows friends, the writes have gone through.
+     *
+     * @param uname
+     * @param friends
+     */
+    public void followed(final String uname, final List<String> friends) {
+        Generation generation = current();
+        int id = generation._ids.id(uname);
+        int[] friendIds = ids(generation, friends);
+        change(generation._friends, id, friendIds, true);
+        for (int friendId : friendIds) {
+            change(generation._followers, friendId, new int[]{id}, true);
+        }
+    }
+
+    /**
+     * uname no longer follows friends, the writes have gone through.
+     *
+     * @param uname
+     * @param friends
+     */
+    public void unfollowed(final String uname, final List<String> friends) {
+        Generation generation = current();
+        int id = generation._ids.id(uname);
+        int[] friendIds = ids(generation, friends);
+        change(generation._friends, id, friendIds, false);
+        for (int friendId : friendIds) {
+            change(generation._followers, friendId, new int[]{id}, false);
+        }
+    }
+
+    private static int[] ids(final Generation generation, final List<String> unames) {
+        int[] ids = new int[unames.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = generation._ids.id(unames.get(i));
+        }
+        return ids;
+    }
+
+    // rows that are not in memory are left alone, they are read in full when needed.
+    // A read under way finishes first, so it cannot bring back what this changes
+    private static void change(final Cache<Integer, DeltaIntSet> rows,
+                               final int id,
+                               final int[] ids,
+                               final boolean add) {
+        rows.asMap().computeIfPresent(id, new BiFunction<Integer, DeltaIntSet, DeltaIntSet>() {
+            public DeltaIntSet apply(Integer key, DeltaIntSet row) {
+                if (TOO_LONG == row) {
+                    return row;
+                }
+                return add ? row.withAll(ids) : row.withoutAll(ids);
+            }
+        });
+    }
+
+    private DeltaIntSet row(final Generation generation,
+                            final Cache<Integer, DeltaIntSet> rows,
+                            final String columnFamily,
+                            final String uname,
+                            final int maxIds) {
+        return rows.get(generation._ids.id(uname), new Function<Integer, DeltaIntSet>() {
+            public DeltaIntSet apply(Integer id) {
+                return read(generation._ids, columnFamily, uname, maxIds);
+            }
+        });
+    }
+
+    private DeltaIntSet read(final UserIds userIds, final String columnFamily, final String uname, final int maxIds) {
+        int[] ids = new int[16];
+        int length = 0;
+        Slice<String> slice = _storage.slice(uname, columnFamily, null, PAGE_SIZE, false);
+        while (true) {
+            for (String column : slice.getColumns().keySet()) {
+                if (length == maxIds) {
+                    return TOO_LONG;
+                }
+                if (length == ids.length) {
+                    ids = Arrays.copyOf(ids, 2 * length);
+                }
+                ids[length++] = userIds.id(column);
+            }
+            if (!slice.hasNext()) {
+                break;
+            }
+            slice = _storage.slice(uname, columnFamily, slice.getNext(), PAGE_SIZE, false);
+        }
+        return DeltaIntSet.of(ids, length);
+    }
+
+    public int getUsers() {
+        return _generation._ids.size();
+    }
+
+    public long getRows() {
+        Generation generation = _generation;
+        return generation._friends.estimatedSize() + generation._followers.estimatedSize();
+    }
+
+    public long getSizeBytes() {
+        Generation generation = _generation;
+        return sizeBytes(generation._friends) + sizeBytes(generation._followers) + generation._ids.getSizeBytes();
+    }
+
+    public synchronized long getGenerations() {
+        return _generations;
+    }
+
+    private static long sizeBytes(final Cache<Integer, DeltaIntSet> rows) {
+        Policy.Eviction<Integer, DeltaIntSet> eviction = rows.policy().eviction().orElse(null);
+        return null == eviction ? 0 : eviction.weightedSize().orElse(0L);
+    }
+
+    public synchronized long getHits() {
+        return _retiredHits + _generation._friends.stats().hitCount() + _generation._followers.stats().hitCount();
+    }
+
+    public synchronized long getMisses() {
+        return _retiredMisses + _generation._friends.stats().missCount()
+                + _generation._followers.stats().missCount();
+    }
+
+    /**
+     * A row's ids and the table they were numbered in, which names them
+     *  whatever generation the graph has moved on to since.
+     */
+    public static final class Users {
+        private final DeltaIntSet _ids;
+        private final UserIds _names;
+
+        Users(final DeltaIntSet ids, final UserIds names) {
+            _ids = ids;
+            _names = names;
+        }
+
+        public int size() {
+            return _ids.size();
+        }
+
+        public boolean isEmpty() {
+            return _ids.isEmpty();
+        }
+
+        public Cursor cursor() {
+            return new Cursor(_ids.cursor());
+        }
+
+        /**
+         * Walks the users in id order.
+         */
+        public final class Cursor {
+            private final DeltaIntSet.Cursor _cursor;
+
+            private Cursor(final DeltaIntSet.Cursor cursor) {
+                _cursor = cursor;
+            }
+
+            public boolean next() {
+                return _cursor.next();
+            }
+
+            public String uname() {
+                return _names.uname(_cursor.id());
+            }
+        }
+    }
+
+    /**
+     * An id table and the rows kept in its ids.
+     */
+    private class Generation {
+        private final UserIds _ids;
+        private final Cache<Integer, DeltaIntSet> _friends = newCache(_capacityBytes / 4, _maxAgeMillis);
+        private final Cache<Integer, DeltaIntSet> _followers = newCache(_capacityBytes / 4, _maxAgeMillis);
+
+        Generation(final int base) {
+            _ids = new UserIds(base);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package example;
+
+/**
+ * JMX view of the in-memory social graph.
+ */
+public interface SocialGraphMBean {
+
+    int getUsers();
+
+    long getRows();
+
+    long getSizeBytes();
+
+    long getGenerations();
+
+    long getHits();
+
+    long getMisses();
+}
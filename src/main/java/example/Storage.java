@@ -0,0 +1,260 @@
+package example;
+
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.ddl.ComparatorType;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Storage is what twissjava needs from a column store: rows of named
+ *  columns with string values, kept in column families.
+ *
+ * CassandraService keeps them in a Cassandra cluster, EmbeddedStorage in
+ *  this JVM. Which one the app runs on is chosen by the storage key of
+ *  twissjava.properties.
+ *
+ * Column names are strings unless a Serializer says otherwise, and sort by
+ *  the comparator their column family was created with.
+ */
+public interface Storage {
+
+    LongSerializer LE = LongSerializer.get();
+
+    /**
+     * stop the worker threads, called when the application goes away.
+     */
+    void shutdown();
+
+    /**
+     * replace the pool the ...Async calls run on, before any are made.
+     *
+     * @param asyncExecutor
+     */
+    void setAsyncExecutor(AsyncExecutor asyncExecutor);
+
+    AsyncExecutor getAsyncExecutor();
+
+    /**
+     * @return the latencies of the calls made to this storage
+     */
+    StorageMetrics getMetrics();
+
+    /**
+     * create column family if absent, with columns sorted as bytes.
+     *
+     * @param columnFamily
+     */
+    void createColumnFamilyIfAbsent(String columnFamily);
+
+    /**
+     * create column family if absent, with columns sorted by comparator.
+     *
+     * @param columnFamily
+     * @param comparator
+     */
+    void createColumnFamilyIfAbsent(String columnFamily, ComparatorType comparator);
+
+    /**
+     * @param key
+     * @param columnName
+     * @param columnFamily
+     * @return the value, or "" if there is no such column
+     */
+    String readColumn(String key, String columnName, String columnFamily);
+
+    /**
+     * @param key
+     * @param columns
+     * @param columnFamily
+     * @return every one of columns, "" for the missing ones
+     */
+    HashMap<String, String> readColumns(String key, String[] columns, String columnFamily);
+
+    HashMap<String, String> listColumns(String key, String columnFamily);
+
+    HashMap<String, String> listColumns(String key, String columnFamily, String startColumn);
+
+    HashMap<String, String> listColumns(String key, String columnFamily, String startColumn, int count);
+
+    /**
+     * list columns starting from startColumn (inclusive), in comparator
+     * order or, if reversed, backwards.
+     *
+     * @param key
+     * @param columnFamily
+     * @param startColumn
+     * @param count
+     * @param reversed
+     * @return
+     */
+    LinkedHashMap<String, String> listColumns(String key, String columnFamily, String startColumn,
+                                              int count, boolean reversed);
+
+    /**
+     * read the same columns from many rows at once.
+     *
+     * rows come back in the order of keys, a missing row is an empty map.
+     *
+     * @param keys
+     * @param columnNames null for the first columns of each row
+     * @param columnFamily
+     * @return
+     */
+    LinkedHashMap<String, Map<String, String>> multiGetColumns(List<String> keys, String[] columnNames,
+                                                               String columnFamily);
+
+    LinkedHashMap<String, Map<String, String>> multiGetSlices(List<String> keys, String columnFamily,
+                                                              String afterColumn, int count, boolean reversed);
+
+    /**
+     * slice many rows at once, each from just after afterColumn.
+     *
+     * rows come back in the order of keys and keep their column order,
+     * a missing row is an empty map. each row has count columns at most.
+     *
+     * @param keys
+     * @param columnFamily
+     * @param afterColumn null to start at the first column
+     * @param count
+     * @param reversed
+     * @param nameSerializer
+     * @return
+     */
+    <N> LinkedHashMap<String, Map<N, String>> multiGetSlices(List<String> keys, String columnFamily,
+                                                             N afterColumn, int count, boolean reversed,
+                                                             Serializer<N> nameSerializer);
+
+    int countColumns(String key, String columnFamily);
+
+    Slice<String> slice(String key, String columnFamily, String afterColumn, int count, boolean reversed);
+
+    /**
+     * read one page of a row, from just after afterColumn.
+     *
+     * @param key
+     * @param columnFamily
+     * @param afterColumn null for the first page
+     * @param count
+     * @param reversed
+     * @param nameSerializer
+     * @return
+     */
+    <N> Slice<N> slice(String key, String columnFamily, N afterColumn, int count, boolean reversed,
+                       Serializer<N> nameSerializer);
+
+    void updateColumn(String key, String value, String columnName, String columnFamily);
+
+    void deleteColumn(String key, String columnName, String columnFamily);
+
+    /**
+     * walk the keys of a column family without holding them all in memory.
+     * keys of deleted rows may show up.
+     *
+     * @param columnFamily
+     * @param pageSize keys fetched per round trip
+     * @param prefetch fetch the next page while the caller works on this one
+     * @return
+     */
+    Iterator<String> iterateKeys(String columnFamily, int pageSize, boolean prefetch);
+
+    /**
+     * start a batch of writes, which may span rows and column families.
+     *
+     * @return
+     */
+    Batch batch();
+
+    /**
+     * run any blocking work on the async executor.
+     *
+     * @param call
+     * @return
+     */
+    <T> CompletableFuture<T> async(Callable<T> call);
+
+    CompletableFuture<String> readColumnAsync(String key, String columnName, String columnFamily);
+
+    CompletableFuture<HashMap<String, String>> readColumnsAsync(String key, String[] columns, String columnFamily);
+
+    CompletableFuture<LinkedHashMap<String, String>> listColumnsAsync(String key, String columnFamily,
+                                                                      String startColumn, int count,
+                                                                      boolean reversed);
+
+    CompletableFuture<LinkedHashMap<String, Map<String, String>>> multiGetColumnsAsync(List<String> keys,
+                                                                                       String[] columnNames,
+                                                                                       String columnFamily);
+
+    <N> CompletableFuture<LinkedHashMap<String, Map<N, String>>> multiGetSlicesAsync(List<String> keys,
+                                                                                     String columnFamily,
+                                                                                     N afterColumn, int count,
+                                                                                     boolean reversed,
+                                                                                     Serializer<N> nameSerializer);
+
+    CompletableFuture<Slice<String>> sliceAsync(String key, String columnFamily, String afterColumn,
+                                                int count, boolean reversed);
+
+    <N> CompletableFuture<Slice<N>> sliceAsync(String key, String columnFamily, N afterColumn, int count,
+                                               boolean reversed, Serializer<N> nameSerializer);
+
+    CompletableFuture<Integer> countColumnsAsync(String key, String columnFamily);
+
+    CompletableFuture<Void> updateColumnAsync(String key, String value, String columnName, String columnFamily);
+
+    CompletableFuture<Void> deleteColumnAsync(String key, String columnName, String columnFamily);
+
+    /**
+     * writes queued to be applied together.
+     */
+    interface Batch {
+
+        Batch updateColumn(String key, String value, String columnName, String columnFamily);
+
+        /**
+         * queue an update of a column whose name is not a string
+         *
+         * @param key
+         * @param value
+         * @param columnName
+         * @param nameSerializer
+         * @param columnFamily
+         * @return
+         */
+        <N> Batch updateColumn(String key, String value, N columnName, Serializer<N> nameSerializer,
+                               String columnFamily);
+
+        Batch deleteColumn(String key, String columnName, String columnFamily);
+
+        /**
+         * run callback once an execute() has applied everything queued so
+         * far, e.g. to remember a write went through. it is not run if
+         * execute() throws, until a retry of it succeeds.
+         *
+         * @param callback
+         * @return
+         */
+        Batch onExecuted(Runnable callback);
+
+        /**
+         * apply whatever is still pending. if this throws, what it did not
+         * apply is still pending, and calling it again retries that.
+         *
+         * @return the number of round trips this batch made
+         */
+        int execute();
+
+        /**
+         * execute() on the async executor. the batch must not be touched
+         * until the future completes.
+         *
+         * @return
+         */
+        CompletableFuture<Integer> executeAsync();
+    }
+}
@@ -0,0 +1,339 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StorageMetrics keeps a LatencyHistogram per operation and column family
+ *  of a Storage, and every interval rolls them over, so what is published
+ *  is the latest complete interval rather than everything since startup.
+ *
+ * The latencies and, for Cassandra, the connection pool, hedged reads and
+ *  coalesced reads are published over JMX as twissjava:type=StorageMetrics,
+ *  and as plain text by scrape(), which MetricsServlet serves at /metrics.
+ */
+public class StorageMetrics implements StorageMetricsMBean {
+
+    public static final String READ = "read";
+    public static final String SLICE = "slice";
+    public static final String MULTIGET = "multiget";
+    public static final String RANGE = "range";
+    public static final String COUNT = "count";
+    public static final String MUTATE = "mutate";
+
+    // the column family of a batch that wrote to more than one
+    public static final String MIXED = "*";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Stats of a connection pool, summed over its hosts.
+     */
+    public interface Pool {
+        int getActive();
+
+        int getIdle();
+
+        int getBlockedThreads();
+
+        long getExhausted();
+
+        List<String> getStatus();
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> _histograms =
+            new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+    private final ScheduledExecutorService _roller;
+    private ScheduledFuture<?> _rolling;
+    private volatile long _intervalMillis;
+    // operation -> column family -> the last interval
+    private volatile Map<String, Map<String, LatencyHistogram.Snapshot>> _last =
+            Collections.<String, Map<String, LatencyHistogram.Snapshot>>emptyMap();
+    private volatile Pool _pool;
+    private final AtomicLong _hedgesSent = new AtomicLong();
+    private final AtomicLong _hedgesWon = new AtomicLong();
+    private final AtomicLong _hedgesOverBudget = new AtomicLong();
+    private final AtomicLong _hedgesSaturated = new AtomicLong();
+    private final AtomicLong _readsIssued = new AtomicLong();
+    private final AtomicLong _readsCoalesced = new AtomicLong();
+
+    public StorageMetrics(final long intervalMillis) {
+        _roller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "storage-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setIntervalMillis(intervalMillis);
+    }
+
+    public void shutdown() {
+        _roller.shutdownNow();
+    }
+
+    /**
+     * @param intervalMillis how long each published histogram covers
+     */
+    public synchronized void setIntervalMillis(final long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("intervalMillis must be positive: " + intervalMillis);
+        }
+        if (null != _rolling) {
+            _rolling.cancel(false);
+        }
+        _intervalMillis = intervalMillis;
+        _rolling = _roller.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                roll();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getIntervalMillis() {
+        return _intervalMillis;
+    }
+
+    /**
+     * @param pool the connection pool to publish, null if there is none
+     */
+    public void setPool(final Pool pool) {
+        _pool = pool;
+    }
+
+    /**
+     * record one call that started at startNanos, from System.nanoTime(),
+     *  and has just finished.
+     *
+     * @param operation
+     * @param columnFamily
+     * @param startNanos
+     */
+    public void record(final String operation, final String columnFamily, final long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        ConcurrentMap<String, LatencyHistogram> families = _histograms.get(operation);
+        if (null == families) {
+            _histograms.putIfAbsent(operation, new ConcurrentHashMap<String, LatencyHistogram>());
+            families = _histograms.get(operation);
+        }
+        LatencyHistogram histogram = families.get(columnFamily);
+        if (null == histogram) {
+            families.putIfAbsent(columnFamily, new LatencyHistogram());
+            histogram = families.get(columnFamily);
+        }
+        histogram.record(micros);
+    }
+
+    /**
+     * a hedged read sent a second attempt.
+     */
+    public void hedgeSent() {
+        _hedgesSent.incrementAndGet();
+    }
+
+    /**
+     * a hedged read's second attempt answered first.
+     */
+    public void hedgeWon() {
+        _hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * a read was slow enough to hedge, but the hedging budget was spent.
+     */
+    public void hedgeOverBudget() {
+        _hedgesOverBudget.incrementAndGet();
+    }
+
+    /**
+     * a read ran on its caller, or went without a hedge, because every
+     * hedging thread was busy.
+     */
+    public void hedgeSaturated() {
+        _hedgesSaturated.incrementAndGet();
+    }
+
+    /**
+     * a read that identical reads can share went to storage.
+     */
+    public void readIssued() {
+        _readsIssued.incrementAndGet();
+    }
+
+    /**
+     * a read shared the result of an identical one already in flight.
+     */
+    public void readCoalesced() {
+        _readsCoalesced.incrementAndGet();
+    }
+
+    /**
+     * start a new interval, publishing the one that just ended.
+     */
+    public void roll() {
+        Map<String, Map<String, LatencyHistogram.Snapshot>> last =
+                new TreeMap<String, Map<String, LatencyHistogram.Snapshot>>();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> operation : _histograms.entrySet()) {
+            Map<String, LatencyHistogram.Snapshot> families = new TreeMap<String, LatencyHistogram.Snapshot>();
+            for (Map.Entry<String, LatencyHistogram> family : operation.getValue().entrySet()) {
+                LatencyHistogram.Snapshot snapshot = family.getValue().snapshotAndReset();
+                if (snapshot.getCount() > 0) {
+                    families.put(family.getKey(), snapshot);
+                }
+            }
+            if (!families.isEmpty()) {
+                last.put(operation.getKey(), families);
+            }
+        }
+        _last = last;
+    }
+
+    /**
+     * @return operation -> column family -> latencies of the last complete interval
+     */
+    public Map<String, Map<String, LatencyHistogram.Snapshot>> getLastInterval() {
+        return _last;
+    }
+
+    public String[] getLatencies() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, LatencyHistogram.Snapshot>> operation : _last.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram.Snapshot> family : operation.getValue().entrySet()) {
+                LatencyHistogram.Snapshot s = family.getValue();
+                lines.add(operation.getKey() + " " + family.getKey()
+                        + " count=" + s.getCount() + " mean=" + Math.round(s.getMean())
+                        + " p50=" + s.getValueAt(0.5) + " p99=" + s.getValueAt(0.99)
+                        + " p999=" + s.getValueAt(0.999) + " max=" + s.getMax());
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public long getOperations() {
+        long operations = 0;
+        for (Map<String, LatencyHistogram.Snapshot> families : _last.values()) {
+            for (LatencyHistogram.Snapshot snapshot : families.values()) {
+                operations += snapshot.getCount();
+            }
+        }
+        return operations;
+    }
+
+    public long getHedgesSent() {
+        return _hedgesSent.get();
+    }
+
+    public long getHedgesWon() {
+        return _hedgesWon.get();
+    }
+
+    public long getHedgesOverBudget() {
+        return _hedgesOverBudget.get();
+    }
+
+    public long getHedgesSaturated() {
+        return _hedgesSaturated.get();
+    }
+
+    public long getReadsIssued() {
+        return _readsIssued.get();
+    }
+
+    public long getReadsCoalesced() {
+        return _readsCoalesced.get();
+    }
+
+    public int getPoolActive() {
+        Pool pool = _pool;
+        return null == pool ? 0 : pool.getActive();
+    }
+
+    public int getPoolIdle() {
+        Pool pool = _pool;
+        return null == pool ? 0 : pool.getIdle();
+    }
+
+    public int getPoolBlockedThreads() {
+        Pool pool = _pool;
+        return null == pool ? 0 : pool.getBlockedThreads();
+    }
+
+    public long getPoolExhausted() {
+        Pool pool = _pool;
+        return null == pool ? 0 : pool.getExhausted();
+    }
+
+    public String[] getPoolStatus() {
+        Pool pool = _pool;
+        if (null == pool) {
+            return new String[0];
+        }
+        List<String> status = pool.getStatus();
+        return status.toArray(new String[status.size()]);
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP twissjava_storage_latency_micros storage call latency over the last interval\n");
+        out.append("# TYPE twissjava_storage_latency_micros summary\n");
+        for (Map.Entry<String, Map<String, LatencyHistogram.Snapshot>> operation : _last.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram.Snapshot> family : operation.getValue().entrySet()) {
+                String labels = "op=\"" + operation.getKey() + "\",cf=\"" + escape(family.getKey()) + "\"";
+                LatencyHistogram.Snapshot s = family.getValue();
+                for (double quantile : QUANTILES) {
+                    out.append("twissjava_storage_latency_micros{").append(labels)
+                            .append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(s.getValueAt(quantile)).append('\n');
+                }
+                out.append("twissjava_storage_latency_micros_count{").append(labels).append("} ")
+                        .append(s.getCount()).append('\n');
+                out.append("twissjava_storage_latency_micros_max{").append(labels).append("} ")
+                        .append(s.getMax()).append('\n');
+            }
+        }
+        out.append("# TYPE twissjava_storage_interval_seconds gauge\n");
+        out.append("twissjava_storage_interval_seconds ").append(_intervalMillis / 1000.0).append('\n');
+        counter(out, "twissjava_storage_hedges_sent_total", _hedgesSent.get());
+        counter(out, "twissjava_storage_hedges_won_total", _hedgesWon.get());
+        counter(out, "twissjava_storage_hedges_over_budget_total", _hedgesOverBudget.get());
+        counter(out, "twissjava_storage_hedges_saturated_total", _hedgesSaturated.get());
+        counter(out, "twissjava_storage_reads_issued_total", _readsIssued.get());
+        counter(out, "twissjava_storage_reads_coalesced_total", _readsCoalesced.get());
+        Pool pool = _pool;
+        if (null != pool) {
+            gauge(out, "twissjava_storage_pool_active", pool.getActive());
+            gauge(out, "twissjava_storage_pool_idle", pool.getIdle());
+            gauge(out, "twissjava_storage_pool_blocked_threads", pool.getBlockedThreads());
+            counter(out, "twissjava_storage_pool_exhausted_total", pool.getExhausted());
+        }
+        return out.toString();
+    }
+
+    private static void gauge(final StringBuilder out, final String name, final long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(final StringBuilder out, final String name, final long value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(final String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,57 @@
+package example;
+
+/**
+ * JMX view of storage latencies, over the last completed interval, of
+ *  the connection pool, and of hedged and coalesced reads.
+ */
+public interface StorageMetricsMBean {
+
+    long getIntervalMillis();
+
+    /**
+     * @return one line per operation and column family: count, mean, p50, p99, p999 and max in microseconds
+     */
+    String[] getLatencies();
+
+    long getOperations();
+
+    /**
+     * @return second attempts sent by hedged reads, since startup
+     */
+    long getHedgesSent();
+
+    /**
+     * @return second attempts that answered before the first
+     */
+    long getHedgesWon();
+
+    /**
+     * @return reads that were slow enough to hedge when the budget was spent
+     */
+    long getHedgesOverBudget();
+
+    /**
+     * @return reads run unhedged because every hedging thread was busy
+     */
+    long getHedgesSaturated();
+
+    /**
+     * @return single-row reads that went to storage, since startup
+     */
+    long getReadsIssued();
+
+    /**
+     * @return single-row reads that shared an identical read already in flight
+     */
+    long getReadsCoalesced();
+
+    int getPoolActive();
+
+    int getPoolIdle();
+
+    int getPoolBlockedThreads();
+
+    long getPoolExhausted();
+
+    String[] getPoolStatus();
+}
@@ -0,0 +1,155 @@
+package example;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * TimeBuckets cuts time into fixed calendar periods (hours, days or months,
+ *  in UTC) so that an ever-growing line can be spread over one row per period.
+ *
+ * Nearly every write lands in the newest bucket, so its start, end and label
+ *  are kept and answered without working anything out.
+ */
+public class TimeBuckets {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    public enum Width {
+        HOUR("uuuu-MM-dd-HH"),
+        DAY("uuuu-MM-dd"),
+        MONTH("uuuu-MM");
+
+        private final DateTimeFormatter _format;
+
+        Width(final String pattern) {
+            _format = DateTimeFormatter.ofPattern(pattern)
+                    .withZone(ZoneOffset.UTC)
+                    .withResolverStyle(ResolverStyle.STRICT);
+        }
+    }
+
+    private final Width _width;
+    // the newest bucket asked about
+    private volatile Bucket _newest;
+
+    public TimeBuckets(final Width width) {
+        _width = width;
+        _newest = bucket(System.currentTimeMillis());
+    }
+
+    /**
+     * @param width "hour", "day" or "month"
+     * @return
+     */
+    public static TimeBuckets parse(final String width) {
+        return new TimeBuckets(Width.valueOf(width.trim().toUpperCase()));
+    }
+
+    public Width getWidth() {
+        return _width;
+    }
+
+    /**
+     * @param millis
+     * @return the start of the bucket holding millis
+     */
+    public long startOf(final long millis) {
+        Bucket newest = _newest;
+        return newest.holds(millis) ? newest._start : start(millis);
+    }
+
+    private long start(final long millis) {
+        if (Width.HOUR == _width) {
+            return Math.floorDiv(millis, HOUR_MILLIS) * HOUR_MILLIS;
+        }
+        long day = Math.floorDiv(millis, DAY_MILLIS);
+        if (Width.DAY == _width) {
+            return day * DAY_MILLIS;
+        }
+        return LocalDate.ofEpochDay(day).withDayOfMonth(1).toEpochDay() * DAY_MILLIS;
+    }
+
+    /**
+     * @param bucketStart
+     * @return the start of the bucket before the one starting at bucketStart
+     */
+    public long previous(final long bucketStart) {
+        return startOf(bucketStart - 1);
+    }
+
+    /**
+     * @param millis
+     * @return the label of the bucket holding millis, e.g. 2026-10 for months
+     */
+    public String labelOf(final long millis) {
+        Bucket newest = _newest;
+        if (newest.holds(millis)) {
+            return newest._label;
+        }
+        Bucket bucket = bucket(millis);
+        if (bucket._start > newest._start) {
+            _newest = bucket;
+        }
+        return bucket._label;
+    }
+
+    private Bucket bucket(final long millis) {
+        long start = start(millis);
+        long end;
+        if (Width.HOUR == _width) {
+            end = start + HOUR_MILLIS;
+        } else if (Width.DAY == _width) {
+            end = start + DAY_MILLIS;
+        } else {
+            end = LocalDate.ofEpochDay(Math.floorDiv(start, DAY_MILLIS)).plusMonths(1).toEpochDay() * DAY_MILLIS;
+        }
+        return new Bucket(start, end, _width._format.format(Instant.ofEpochMilli(start)));
+    }
+
+    /**
+     * @param label
+     * @return the start of the bucket labelOf gives label to
+     * @throws IllegalArgumentException if label is not one of these buckets'
+     */
+    public long startOfLabel(final String label) {
+        TemporalAccessor parsed;
+        try {
+            parsed = _width._format.parse(label);
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("not a " + _width + " bucket: " + label, ex);
+        }
+        int year = parsed.get(ChronoField.YEAR);
+        int month = parsed.get(ChronoField.MONTH_OF_YEAR);
+        if (Width.MONTH == _width) {
+            return LocalDate.of(year, month, 1).toEpochDay() * DAY_MILLIS;
+        }
+        long start = LocalDate.of(year, month, parsed.get(ChronoField.DAY_OF_MONTH)).toEpochDay() * DAY_MILLIS;
+        return Width.HOUR == _width ? start + parsed.get(ChronoField.HOUR_OF_DAY) * HOUR_MILLIS : start;
+    }
+
+    /**
+     * [start, end) and its label.
+     */
+    private static class Bucket {
+        private final long _start;
+        private final long _end;
+        private final String _label;
+
+        Bucket(final long start, final long end, final String label) {
+            _start = start;
+            _end = end;
+            _label = label;
+        }
+
+        boolean holds(final long millis) {
+            return millis >= _start && millis < _end;
+        }
+    }
+}
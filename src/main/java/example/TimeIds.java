@@ -0,0 +1,69 @@
+package example;
+
+/**
+ * TimeIds hands out the column names of Timeline and Userline: longs that
+ *  sort by posting time and never repeat, so two tweets posted in the same
+ *  millisecond no longer overwrite each other.
+ *
+ * An id is 41 bits of milliseconds since EPOCH, then 10 bits of node and 12
+ *  bits of sequence. Each app server needs its own node number for ids to
+ *  be unique across servers. More than 4096 ids in one millisecond borrow
+ *  the next millisecond, and a clock that steps back is ignored until it
+ *  catches up, so ids from one generator always increase.
+ */
+public class TimeIds {
+
+    // 2010-01-01T00:00:00Z, good for 69 years
+    public static final long EPOCH = 1262304000000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private final long _node;
+    private long _lastMillis = -1;
+    private long _sequence = 0;
+
+    public TimeIds(final int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        _node = node;
+    }
+
+    /**
+     * @return a new id, greater than every id this generator handed out before
+     */
+    public synchronized long next() {
+        long millis = Math.max(System.currentTimeMillis(), _lastMillis);
+        if (millis == _lastMillis) {
+            _sequence = (_sequence + 1) & MAX_SEQUENCE;
+            if (0 == _sequence) {
+                millis++;
+            }
+        } else {
+            _sequence = 0;
+        }
+        _lastMillis = millis;
+        return ((millis - EPOCH) << TIME_SHIFT) | (_node << SEQUENCE_BITS) | _sequence;
+    }
+
+    /**
+     * @param id
+     * @return the time, in milliseconds, the id was made at
+     */
+    public static long timestampOf(final long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    /**
+     * @param millis
+     * @return the smallest id made at millis, e.g. for a column from before
+     *  columns were TimeIds
+     */
+    public static long firstIdAt(final long millis) {
+        return (millis - EPOCH) << TIME_SHIFT;
+    }
+}
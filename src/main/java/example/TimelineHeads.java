@@ -0,0 +1,334 @@
+package example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * TimelineHeads keeps the newest column names and tweet ids of recently read
+ *  Timeline and Userline rows in memory, so that the first page of a line
+ *  almost never goes to Cassandra.
+ *
+ * A head is created the first time a line is read and is then kept current
+ *  by saveTweet and the fan-out, which append to heads that exist and leave
+ *  everyone else alone. Heads of users who stop reading expire. Each head
+ *  is a ring buffer of at most capacity entries, so it can only answer
+ *  first-page reads; later pages always go to Cassandra.
+ *
+ * Writes made by other app servers do not reach this process's heads. With
+ *  verify on, a head is only served while nothing newer than its newest
+ *  column has been written since it was loaded. Anything written since is
+ *  in the bucket rows from the load on, which is almost always the one
+ *  current bucket, so that costs a one-column slice of it instead of a
+ *  page. The public line is not checked, that would take a slice of every
+ *  shard of the bucket on every hit. Columns another server slips in below the newest
+ *  are not seen this way either, so heads are also dropped maxAgeMillis
+ *  after they were loaded. Verify can be off when this is the only app
+ *  server writing.
+ */
+public class TimelineHeads implements TimelineHeadsMBean {
+
+    private final Lines _lines;
+    private final int _capacity;
+    private final boolean _verify;
+    private final Cache<String, Head> _heads;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _stale = new AtomicLong();
+
+    /**
+     * @param lines
+     * @param capacity     newest columns kept per line
+     * @param maxLines
+     * @param idleMillis
+     * @param maxAgeMillis how long a loaded head is trusted
+     * @param verify       whether a head's newest column is checked against the line before it is served
+     */
+    public TimelineHeads(final Lines lines,
+                         final int capacity,
+                         final long maxLines,
+                         final long idleMillis,
+                         final long maxAgeMillis,
+                         final boolean verify) {
+        _lines = lines;
+        _capacity = capacity;
+        _verify = verify;
+        _heads = Caffeine.newBuilder()
+                .maximumSize(maxLines)
+                .expireAfterAccess(idleMillis, TimeUnit.MILLISECONDS)
+                .expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private static String lineKey(final String columnFamily, final String row) {
+        return columnFamily + '/' + row;
+    }
+
+    /**
+     * the first page of a line, newest first, from memory when possible
+     * and from Lines otherwise.
+     *
+     * @param row
+     * @param columnFamily
+     * @param count
+     * @return
+     */
+    public Slice<Long> newest(final String row,
+                              final String columnFamily,
+                              final int count) {
+        // one column past the page tells whether another page follows
+        int fetch = count + 1;
+        if (fetch > _capacity) {
+            _misses.incrementAndGet();
+            return _lines.read(row, columnFamily, null, count);
+        }
+
+        String key = lineKey(columnFamily, row);
+        Head head = _heads.getIfPresent(key);
+        if (head != null) {
+            LinkedHashMap<Long, String> columns = head.newest(fetch);
+            if (columns != null && (!verify(row, columnFamily)
+                    || current(columns, _lines.newestSince(row, columnFamily, head.getLoadedAt())))) {
+                return hit(columns, count);
+            }
+            if (columns != null) {
+                head = stale(key);
+            }
+        } else {
+            head = register(key);
+        }
+
+        _misses.incrementAndGet();
+        long loadedAt = System.currentTimeMillis();
+        return load(head, _lines.read(row, columnFamily, null, _capacity), loadedAt, count);
+    }
+
+    /**
+     * newest() through Lines' async reads; a head that needs no check is
+     * answered at once, without going to the async executor.
+     *
+     * @param row
+     * @param columnFamily
+     * @param count
+     * @return
+     */
+    public CompletableFuture<Slice<Long>> newestAsync(final String row,
+                                                      final String columnFamily,
+                                                      final int count) {
+        int fetch = count + 1;
+        if (fetch > _capacity) {
+            _misses.incrementAndGet();
+            return _lines.readAsync(row, columnFamily, null, count);
+        }
+
+        final String key = lineKey(columnFamily, row);
+        final Head head = _heads.getIfPresent(key);
+        if (head == null) {
+            return loadAsync(register(key), row, columnFamily, count);
+        }
+        final LinkedHashMap<Long, String> columns = head.newest(fetch);
+        if (columns == null) {
+            return loadAsync(head, row, columnFamily, count);
+        }
+        if (!verify(row, columnFamily)) {
+            return CompletableFuture.completedFuture(hit(columns, count));
+        }
+        return _lines.newestSinceAsync(row, columnFamily, head.getLoadedAt())
+                .thenCompose(new Function<Long, CompletableFuture<Slice<Long>>>() {
+                    public CompletableFuture<Slice<Long>> apply(Long newest) {
+                        if (current(columns, newest)) {
+                            return CompletableFuture.completedFuture(hit(columns, count));
+                        }
+                        return loadAsync(stale(key), row, columnFamily, count);
+                    }
+                });
+    }
+
+    private CompletableFuture<Slice<Long>> loadAsync(final Head head,
+                                                     final String row,
+                                                     final String columnFamily,
+                                                     final int count) {
+        _misses.incrementAndGet();
+        final long loadedAt = System.currentTimeMillis();
+        return _lines.readAsync(row, columnFamily, null, _capacity)
+                .thenApply(new Function<Slice<Long>, Slice<Long>>() {
+                    public Slice<Long> apply(Slice<Long> loaded) {
+                        return load(head, loaded, loadedAt, count);
+                    }
+                });
+    }
+
+    private Slice<Long> hit(final LinkedHashMap<Long, String> columns, final int count) {
+        _hits.incrementAndGet();
+        return Slice.of(columns, count);
+    }
+
+    // another server wrote to the line, start over
+    private Head stale(final String key) {
+        _stale.incrementAndGet();
+        Head head = new Head(_capacity);
+        _heads.put(key, head);
+        return head;
+    }
+
+    // registered before reading, so appends made during the read are kept
+    private Head register(final String key) {
+        return _heads.get(key, new Function<String, Head>() {
+            public Head apply(String k) {
+                return new Head(_capacity);
+            }
+        });
+    }
+
+    private static Slice<Long> load(final Head head, final Slice<Long> loaded, final long loadedAt, final int count) {
+        head.load(loaded.getColumns(), !loaded.hasNext(), loadedAt);
+        return Slice.of(loaded.getColumns(), count, loaded.hasNext());
+    }
+
+    private boolean verify(final String row, final String columnFamily) {
+        return _verify && !PublicLine.ROW.equals(row);
+    }
+
+    // whether the newest column written since the head was loaded is no newer than the first of columns
+    private static boolean current(final Map<Long, String> columns, final Long newest) {
+        if (null == newest) {
+            return true;
+        }
+        return !columns.isEmpty() && newest <= columns.keySet().iterator().next();
+    }
+
+    /**
+     * record a column just written to a line, if that line is buffered.
+     *
+     * @param row
+     * @param columnFamily
+     * @param columnName
+     * @param tweetid
+     */
+    public void append(final String row,
+                       final String columnFamily,
+                       final long columnName,
+                       final String tweetid) {
+        Head head = _heads.getIfPresent(lineKey(columnFamily, row));
+        if (head != null) {
+            head.add(columnName, tweetid);
+        }
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public long getLines() {
+        return _heads.estimatedSize();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getStale() {
+        return _stale.get();
+    }
+
+    /**
+     * Newest-first ring buffer of (column, tweetid). Until load() the head
+     * only collects appends and cannot answer reads.
+     */
+    static class Head {
+        private final long[] _columns;
+        private final String[] _tweetids;
+        private int _newest = 0;
+        private int _size = 0;
+        private boolean _loaded = false;
+        // true while every column of the line is in the buffer
+        private boolean _complete = false;
+        private long _loadedAt;
+
+        Head(final int capacity) {
+            _columns = new long[capacity];
+            _tweetids = new String[capacity];
+        }
+
+        private int slot(final int position) {
+            return (_newest + position) % _columns.length;
+        }
+
+        /**
+         * @param columns  the newest columns of the line
+         * @param complete true if the line has no columns older than these
+         * @param loadedAt when the read of columns started
+         */
+        synchronized void load(final Map<Long, String> columns, final boolean complete, final long loadedAt) {
+            for (Map.Entry<Long, String> column : columns.entrySet()) {
+                add(column.getKey(), column.getValue());
+            }
+            _loaded = true;
+            _complete = complete && _size < _columns.length;
+            _loadedAt = loadedAt;
+        }
+
+        synchronized long getLoadedAt() {
+            return _loadedAt;
+        }
+
+        synchronized LinkedHashMap<Long, String> newest(final int count) {
+            if (!_loaded || (_size < count && !_complete)) {
+                return null;
+            }
+            LinkedHashMap<Long, String> page = new LinkedHashMap<Long, String>();
+            for (int i = 0; i < Math.min(count, _size); i++) {
+                page.put(_columns[slot(i)], _tweetids[slot(i)]);
+            }
+            return page;
+        }
+
+        synchronized void add(final long column, final String tweetid) {
+            int capacity = _columns.length;
+
+            // find the first position holding an older column
+            int position = 0;
+            while (position < _size && _columns[slot(position)] > column) {
+                position++;
+            }
+            if (position < _size && _columns[slot(position)] == column) {
+                _tweetids[slot(position)] = tweetid;
+                return;
+            }
+            if (position == capacity) {
+                // older than everything in a full buffer
+                _complete = false;
+                return;
+            }
+
+            if (0 == position) {
+                _newest = (_newest + capacity - 1) % capacity;
+            } else {
+                int last = Math.min(_size, capacity - 1);
+                for (int i = last; i > position; i--) {
+                    _columns[slot(i)] = _columns[slot(i - 1)];
+                    _tweetids[slot(i)] = _tweetids[slot(i - 1)];
+                }
+            }
+            _columns[slot(position)] = column;
+            _tweetids[slot(position)] = tweetid;
+            if (_size == capacity) {
+                // the oldest entry fell off
+                _complete = false;
+            } else {
+                _size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package example;
+
+/**
+ * JMX view of the in-memory timeline heads.
+ */
+public interface TimelineHeadsMBean {
+
+    int getCapacity();
+
+    long getLines();
+
+    long getHits();
+
+    long getMisses();
+
+    long getStale();
+}
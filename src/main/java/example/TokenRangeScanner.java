@@ -0,0 +1,192 @@
+package example;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.KeySlice;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * TokenRangeScanner runs a Job over every row of a column family. The ring
+ *  is cut into token ranges of about keysPerSplit keys each, and the ranges
+ *  are scanned in parallel on a fork-join pool: the list of ranges is halved
+ *  until one range is left, each range is paged through with
+ *  get_range_slices, and the partial results are merged back up.
+ *
+ * Only the first columnCount columns of a row come with it; jobs that need
+ *  the rest page through them with ScannedRow.more(). Rows without columns,
+ *  i.e. deleted ones, are skipped.
+ */
+public class TokenRangeScanner {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Work done on each row. visit() is called from many threads, but each
+     * call gets a result no other thread is using.
+     */
+    public interface Job<R> {
+
+        R newResult();
+
+        void visit(R result, ScannedRow row);
+
+        R merge(R left, R right);
+    }
+
+    private final CassandraService _cassandra;
+    private final ForkJoinPool _pool;
+    private final int _pageSize;
+    private final int _columnCount;
+    private final int _keysPerSplit;
+
+    public TokenRangeScanner(final CassandraService cassandra,
+                             final int parallelism,
+                             final int pageSize,
+                             final int columnCount,
+                             final int keysPerSplit) {
+        _cassandra = cassandra;
+        _pool = new ForkJoinPool(parallelism);
+        _pageSize = pageSize;
+        _columnCount = columnCount;
+        _keysPerSplit = keysPerSplit;
+    }
+
+    /**
+     * run job over every row of columnFamily.
+     *
+     * @param columnFamily
+     * @param job
+     * @return the merged result of all token ranges
+     */
+    public <R> R scan(final String columnFamily, final Job<R> job) {
+        List<String[]> splits = _cassandra.tokenSplits(columnFamily, _keysPerSplit);
+        return _pool.invoke(new ScanTask<R>(columnFamily, job, splits));
+    }
+
+    public void shutdown() {
+        _pool.shutdown();
+    }
+
+    private <R> void scanRange(final String columnFamily,
+                               final Job<R> job,
+                               final R result,
+                               final String startToken,
+                               final String endToken) {
+        String start = startToken;
+        while (true) {
+            List<KeySlice> rows = _cassandra.rangeSlicesByToken(columnFamily, start, endToken, _pageSize,
+                    _columnCount);
+            for (KeySlice row : rows) {
+                if (!row.getColumns().isEmpty()) {
+                    job.visit(result, new ScannedRow(columnFamily, row));
+                }
+            }
+            if (rows.size() < _pageSize) {
+                return;
+            }
+
+            // the start token is exclusive, so the next page begins after the last row
+            String next = _cassandra.tokenOf(rows.get(rows.size() - 1).key);
+            if (next.equals(endToken)) {
+                return;
+            }
+            start = next;
+        }
+    }
+
+    private class ScanTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final String _columnFamily;
+        private final Job<R> _job;
+        private final List<String[]> _splits;
+
+        ScanTask(final String columnFamily, final Job<R> job, final List<String[]> splits) {
+            _columnFamily = columnFamily;
+            _job = job;
+            _splits = splits;
+        }
+
+        protected R compute() {
+            if (_splits.size() <= 1) {
+                R result = _job.newResult();
+                for (String[] split : _splits) {
+                    scanRange(_columnFamily, _job, result, split[0], split[1]);
+                }
+                return result;
+            }
+
+            int half = _splits.size() / 2;
+            ScanTask<R> left = new ScanTask<R>(_columnFamily, _job, _splits.subList(0, half));
+            ScanTask<R> right = new ScanTask<R>(_columnFamily, _job, _splits.subList(half, _splits.size()));
+            left.fork();
+            R rightResult = right.compute();
+            return _job.merge(left.join(), rightResult);
+        }
+    }
+
+    /**
+     * A row as read by the scan, with its first columns.
+     */
+    public class ScannedRow {
+        private final String _columnFamily;
+        private final ByteBuffer _key;
+        private final List<Column> _columns;
+
+        ScannedRow(final String columnFamily, final KeySlice row) {
+            _columnFamily = columnFamily;
+            _key = row.key;
+            _columns = columns(row.getColumns());
+        }
+
+        public String getColumnFamily() {
+            return _columnFamily;
+        }
+
+        public String getKey() {
+            return UTF8.decode(_key.duplicate()).toString();
+        }
+
+        public List<Column> getColumns() {
+            return _columns;
+        }
+
+        /**
+         * @return true if the row may have columns beyond getColumns()
+         */
+        public boolean isPartial() {
+            return _columns.size() >= _columnCount;
+        }
+
+        /**
+         * read the count columns that follow after.
+         *
+         * @param after the last column already seen
+         * @param count
+         * @return
+         */
+        public List<Column> more(final Column after, final int count) {
+            List<Column> page = columns(_cassandra.sliceRaw(_columnFamily, _key, after.name, count + 1));
+            if (!page.isEmpty() && page.get(0).name.equals(after.name)) {
+                page = page.subList(1, page.size());
+            }
+            return page;
+        }
+
+        private List<Column> columns(final List<ColumnOrSuperColumn> raw) {
+            List<Column> columns = new ArrayList<Column>(raw.size());
+            for (ColumnOrSuperColumn column : raw) {
+                if (null != column.column) {
+                    columns.add(column.column);
+                }
+            }
+            return columns;
+        }
+    }
+}
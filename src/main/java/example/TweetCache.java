@@ -0,0 +1,99 @@
+package example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import example.models.Tweet;
+
+import java.util.Map;
+
+/**
+ * TweetCache keeps decoded Tweets in memory in front of the Tweet column
+ *  family. Tweets never change once saved, so entries are never stale and
+ *  only leave when the cache is full.
+ *
+ * Capacity is an estimate of heap bytes, not a count of tweets. Eviction is
+ *  Caffeine's W-TinyLFU, which keeps the frequently read tweets of popular
+ *  accounts over the long tail of tweets read once.
+ */
+public class TweetCache implements TweetCacheMBean {
+
+    // object headers, references and the cache's own entry
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final Cache<String, Tweet> _cache;
+    private final long _capacityBytes;
+
+    public TweetCache(final long capacityBytes) {
+        _capacityBytes = capacityBytes;
+        _cache = Caffeine.newBuilder()
+                .maximumWeight(capacityBytes)
+                .weigher(new Weigher<String, Tweet>() {
+                    public int weigh(String tweetid, Tweet tweet) {
+                        return estimateBytes(tweetid, tweet);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    static int estimateBytes(final String tweetid, final Tweet tweet) {
+        return ENTRY_OVERHEAD
+                + 2 * tweetid.length()
+                + tweet.getKey().length
+                + 2 * length(tweet.getUname())
+                + 2 * length(tweet.getBody());
+    }
+
+    private static int length(final String s) {
+        return null == s ? 0 : s.length();
+    }
+
+    public Tweet get(final String tweetid) {
+        return _cache.getIfPresent(tweetid);
+    }
+
+    /**
+     * @param tweetids
+     * @return the cached tweets among tweetids
+     */
+    public Map<String, Tweet> getAll(final Iterable<String> tweetids) {
+        return _cache.getAllPresent(tweetids);
+    }
+
+    public void put(final String tweetid, final Tweet tweet) {
+        _cache.put(tweetid, tweet);
+    }
+
+    public long getCapacityBytes() {
+        return _capacityBytes;
+    }
+
+    public long getSizeBytes() {
+        Policy.Eviction<String, Tweet> eviction = _cache.policy().eviction().orElse(null);
+        return null == eviction ? 0 : eviction.weightedSize().orElse(0L);
+    }
+
+    public long getEntries() {
+        return _cache.estimatedSize();
+    }
+
+    public double getHitRate() {
+        return _cache.stats().hitRate();
+    }
+
+    public long getHits() {
+        return _cache.stats().hitCount();
+    }
+
+    public long getMisses() {
+        return _cache.stats().missCount();
+    }
+
+    public long getEvictions() {
+        CacheStats stats = _cache.stats();
+        return stats.evictionCount();
+    }
+}
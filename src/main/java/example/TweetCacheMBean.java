@@ -0,0 +1,21 @@
+package example;
+
+/**
+ * JMX view of the in-process tweet cache.
+ */
+public interface TweetCacheMBean {
+
+    long getCapacityBytes();
+
+    long getSizeBytes();
+
+    long getEntries();
+
+    double getHitRate();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+}
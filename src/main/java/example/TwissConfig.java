@@ -0,0 +1,88 @@
+package example;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Runtime settings for twissjava.
+ *
+ * Values are read from twissjava.properties on the classpath and can be
+ * overridden with -D system properties of the same name.
+ */
+public final class TwissConfig {
+
+    private static final Logger LOG = Logger.getLogger(TwissConfig.class);
+
+    private static final String RESOURCE = "/twissjava.properties";
+    private static final Properties PROPS = load();
+
+    private TwissConfig() {
+    }
+
+    private static Properties load() {
+        Properties props = new Properties();
+        InputStream in = TwissConfig.class.getResourceAsStream(RESOURCE);
+        if (null == in) {
+            return props;
+        }
+        try {
+            props.load(in);
+        } catch (IOException ex) {
+            LOG.warn("Unable to read " + RESOURCE, ex);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+        return props;
+    }
+
+    public static String getString(final String name, final String defaultValue) {
+        String value = System.getProperty(name);
+        if (null == value) {
+            value = PROPS.getProperty(name);
+        }
+        if (null == value || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static int getInt(final String name, final int defaultValue) {
+        String value = getString(name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            LOG.warn("Ignoring bad value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(final String name, final long defaultValue) {
+        String value = getString(name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            LOG.warn("Ignoring bad value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(final String name, final boolean defaultValue) {
+        String value = getString(name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,96 @@
+package example;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UserIds numbers the usernames this process has seen base, base + 1 and
+ *  on, so that SocialGraph can keep ids instead of names. The numbers are
+ *  only meaningful in this process: they are handed out in the order names
+ *  turn up, are never reused, and are not stored anywhere.
+ *
+ * The table only grows. SocialGraph bounds it by starting a new one, with
+ *  a base past this one's ids, once getSizeBytes() outgrows its budget.
+ */
+public class UserIds {
+
+    // the map's node and key, the array slot and the String, less its characters
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final int _base;
+    private final ConcurrentMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] _unames = new String[1024];
+    // guarded by this
+    private int _count;
+    private volatile long _sizeBytes;
+
+    /**
+     * @param base the first id to hand out
+     */
+    public UserIds(final int base) {
+        if (base < 0) {
+            throw new IllegalArgumentException("base must not be negative: " + base);
+        }
+        _base = base;
+    }
+
+    /**
+     * @param uname
+     * @return the id of uname, numbering it if it has none yet
+     */
+    public int id(final String uname) {
+        Integer id = _ids.get(uname);
+        return null == id ? assign(uname) : id;
+    }
+
+    /**
+     * @param uname
+     * @return the id of uname, or -1 if it has none
+     */
+    public int lookup(final String uname) {
+        Integer id = _ids.get(uname);
+        return null == id ? -1 : id;
+    }
+
+    private synchronized int assign(final String uname) {
+        Integer id = _ids.get(uname);
+        if (null != id) {
+            return id;
+        }
+        if (_count == _unames.length) {
+            _unames = Arrays.copyOf(_unames, 2 * _count);
+        }
+        // written before the id is published through _ids
+        _unames[_count] = uname;
+        _ids.put(uname, _base + _count);
+        _sizeBytes += ENTRY_OVERHEAD + 2L * uname.length();
+        return _base + _count++;
+    }
+
+    /**
+     * @param id one handed out by id()
+     * @return
+     */
+    public String uname(final int id) {
+        return _unames[id - _base];
+    }
+
+    /**
+     * @return the id the next table should start at
+     */
+    public synchronized int end() {
+        return _base + _count;
+    }
+
+    public int size() {
+        return _ids.size();
+    }
+
+    /**
+     * @return rough heap taken by the table
+     */
+    public long getSizeBytes() {
+        return _sizeBytes + 4L * _unames.length;
+    }
+}
@@ -44,7 +44,7 @@ public class Userline extends HomePage {
     private void setup() {
         add(new TweetForm("poster"));
 
-        Timeline timeline = getUserline(username, nextpage);
+        Timeline timeline = getTimeline(username, nextpage);
         List<Tweet> tweets;//timeline.getView();
 
         if (null == timeline) {
@@ -0,0 +1,418 @@
+package example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UsernameFilter answers most lookups of usernames that do not exist, such
+ *  as registration checks, mistyped logins and AddFriends searches, without
+ *  reading the User column family. It keeps a ScalableBloomFilter of every
+ *  username, and a name the filter has never seen does not exist. Names it
+ *  lets through that turn out not to exist, its false positives, are kept
+ *  in a small negative cache for a while.
+ *
+ * The filter is loaded from the file written at the last shutdown or, if
+ *  there is none or it is older than maxFileAgeMillis, built by walking the
+ *  keys of the User column family. Both happen in the background; until
+ *  then every lookup is read.
+ *
+ * saveUser also logs each registration to a row of the Registrations
+ *  column family per hour, e.g. 2026-10-17-13, which is polled every
+ *  pollMillis. That is how names registered on other app servers, or after
+ *  the file was written, reach the filter, so a name registered elsewhere
+ *  can look missing here for about pollMillis. Once an hour the rows older
+ *  than any file still loaded could need are deleted.
+ */
+public class UsernameFilter implements UsernameFilterMBean {
+
+    private static final Logger LOG = Logger.getLogger(UsernameFilter.class);
+
+    // the registration log used to be kept in User rows named like this, which the key walk skips
+    private static final String OLD_LOG_PREFIX = "!REGISTERED!:";
+    private static final long PRUNE_MILLIS = 60 * 60 * 1000;
+
+    // how far apart app server clocks may be; polls look back this far
+    private static final long SKEW_MILLIS = 60 * 1000;
+    private static final int PAGE_SIZE = 1000;
+    private static final int FILE_MAGIC = 0x55534552;
+
+    private final Storage _storage;
+    private final File _file;
+    private final long _initialCapacity;
+    private final double _falsePositiveRate;
+    private final long _maxFileAgeMillis;
+    private final long _pollMillis;
+    private final long _saveMillis;
+    private final TimeBuckets _buckets = new TimeBuckets(TimeBuckets.Width.HOUR);
+    private final Cache<String, Boolean> _absent;
+    private final ScheduledExecutorService _poller;
+
+    // null until loaded or built
+    private volatile ScalableBloomFilter _filter;
+    // registrations logged before this are in the filter, only used on the poller thread
+    private long _polledTo;
+    // registrations seen, so a lookup can tell one happened while it read
+    private final AtomicLong _registrations = new AtomicLong();
+
+    private final AtomicLong _lookups = new AtomicLong();
+    private final AtomicLong _definiteMisses = new AtomicLong();
+    private final AtomicLong _negativeHits = new AtomicLong();
+    private final AtomicLong _falsePositives = new AtomicLong();
+
+    /**
+     * @param storage
+     * @param file                the filter is kept in across restarts, null for none
+     * @param initialCapacity     usernames the filter is first sized for, it grows past that
+     * @param falsePositiveRate   of the filter, e.g. 0.01
+     * @param maxFileAgeMillis    a file older than this is rebuilt from the keys instead,
+     *                            and registration log rows are kept about this long
+     * @param pollMillis          how often the registration log is read
+     * @param saveMillis          how often the file is written, besides at shutdown
+     * @param negativeCacheSize   false positives remembered
+     * @param negativeCacheMillis for how long
+     */
+    public UsernameFilter(final Storage storage,
+                          final File file,
+                          final long initialCapacity,
+                          final double falsePositiveRate,
+                          final long maxFileAgeMillis,
+                          final long pollMillis,
+                          final long saveMillis,
+                          final long negativeCacheSize,
+                          final long negativeCacheMillis) {
+        _storage = storage;
+        _file = file;
+        _initialCapacity = initialCapacity;
+        _falsePositiveRate = falsePositiveRate;
+        _maxFileAgeMillis = maxFileAgeMillis;
+        _pollMillis = pollMillis;
+        _saveMillis = saveMillis;
+        _absent = Caffeine.newBuilder()
+                .maximumSize(negativeCacheSize)
+                .expireAfterWrite(negativeCacheMillis, TimeUnit.MILLISECONDS)
+                .build();
+        _poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "username-filter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * load or build the filter in the background, then keep polling.
+     */
+    public void start() {
+        _poller.execute(new Runnable() {
+            public void run() {
+                try {
+                    load();
+                } catch (Exception ex) {
+                    LOG.error("Unable to load the username filter, every lookup will be read", ex);
+                }
+            }
+        });
+        _poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                ScalableBloomFilter filter = _filter;
+                if (null == filter) {
+                    return;
+                }
+                try {
+                    poll(filter);
+                } catch (Exception ex) {
+                    LOG.warn("Unable to poll the registration log", ex);
+                }
+            }
+        }, _pollMillis, _pollMillis, TimeUnit.MILLISECONDS);
+        _poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    prune();
+                } catch (Exception ex) {
+                    LOG.warn("Unable to prune the registration log", ex);
+                }
+            }
+        }, PRUNE_MILLIS, PRUNE_MILLIS, TimeUnit.MILLISECONDS);
+        if (null != _file && _saveMillis > 0) {
+            _poller.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    save();
+                }
+            }, _saveMillis, _saveMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * stop polling and write the file.
+     *
+     * @param timeoutMillis how long to wait for a build or poll under way
+     */
+    public void shutdown(final long timeoutMillis) {
+        if (null != _file) {
+            _poller.execute(new Runnable() {
+                public void run() {
+                    save();
+                }
+            });
+        }
+        _poller.shutdown();
+        try {
+            if (!_poller.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                _poller.shutdownNow();
+                LOG.warn("Username filter did not stop in " + timeoutMillis + "ms, not saved");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param uname
+     * @return false if uname does not exist, true if it has to be read to tell
+     */
+    public boolean mightExist(final String uname) {
+        _lookups.incrementAndGet();
+        ScalableBloomFilter filter = _filter;
+        if (null != filter && !filter.mightContain(uname)) {
+            _definiteMisses.incrementAndGet();
+            return false;
+        }
+        if (null != _absent.getIfPresent(uname)) {
+            _negativeHits.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return pass to absent() after the read
+     */
+    public long getRegistrations() {
+        return _registrations.get();
+    }
+
+    /**
+     * uname was read and does not exist.
+     *
+     * @param uname
+     * @param registrations getRegistrations() from before the read; if any
+     *                      were seen since, uname may be one of them and is
+     *                      not cached
+     */
+    public void absent(final String uname, final long registrations) {
+        if (null != _filter) {
+            _falsePositives.incrementAndGet();
+        }
+        _absent.put(uname, Boolean.TRUE);
+        if (_registrations.get() != registrations) {
+            _absent.invalidate(uname);
+        }
+    }
+
+    /**
+     * add the registration of uname to the log, along with the rest of batch.
+     *
+     * @param batch
+     * @param uname
+     * @return batch
+     */
+    public Storage.Batch log(final Storage.Batch batch, final String uname) {
+        long now = System.currentTimeMillis();
+        return batch.updateColumn(_buckets.labelOf(now), "", logColumn(now, uname), Base.REGISTRATIONS);
+    }
+
+    // zero-padded so that names sort by time
+    private static String logColumn(final long millis, final String uname) {
+        return String.format("%013d:%s", millis, uname);
+    }
+
+    /**
+     * uname has been saved.
+     *
+     * @param uname
+     */
+    public void added(final String uname) {
+        ScalableBloomFilter filter = _filter;
+        if (null != filter) {
+            filter.add(uname);
+        }
+        _registrations.incrementAndGet();
+        _absent.invalidate(uname);
+    }
+
+    private void load() throws IOException {
+        long start = System.currentTimeMillis();
+        ScalableBloomFilter filter = null;
+        if (null != _file && _file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), 1 << 16));
+            try {
+                if (FILE_MAGIC != in.readInt()) {
+                    throw new IOException(_file + " is not a username filter");
+                }
+                long polledTo = in.readLong();
+                if (start - polledTo <= _maxFileAgeMillis) {
+                    filter = ScalableBloomFilter.readFrom(in);
+                    _polledTo = polledTo;
+                } else {
+                    LOG.info(_file + " is more than " + _maxFileAgeMillis + "ms old, rebuilding it");
+                }
+            } catch (IOException ex) {
+                LOG.warn("Unable to read " + _file + ", rebuilding it", ex);
+            } finally {
+                in.close();
+            }
+        }
+        if (null == filter) {
+            // anything registered during the walk is picked up from the log
+            _polledTo = start;
+            filter = new ScalableBloomFilter(_initialCapacity, _falsePositiveRate);
+            Iterator<String> keys = _storage.iterateKeys(Base.USERS, PAGE_SIZE, true);
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!key.startsWith(OLD_LOG_PREFIX)) {
+                    filter.add(key);
+                }
+            }
+        }
+        poll(filter);
+        _filter = filter;
+        // saveUser only adds to a filter it can see, catch what it missed meanwhile
+        poll(filter);
+        LOG.info("Username filter of " + filter.getCount() + " names, " + filter.getSizeBytes() + " bytes, ready in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * add the registrations logged since the last poll to filter.
+     */
+    private void poll(final ScalableBloomFilter filter) {
+        long now = System.currentTimeMillis();
+        long from = _polledTo - SKEW_MILLIS;
+        String after = logColumn(from, "");
+        for (long bucket = _buckets.startOf(now); bucket >= _buckets.startOf(from); bucket = _buckets.previous(bucket)) {
+            String row = _buckets.labelOf(bucket);
+            Slice<String> slice = _storage.slice(row, Base.REGISTRATIONS, after, PAGE_SIZE, false);
+            while (true) {
+                for (String column : slice.getColumns().keySet()) {
+                    String uname = column.substring(column.indexOf(':') + 1);
+                    filter.add(uname);
+                    _registrations.incrementAndGet();
+                    _absent.invalidate(uname);
+                }
+                if (!slice.hasNext()) {
+                    break;
+                }
+                slice = _storage.slice(row, Base.REGISTRATIONS, slice.getNext(), PAGE_SIZE, false);
+            }
+        }
+        _polledTo = now;
+    }
+
+    /**
+     * delete the registration log rows no poll can reach any more: a file is
+     *  loaded for at most maxFileAgeMillis, and polls from then on.
+     */
+    private void prune() {
+        long before = _buckets.startOf(System.currentTimeMillis() - _maxFileAgeMillis - SKEW_MILLIS);
+        Iterator<String> rows = _storage.iterateKeys(Base.REGISTRATIONS, PAGE_SIZE, false);
+        while (rows.hasNext()) {
+            String row = rows.next();
+            if (_buckets.startOfLabel(row) >= before) {
+                continue;
+            }
+            // the columns are deleted a page at a time, so a batch stays small
+            Slice<String> slice = _storage.slice(row, Base.REGISTRATIONS, null, PAGE_SIZE, false);
+            while (!slice.isEmpty()) {
+                Storage.Batch batch = _storage.batch();
+                for (String column : slice.getColumns().keySet()) {
+                    batch.deleteColumn(row, column, Base.REGISTRATIONS);
+                }
+                batch.execute();
+                slice = _storage.slice(row, Base.REGISTRATIONS, null, PAGE_SIZE, false);
+            }
+        }
+    }
+
+    private void save() {
+        ScalableBloomFilter filter = _filter;
+        if (null == filter) {
+            return;
+        }
+        try {
+            File parent = _file.getAbsoluteFile().getParentFile();
+            if (null != parent && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent);
+            }
+            File tmp = new File(_file.getPath() + ".tmp");
+            FileOutputStream file = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeLong(_polledTo);
+                filter.writeTo(out);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(_file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + _file);
+            }
+        } catch (IOException ex) {
+            LOG.warn("Unable to save the username filter to " + _file, ex);
+        }
+    }
+
+    public boolean isLoaded() {
+        return null != _filter;
+    }
+
+    public long getUsernames() {
+        ScalableBloomFilter filter = _filter;
+        return null == filter ? 0 : filter.getCount();
+    }
+
+    public int getStages() {
+        ScalableBloomFilter filter = _filter;
+        return null == filter ? 0 : filter.getStages();
+    }
+
+    public long getSizeBytes() {
+        ScalableBloomFilter filter = _filter;
+        return null == filter ? 0 : filter.getSizeBytes();
+    }
+
+    public long getLookups() {
+        return _lookups.get();
+    }
+
+    public long getDefiniteMisses() {
+        return _definiteMisses.get();
+    }
+
+    public long getNegativeHits() {
+        return _negativeHits.get();
+    }
+
+    public long getFalsePositives() {
+        return _falsePositives.get();
+    }
+}
@@ -0,0 +1,23 @@
+package example;
+
+/**
+ * JMX view of the username filter.
+ */
+public interface UsernameFilterMBean {
+
+    boolean isLoaded();
+
+    long getUsernames();
+
+    int getStages();
+
+    long getSizeBytes();
+
+    long getLookups();
+
+    long getDefiniteMisses();
+
+    long getNegativeHits();
+
+    long getFalsePositives();
+}
@@ -1,17 +1,36 @@
 package example;
 
+import me.prettyprint.cassandra.connection.LeastActiveBalancingPolicy;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.RoundRobinBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.hector.api.ddl.ComparatorType;
 import org.apache.wicket.Session;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
 /**
  * Application object for your web application. If you want to run this application without deploying, run the Start class.
  */
 public class WicketApplication extends WebApplication {
+    final static Logger log = LoggerFactory.getLogger(WicketApplication.class);
 
-    private static final String hostPort = "10.18.101.211:9160";
-    private static final String clusterName = "Nebula Cassandra Cluster";
-    private static final String keyspace = "twissjava";
+    private static final String FANOUT_MBEAN = "twissjava:type=Fanout";
+    private static final String BACKFILL_MBEAN = "twissjava:type=Backfill";
+    private static final String TWEET_CACHE_MBEAN = "twissjava:type=TweetCache";
+    private static final String TIMELINE_HEADS_MBEAN = "twissjava:type=TimelineHeads";
+    private static final String STORAGE_ASYNC_MBEAN = "twissjava:type=StorageAsync";
+    private static final String STORAGE_METRICS_MBEAN = "twissjava:type=StorageMetrics";
+    private static final String USERNAME_FILTER_MBEAN = "twissjava:type=UsernameFilter";
+    private static final String SOCIAL_GRAPH_MBEAN = "twissjava:type=SocialGraph";
 
 
     /**
@@ -20,14 +39,154 @@ public class WicketApplication extends WebApplication {
 	public WicketApplication() {
         //Pelops.addPool("Twissjava Pool", new String[] {"127.0.0.1"}, 9160, false, "not used", new Policy());
 
-        Base.cassandra = new CassandraService(hostPort, clusterName, keyspace);
-        Base.cassandra.createColumnFamilyIfAbsent(Base.USERS);
-        Base.cassandra.createColumnFamilyIfAbsent(Base.TWEETS);
-        Base.cassandra.createColumnFamilyIfAbsent(Base.FOLLOWERS);
-        Base.cassandra.createColumnFamilyIfAbsent(Base.FRIENDS);
-        Base.cassandra.createColumnFamilyIfAbsent(Base.TIMELINE);
-        Base.cassandra.createColumnFamilyIfAbsent(Base.USERLINE);
+        Base.storage = newStorage();
+        Base.storage.setAsyncExecutor(new AsyncExecutor("storage-async",
+                TwissConfig.getInt("storage.async.threads", 16),
+                TwissConfig.getInt("storage.async.queueCapacity", 1000)));
+        Base.storage.getMetrics().setIntervalMillis(TwissConfig.getLong("storage.metrics.intervalMillis", 60000));
+        Base.storage.createColumnFamilyIfAbsent(Base.USERS);
+        Base.storage.createColumnFamilyIfAbsent(Base.TWEETS);
+        Base.storage.createColumnFamilyIfAbsent(Base.FOLLOWERS);
+        Base.storage.createColumnFamilyIfAbsent(Base.FRIENDS);
+        Base.storage.createColumnFamilyIfAbsent(Base.CELEBRITIES);
+        Base.storage.createColumnFamilyIfAbsent(Base.REGISTRATIONS);
+        Base.storage.createColumnFamilyIfAbsent(Base.TIMELINE, ComparatorType.LONGTYPE);
+        Base.storage.createColumnFamilyIfAbsent(Base.USERLINE, ComparatorType.LONGTYPE);
+
+        Base.timeIds = new TimeIds(TwissConfig.getInt("ids.node", 0));
+
+        Base.usernames = new UsernameFilter(Base.storage, usernameFile(),
+                TwissConfig.getLong("usernames.initialCapacity", 100000),
+                Double.parseDouble(TwissConfig.getString("usernames.falsePositiveRate", "0.01")),
+                TwissConfig.getLong("usernames.maxFileAgeMillis", 24 * 60 * 60 * 1000L),
+                TwissConfig.getLong("usernames.pollMillis", 5000),
+                TwissConfig.getLong("usernames.saveMillis", 60 * 60 * 1000),
+                TwissConfig.getLong("usernames.negativeCacheSize", 10000),
+                TwissConfig.getLong("usernames.negativeCacheMillis", 60000));
+        Base.usernames.start();
+
+        Base.tweetCache = new TweetCache(TwissConfig.getLong("tweetCache.capacityBytes", 64L * 1024 * 1024));
+        PublicLine publicLine = new PublicLine(Base.storage,
+                TwissConfig.getInt("publicline.shards", 16),
+                TimeBuckets.parse(TwissConfig.getString("publicline.bucket", "day")),
+                TwissConfig.getInt("publicline.lookback", 7));
+        Base.lines = new Lines(Base.storage, publicLine,
+                TimeBuckets.parse(TwissConfig.getString("lines.bucket", "month")),
+                TwissConfig.getInt("lines.lookback", 24));
+        Base.timelineHeads = new TimelineHeads(Base.lines,
+                TwissConfig.getInt("timelineHeads.capacity", 64),
+                TwissConfig.getLong("timelineHeads.maxLines", 100000),
+                TwissConfig.getLong("timelineHeads.idleMillis", 15 * 60 * 1000),
+                TwissConfig.getLong("timelineHeads.maxAgeMillis", 60000),
+                TwissConfig.getBoolean("timelineHeads.verify", true));
+        Base.graph = new SocialGraph(Base.storage,
+                TwissConfig.getLong("graph.capacityBytes", 64L * 1024 * 1024),
+                TwissConfig.getLong("graph.maxAgeMillis", 60000),
+                TwissConfig.getInt("graph.maxFollowers", 100000));
+        Base.celebrities = new Celebrities(Base.storage, Base.graph,
+                TwissConfig.getInt("fanout.celebrityThreshold", 1000),
+                TwissConfig.getLong("fanout.celebrityRefreshMillis", 60000));
+        Base.fanout = new FanoutService(Base.storage, Base.graph, Base.lines, Base.celebrities, Base.timelineHeads,
+                TwissConfig.getInt("fanout.threads", 4),
+                TwissConfig.getInt("fanout.queueCapacity", 10000),
+                TwissConfig.getInt("fanout.maxAttempts", 3),
+                TwissConfig.getLong("fanout.retryBackoffMillis", 100),
+                TwissConfig.getLong("fanout.enqueueTimeoutMillis", 50),
+                TwissConfig.getInt("fanout.chunkSize", 1000));
+        Base.backfill = new BackfillService(Base.storage, Base.lines, Base.celebrities, Base.timelineHeads,
+                TwissConfig.getInt("backfill.tweets", 20),
+                TwissConfig.getInt("backfill.ratePerSecond", 1000),
+                TwissConfig.getInt("backfill.threads", 2),
+                TwissConfig.getInt("backfill.queueCapacity", 10000));
 	}
+
+    @Override
+    protected void init() {
+        super.init();
+        registerMBean(Base.fanout, FANOUT_MBEAN);
+        registerMBean(Base.backfill, BACKFILL_MBEAN);
+        registerMBean(Base.tweetCache, TWEET_CACHE_MBEAN);
+        registerMBean(Base.timelineHeads, TIMELINE_HEADS_MBEAN);
+        registerMBean(Base.storage.getAsyncExecutor(), STORAGE_ASYNC_MBEAN);
+        registerMBean(Base.storage.getMetrics(), STORAGE_METRICS_MBEAN);
+        registerMBean(Base.usernames, USERNAME_FILTER_MBEAN);
+        registerMBean(Base.graph, SOCIAL_GRAPH_MBEAN);
+    }
+	
+    /**
+     * the Storage named by the storage key, cassandra or embedded.
+     */
+    private static Storage newStorage() {
+        String storage = TwissConfig.getString("storage", "cassandra");
+        if ("embedded".equals(storage)) {
+            File dir = new File(TwissConfig.getString("embedded.dir", "data"));
+            try {
+                return new EmbeddedStorage(dir,
+                        TwissConfig.getBoolean("embedded.fsync", true),
+                        TwissConfig.getLong("embedded.snapshotMillis", 5 * 60 * 1000));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open embedded storage in " + dir.getAbsolutePath(), e);
+            }
+        }
+        if (!"cassandra".equals(storage)) {
+            throw new IllegalArgumentException("Unknown storage: " + storage);
+        }
+        CassandraHostConfigurator hosts =
+                CassandraService.hostConfigurator(TwissConfig.getString("cassandra.hosts", "10.18.101.211:9160"));
+        hosts.setMaxActive(TwissConfig.getInt("cassandra.pool.maxActive", 100));
+        hosts.setMaxIdle(TwissConfig.getInt("cassandra.pool.maxIdle", 10));
+        hosts.setMaxWaitTimeWhenExhausted(TwissConfig.getLong("cassandra.pool.maxWaitMillis", 4000));
+        hosts.setCassandraThriftSocketTimeout(TwissConfig.getInt("cassandra.socketTimeoutMillis", 3000));
+        hosts.setLoadBalancingPolicy(newBalancingPolicy(TwissConfig.getString("cassandra.balancer", "latency")));
+        CassandraService cassandra = new CassandraService(hosts,
+                TwissConfig.getString("cassandra.cluster", "Nebula Cassandra Cluster"),
+                TwissConfig.getString("cassandra.keyspace", "twissjava"));
+        cassandra.setMaxBatchSize(TwissConfig.getInt("cassandra.batch.maxSize", 500));
+        cassandra.setMultigetChunkSize(TwissConfig.getInt("cassandra.multiget.chunkSize", 50));
+        cassandra.setCoalesceReads(TwissConfig.getBoolean("cassandra.coalesceReads", true));
+        if (TwissConfig.getBoolean("cassandra.hedge", false)) {
+            cassandra.setHedging(Double.parseDouble(TwissConfig.getString("cassandra.hedge.percentile", "0.95")),
+                    TwissConfig.getLong("cassandra.hedge.minDelayMillis", 2),
+                    TwissConfig.getInt("cassandra.hedge.budgetPercent", 5));
+        }
+        return cassandra;
+    }
+
+    /**
+     * the file named by usernames.file, by default one next to the data it
+     * was built from: in the embedded store's directory, or named after the
+     * Cassandra keyspace. null if usernames.file is "none".
+     */
+    private static File usernameFile() {
+        String file = TwissConfig.getString("usernames.file", "");
+        if ("none".equals(file)) {
+            return null;
+        }
+        if (!"".equals(file)) {
+            return new File(file);
+        }
+        if ("embedded".equals(TwissConfig.getString("storage", "cassandra"))) {
+            return new File(TwissConfig.getString("embedded.dir", "data"), "usernames.bloom");
+        }
+        return new File("usernames-" + TwissConfig.getString("cassandra.keyspace", "twissjava") + ".bloom");
+    }
+
+    /**
+     * the policy named by cassandra.balancer: latency, leastActive or roundRobin.
+     */
+    private static LoadBalancingPolicy newBalancingPolicy(String name) {
+        if ("latency".equals(name)) {
+            return new LatencyAwareBalancingPolicy(TwissConfig.getLong("cassandra.balancer.decayMillis",
+                    LatencyAwareBalancingPolicy.DEFAULT_DECAY_MILLIS));
+        }
+        if ("leastActive".equals(name)) {
+            return new LeastActiveBalancingPolicy();
+        }
+        if ("roundRobin".equals(name)) {
+            return new RoundRobinBalancingPolicy();
+        }
+        throw new IllegalArgumentException("Unknown cassandra.balancer: " + name);
+    }
 	
 	/**
 	 * @see org.apache.wicket.Application#getHomePage()
@@ -36,8 +195,41 @@ public class WicketApplication extends WebApplication {
 		return Userline.class;
 	}
 
+    @Override
+    protected void onDestroy() {
+        unregisterMBean(FANOUT_MBEAN);
+        unregisterMBean(BACKFILL_MBEAN);
+        unregisterMBean(TWEET_CACHE_MBEAN);
+        unregisterMBean(TIMELINE_HEADS_MBEAN);
+        unregisterMBean(STORAGE_ASYNC_MBEAN);
+        unregisterMBean(STORAGE_METRICS_MBEAN);
+        unregisterMBean(USERNAME_FILTER_MBEAN);
+        unregisterMBean(SOCIAL_GRAPH_MBEAN);
+        Base.fanout.shutdown(TwissConfig.getLong("fanout.drainTimeoutMillis", 30000));
+        Base.backfill.shutdown(TwissConfig.getLong("backfill.shutdownTimeoutMillis", 5000));
+        Base.usernames.shutdown(TwissConfig.getLong("usernames.shutdownTimeoutMillis", 10000));
+        Base.storage.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public Session newSession(Request request, Response response) {
         return new TwissSession(request);
     }
+
+    private static void registerMBean(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (Exception e) {
+            log.warn("Unable to register MBean " + name, e);
+        }
+    }
+
+    private static void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (Exception e) {
+            log.warn("Unable to unregister MBean " + name, e);
+        }
+    }
 }
\ No newline at end of file
@@ -3,8 +3,8 @@ package example.models;
 import java.util.List;
 
 /**
- * A timeline is a paginated List of Tweets, with a Long representing the timestamp of the next tweet on the page.
- *  If nextview is null, then we've reached the end of the Timeline.
+ * A timeline is a paginated List of Tweets, with a Long holding the column id of the last tweet on the page.
+ *  The next page starts with the tweet after it. If nextview is null, then we've reached the end of the Timeline.
  */
 public class Timeline {
     private List<Tweet> view;
@@ -0,0 +1,40 @@
+package example;
+
+/**
+ * Reports how wide the rows of each column family are, using a parallel
+ *  token range scan.
+ *
+ * Needs a running Cassandra node:
+ *   java example.AnalyzeWidths [host:port] [keyspace] [columnFamilies] [threads] [topN]
+ *   e.g. java example.AnalyzeWidths localhost:9160 twissjava Userline,Timeline 8 20
+ */
+public class AnalyzeWidths {
+
+    private static final int PAGE_SIZE = 500;
+    private static final int PAGE_COLUMNS = 1000;
+    private static final int KEYS_PER_SPLIT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        String hostPort = args.length > 0 ? args[0] : "localhost:9160";
+        String keyspace = args.length > 1 ? args[1] : "twissjava";
+        String[] columnFamilies = (args.length > 2 ? args[2]
+                : Base.USERS + "," + Base.FRIENDS + "," + Base.FOLLOWERS + "," + Base.TWEETS + ","
+                + Base.TIMELINE + "," + Base.USERLINE).split(",");
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int topN = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        CassandraService cassandra = new CassandraService(hostPort, "Twissjava Analyzer", keyspace);
+        TokenRangeScanner scanner = new TokenRangeScanner(cassandra, threads, PAGE_SIZE, PAGE_COLUMNS,
+                KEYS_PER_SPLIT);
+        PartitionWidths job = new PartitionWidths(topN, PAGE_COLUMNS);
+        for (String columnFamily : columnFamilies) {
+            long start = System.currentTimeMillis();
+            PartitionWidths.Widths widths = scanner.scan(columnFamily.trim(), job);
+            System.out.print(widths.report(columnFamily.trim()));
+            System.out.println("  scanned in " + (System.currentTimeMillis() - start) + " ms\n");
+        }
+        scanner.shutdown();
+        cassandra.shutdown();
+        System.exit(0);
+    }
+}
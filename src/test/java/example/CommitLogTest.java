@@ -0,0 +1,114 @@
+package example;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CommitLogTest {
+
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        File dir = _tmp.getRoot();
+        CommitLog log = new CommitLog(dir, 0, false);
+        log.sync(log.append(bytes("one")));
+        log.append(bytes("two"));
+        log.close();
+
+        List<byte[]> records = CommitLog.read(dir, 0);
+        assertEquals(2, records.size());
+        assertArrayEquals(bytes("one"), records.get(0));
+        assertArrayEquals(bytes("two"), records.get(1));
+    }
+
+    @Test
+    public void rollStartsANewSegment() throws Exception {
+        File dir = _tmp.getRoot();
+        CommitLog log = new CommitLog(dir, 3, false);
+        log.append(bytes("old"));
+        assertEquals(4, log.roll());
+        log.append(bytes("new"));
+        log.close();
+
+        assertEquals(Arrays.asList(3L, 4L), CommitLog.segments(dir));
+        assertArrayEquals(bytes("old"), CommitLog.read(dir, 3).get(0));
+        assertArrayEquals(bytes("new"), CommitLog.read(dir, 4).get(0));
+
+        new CommitLog(dir, 5, false).deleteBefore(5);
+        assertEquals(Arrays.asList(5L), CommitLog.segments(dir));
+    }
+
+    @Test
+    public void stopsAtATruncatedRecord() throws Exception {
+        File dir = _tmp.getRoot();
+        writeThree(dir);
+        File segment = new File(dir, "commitlog-0.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // a crash part way through writing the last record
+            file.setLength(segment.length() - 2);
+        } finally {
+            file.close();
+        }
+
+        List<byte[]> records = CommitLog.read(dir, 0);
+        assertEquals(2, records.size());
+        assertArrayEquals(bytes("second"), records.get(1));
+    }
+
+    @Test
+    public void stopsAtARecordThatFailsItsChecksum() throws Exception {
+        File dir = _tmp.getRoot();
+        writeThree(dir);
+        File segment = new File(dir, "commitlog-0.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(segment.length() - 1);
+            file.write('X');
+        } finally {
+            file.close();
+        }
+
+        assertEquals(2, CommitLog.read(dir, 0).size());
+    }
+
+    @Test
+    public void stopsAtAnImpossibleLength() throws Exception {
+        File dir = _tmp.getRoot();
+        writeThree(dir);
+        File segment = new File(dir, "commitlog-0.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // a header of garbage after the last whole record
+            file.seek(segment.length());
+            file.writeInt(Integer.MAX_VALUE);
+            file.writeLong(0);
+        } finally {
+            file.close();
+        }
+
+        assertEquals(3, CommitLog.read(dir, 0).size());
+    }
+
+    private static void writeThree(final File dir) throws Exception {
+        CommitLog log = new CommitLog(dir, 0, false);
+        log.append(bytes("first"));
+        log.append(bytes("second"));
+        log.append(bytes("third"));
+        log.close();
+    }
+
+    private static byte[] bytes(final String s) throws Exception {
+        return s.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,77 @@
+package example;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaIntSetTest {
+
+    @Test
+    public void sortsAndDropsRepeats() {
+        DeltaIntSet set = DeltaIntSet.of(new int[]{7, 3, 7, 0, 300, 3, 99}, 6);
+        assertArrayEquals(new int[]{0, 3, 7, 300}, set.toArray());
+        assertEquals(4, set.size());
+    }
+
+    @Test
+    public void agreesWithATreeSet() {
+        Random random = new Random(42);
+        int[] ids = new int[1000];
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < ids.length; i++) {
+            // mostly small gaps, some wide ones
+            ids[i] = random.nextInt(i % 10 == 0 ? Integer.MAX_VALUE : 5000);
+            expected.add(ids[i]);
+        }
+        DeltaIntSet set = DeltaIntSet.of(ids, ids.length);
+        assertEquals(expected.size(), set.size());
+        for (int id = 0; id < 6000; id++) {
+            assertEquals(expected.contains(id), set.contains(id));
+        }
+        for (int id : ids) {
+            assertTrue(set.contains(id));
+        }
+        assertFalse(set.contains(-1));
+        assertFalse(set.contains(Integer.MAX_VALUE));
+
+        int[] inOrder = new int[expected.size()];
+        int i = 0;
+        for (int id : expected) {
+            inOrder[i++] = id;
+        }
+        assertArrayEquals(inOrder, set.toArray());
+    }
+
+    @Test
+    public void changesMakeNewSets() {
+        DeltaIntSet set = DeltaIntSet.of(new int[]{1, 2, 3}, 3);
+        DeltaIntSet added = set.withAll(5, 2);
+        assertArrayEquals(new int[]{1, 2, 3}, set.toArray());
+        assertArrayEquals(new int[]{1, 2, 3, 5}, added.toArray());
+        assertArrayEquals(new int[]{1, 5}, added.withoutAll(3, 2, 9).toArray());
+
+        assertSame(set, set.withAll(3, 1));
+        assertSame(set, set.withoutAll(4));
+        assertTrue(set.withoutAll(1, 2, 3).isEmpty());
+        assertArrayEquals(new int[]{4}, DeltaIntSet.EMPTY.withAll(4).toArray());
+    }
+
+    @Test
+    public void closeIdsTakeAByteEach() {
+        int[] ids = new int[10000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1000000 + 3 * i;
+        }
+        DeltaIntSet set = DeltaIntSet.of(ids, ids.length);
+        assertTrue(set.getSizeBytes() < 2 * ids.length);
+        assertTrue(Arrays.equals(ids, set.toArray()));
+    }
+}
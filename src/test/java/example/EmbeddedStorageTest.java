@@ -0,0 +1,121 @@
+package example;
+
+import me.prettyprint.hector.api.ddl.ComparatorType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class EmbeddedStorageTest {
+
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Test
+    public void replaysTheLogAfterACrash() throws Exception {
+        File dir = _tmp.getRoot();
+        EmbeddedStorage crashed = open(dir);
+        crashed.updateColumn("jane", "secret", "password", Base.USERS);
+        crashed.batch()
+                .updateColumn("bob", "hunter2", "password", Base.USERS)
+                .updateColumn("jane", "", "bob", Base.FRIENDS)
+                .execute();
+        crashed.deleteColumn("bob", "password", Base.USERS);
+        // no shutdown, so nothing after the startup snapshot is anywhere but the log
+
+        EmbeddedStorage recovered = open(dir);
+        try {
+            assertEquals("secret", recovered.readColumn("jane", "password", Base.USERS));
+            assertEquals("", recovered.readColumn("bob", "password", Base.USERS));
+            assertEquals(1, recovered.countColumns("jane", Base.FRIENDS));
+        } finally {
+            recovered.shutdown();
+        }
+    }
+
+    @Test
+    public void loadsTheSnapshotAfterAShutdown() throws Exception {
+        File dir = _tmp.getRoot();
+        EmbeddedStorage storage = open(dir);
+        storage.createColumnFamilyIfAbsent(Base.TIMELINE, ComparatorType.LONGTYPE);
+        storage.batch().updateColumn("jane", "tweet1", 1L, Storage.LE, Base.TIMELINE).execute();
+        storage.batch().updateColumn("jane", "tweet2", 2L, Storage.LE, Base.TIMELINE).execute();
+        storage.shutdown();
+
+        EmbeddedStorage reopened = open(dir);
+        try {
+            Slice<Long> slice = reopened.slice("jane", Base.TIMELINE, null, 10, true, Storage.LE);
+            assertEquals("[2, 1]", slice.getColumns().keySet().toString());
+            assertEquals("tweet2", slice.getColumns().get(2L));
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    public void keepsWhatCameBeforeATornTail() throws Exception {
+        File dir = _tmp.getRoot();
+        EmbeddedStorage crashed = open(dir);
+        crashed.updateColumn("jane", "secret", "password", Base.USERS);
+        List<Long> segments = CommitLog.segments(dir);
+        FileOutputStream tail = new FileOutputStream(
+                new File(dir, "commitlog-" + segments.get(segments.size() - 1) + ".log"), true);
+        try {
+            // the start of a record that never finished
+            tail.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        } finally {
+            tail.close();
+        }
+
+        EmbeddedStorage recovered = open(dir);
+        try {
+            assertEquals("secret", recovered.readColumn("jane", "password", Base.USERS));
+            recovered.updateColumn("bob", "hunter2", "password", Base.USERS);
+        } finally {
+            recovered.shutdown();
+        }
+
+        // the torn record does not come back to hide later writes
+        EmbeddedStorage again = open(dir);
+        try {
+            assertEquals("hunter2", again.readColumn("bob", "password", Base.USERS));
+        } finally {
+            again.shutdown();
+        }
+    }
+
+    @Test
+    public void runsCallbacksOnceExecuted() throws Exception {
+        EmbeddedStorage storage = open(_tmp.getRoot());
+        try {
+            final AtomicInteger executed = new AtomicInteger();
+            Storage.Batch batch = storage.batch()
+                    .updateColumn("jane", "secret", "password", Base.USERS)
+                    .onExecuted(new Runnable() {
+                        public void run() {
+                            executed.incrementAndGet();
+                        }
+                    });
+            assertEquals(0, executed.get());
+            batch.execute();
+            assertEquals(1, executed.get());
+            batch.execute();
+            assertEquals(1, executed.get());
+        } finally {
+            storage.shutdown();
+        }
+    }
+
+    private static EmbeddedStorage open(final File dir) throws Exception {
+        EmbeddedStorage storage = new EmbeddedStorage(dir, false, 0);
+        storage.createColumnFamilyIfAbsent(Base.USERS);
+        storage.createColumnFamilyIfAbsent(Base.FRIENDS);
+        return storage;
+    }
+}
@@ -0,0 +1,67 @@
+package example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsHoldTheirValues() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 4095, 4096, 123456789, Long.MAX_VALUE / 3,
+                Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " is above its bucket", value <= LatencyHistogram.highestValue(index));
+            assertTrue(value + " is below its bucket",
+                    0 == index || value > LatencyHistogram.highestValue(index - 1));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguousAndNarrow() {
+        for (int index = 1; index < LatencyHistogram.index(Long.MAX_VALUE); index++) {
+            long low = LatencyHistogram.highestValue(index - 1) + 1;
+            long high = LatencyHistogram.highestValue(index);
+            assertEquals(index, LatencyHistogram.index(low));
+            assertEquals(index, LatencyHistogram.index(high));
+            // within 1/16 of any value in the bucket
+            assertTrue("bucket " + index + " is " + low + "-" + high, high - low <= Math.max(0, low / 16));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000.5, snapshot.getMean(), 0.001);
+        assertBetween(5000, 5000 + 5000 / 16, snapshot.getValueAt(0.5));
+        assertBetween(9900, 10000, snapshot.getValueAt(0.99));
+        assertEquals(10000, snapshot.getValueAt(1));
+        assertEquals(1, snapshot.getValueAt(0));
+    }
+
+    @Test
+    public void resetStartsAfresh() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(-5);
+        LatencyHistogram.Snapshot first = histogram.snapshotAndReset();
+        assertEquals(2, first.getCount());
+        assertEquals(0, first.getValueAt(0.5));
+
+        LatencyHistogram.Snapshot second = histogram.snapshotAndReset();
+        assertEquals(0, second.getCount());
+        assertEquals(0, second.getValueAt(0.99));
+    }
+
+    private static void assertBetween(final long low, final long high, final long value) {
+        assertTrue(value + " is not in " + low + "-" + high, low <= value && value <= high);
+    }
+}
@@ -0,0 +1,543 @@
+package example;
+
+import example.models.Tweet;
+import example.models.User;
+import org.mortbay.jetty.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * LoadTest drives the real pages over HTTP with a social-graph workload and
+ *  reports latency percentiles and throughput per page.
+ *
+ * It starts the Start server in this JVM on a free port, on embedded
+ *  storage in a temp dir unless -Dstorage is given, and seeds it through
+ *  Base: loadtest.users users, each following about loadtest.follows others
+ *  picked from a Zipf distribution, so a few users have thousands of
+ *  followers and most have a handful, and loadtest.tweets tweets each.
+ *
+ * Then logged-in sessions go through the Userline, Publicline, AddFriends
+ *  and Authorize forms the way a browser does. Requests arrive open loop,
+ *  as a Poisson process at loadtest.rate per second whether or not earlier
+ *  ones have finished, and latency is counted from when a request was due
+ *  rather than when it was sent, so a stalled server shows up in the
+ *  percentiles instead of slowing the load down.
+ *
+ *   java -Dloadtest.rate=200 -Dloadtest.seconds=60 example.LoadTest
+ *
+ * Settings, all system properties:
+ *   loadtest.users=2000        users to seed
+ *   loadtest.follows=20        mean friends per user
+ *   loadtest.zipf=1.0          skew of who gets followed
+ *   loadtest.tweets=5          tweets seeded per user
+ *   loadtest.seed=true         false to reuse the data of an earlier run
+ *   loadtest.rate=100          requests per second
+ *   loadtest.seconds=60        measured run, after loadtest.warmupSeconds
+ *   loadtest.warmupSeconds=10
+ *   loadtest.sessions=200      logged-in sessions to start with
+ *   loadtest.maxInFlight=1000  requests past this are dropped and counted
+ *   loadtest.tweetSize=80
+ *   loadtest.mix=timeline:45,paginate:15,post:15,publicline:10,userpage:8,follow:5,login:2
+ */
+public class LoadTest {
+
+    private static final String PASSWORD = "loadtest";
+    private static final String TITLE = "<title>Twissjava</title>";
+    private static final String[] OPS = {"timeline", "paginate", "post", "publicline", "userpage", "follow", "login"};
+
+    private static int _users;
+    private static double[] _zipf;
+    private static String _base;
+    private static int _tweetSize;
+
+    public static void main(String[] args) throws Exception {
+        _users = TwissConfig.getInt("loadtest.users", 2000);
+        int follows = TwissConfig.getInt("loadtest.follows", 20);
+        int tweets = TwissConfig.getInt("loadtest.tweets", 5);
+        double rate = Double.parseDouble(TwissConfig.getString("loadtest.rate", "100"));
+        int seconds = TwissConfig.getInt("loadtest.seconds", 60);
+        int warmupSeconds = TwissConfig.getInt("loadtest.warmupSeconds", 10);
+        int sessions = TwissConfig.getInt("loadtest.sessions", 200);
+        int maxInFlight = TwissConfig.getInt("loadtest.maxInFlight", 1000);
+        _tweetSize = TwissConfig.getInt("loadtest.tweetSize", 80);
+        _zipf = zipf(_users, Double.parseDouble(TwissConfig.getString("loadtest.zipf", "1.0")));
+        String[] mix = mix(TwissConfig.getString("loadtest.mix",
+                "timeline:45,paginate:15,post:15,publicline:10,userpage:8,follow:5,login:2"));
+
+        if (null == System.getProperty("storage")) {
+            File dir = Files.createTempDirectory("twissjava-loadtest").toFile();
+            System.setProperty("storage", "embedded");
+            System.setProperty("embedded.dir", dir.getPath());
+            System.out.println("embedded storage in " + dir);
+        }
+        // the JDK keeps 5 idle connections per host by default. Keep more, but
+        // well under the 250 threads of Start's blocking connector, where each
+        // idle keep-alive connection holds a thread.
+        if (null == System.getProperty("http.maxConnections")) {
+            System.setProperty("http.maxConnections", "100");
+        }
+
+        int port = freePort();
+        Server server = Start.newServer(port);
+        server.start();
+        _base = "http://localhost:" + port + "/";
+
+        if (TwissConfig.getBoolean("loadtest.seed", true)) {
+            long start = System.currentTimeMillis();
+            seed(follows, tweets);
+            System.out.println("seeded " + _users + " users in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        final ConcurrentLinkedQueue<Session> idle = new ConcurrentLinkedQueue<Session>();
+        for (int i = 0; i < sessions; i++) {
+            idle.add(login(new Session(), randomUser()));
+        }
+
+        final Map<String, Latencies> latencies = new LinkedHashMap<String, Latencies>();
+        for (String op : OPS) {
+            latencies.put(op, new Latencies());
+        }
+        final AtomicInteger dropped = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, maxInFlight, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "loadtest-" + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        Random random = new Random();
+        long now = System.nanoTime();
+        final long warmupEnd = now + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+        long due = now;
+        System.out.println("running " + rate + " requests/s for " + warmupSeconds + "+" + seconds + " s");
+        while (true) {
+            due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            if (due >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final String op = mix[random.nextInt(mix.length)];
+            final long intended = due;
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        Session session = idle.poll();
+                        boolean ok = true;
+                        try {
+                            if (null == session) {
+                                session = login(new Session(), randomUser());
+                            }
+                            visit(op, session);
+                        } catch (IOException e) {
+                            if (failures.incrementAndGet() <= 10) {
+                                System.err.println(op + " failed: " + e.getMessage());
+                            }
+                            ok = false;
+                            session = null;
+                        }
+                        long finished = System.nanoTime();
+                        if (intended >= warmupEnd) {
+                            latencies.get(op).add(finished - intended, ok);
+                        }
+                        if (null != session) {
+                            idle.add(session);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (intended >= warmupEnd) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(60, TimeUnit.SECONDS);
+
+        report(latencies, seconds, dropped.get());
+        server.stop();
+        System.exit(0);
+    }
+
+    //
+    // Seeding
+    //
+
+    private static String uname(final int rank) {
+        return "lt_user_" + rank;
+    }
+
+    private static String randomUser() {
+        return uname(ThreadLocalRandom.current().nextInt(_users));
+    }
+
+    /**
+     * @return a user picked by popularity, rank 0 most often
+     */
+    private static String popularUser() {
+        int rank = Arrays.binarySearch(_zipf, ThreadLocalRandom.current().nextDouble());
+        return uname(Math.min(rank < 0 ? -rank - 1 : rank, _users - 1));
+    }
+
+    private static double[] zipf(final int n, final double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static void seed(final int follows, final int tweets) throws InterruptedException {
+        Random random = new Random(42);
+        for (int i = 0; i < _users; i++) {
+            Base.saveUser(new User(uname(i).getBytes(), PASSWORD));
+        }
+        for (int i = 0; i < _users; i++) {
+            // between half and one and a half times the mean, followees by popularity
+            int count = Math.min(_users - 1, follows / 2 + random.nextInt(follows + 1));
+            Set<String> friends = new LinkedHashSet<String>();
+            while (friends.size() < count) {
+                String friend = popularUser();
+                if (!friend.equals(uname(i))) {
+                    friends.add(friend);
+                }
+            }
+            Base.addFriends(uname(i), new ArrayList<String>(friends));
+        }
+        for (int t = 0; t < tweets; t++) {
+            for (int i = 0; i < _users; i++) {
+                Base.saveTweet(new Tweet(UUID.randomUUID().toString().getBytes(), uname(i), body()));
+            }
+        }
+        while (Base.fanout.getQueueDepth() > 0 || Base.fanout.getActiveWorkers() > 0
+                || Base.backfill.getQueueDepth() > 0 || Base.backfill.getActiveWorkers() > 0) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static String body() {
+        StringBuilder body = new StringBuilder(_tweetSize);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (body.length() < _tweetSize) {
+            body.append((char) ('a' + random.nextInt(26)));
+            if (0 == random.nextInt(6)) {
+                body.append(' ');
+            }
+        }
+        return body.substring(0, _tweetSize);
+    }
+
+    //
+    // The pages
+    //
+
+    private static void visit(final String op, final Session session) throws IOException {
+        if ("timeline".equals(op)) {
+            session.get(_base + "wicket/bookmarkable/example.Userline");
+        } else if ("paginate".equals(op)) {
+            // seeded userlines are shorter than a page, the public line is not
+            String page = session.get(_base + "wicket/bookmarkable/example.Publicline");
+            session.post(session.require(page, "pageform"), new HashMap<String, String>());
+        } else if ("post".equals(op)) {
+            String page = session.get(_base + "wicket/bookmarkable/example.Userline");
+            Map<String, String> form = new HashMap<String, String>();
+            form.put("tweetbody", body());
+            session.post(session.require(page, "poster"), form);
+        } else if ("publicline".equals(op)) {
+            session.get(_base + "wicket/bookmarkable/example.Publicline");
+        } else if ("userpage".equals(op)) {
+            session.get(_base + "wicket/bookmarkable/example.Publicline?username=" + popularUser());
+        } else if ("follow".equals(op)) {
+            String page = session.get(_base + "wicket/bookmarkable/example.AddFriends?query="
+                    + popularUser() + "&found=true");
+            session.post(session.require(page, "actionfriend"), new HashMap<String, String>());
+        } else if ("login".equals(op)) {
+            login(session, randomUser());
+        } else {
+            throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    /**
+     * log in through the Authorize page, which first logs out whoever the
+     *  session was logged in as.
+     */
+    private static Session login(final Session session, final String uname) throws IOException {
+        String page = session.get(_base + "wicket/bookmarkable/example.Authorize");
+        Map<String, String> form = new HashMap<String, String>();
+        form.put("username", uname);
+        form.put("password", PASSWORD);
+        page = session.post(session.require(page, "login"), form);
+        if (!page.contains("Logout: " + uname + "<")) {
+            throw new IOException("Unable to log in as " + uname + ", ended up at " + session.url());
+        }
+        return session;
+    }
+
+    /**
+     * Session is one browser: its cookies, and the URL of the page it is on
+     *  to resolve the relative form actions against. It is used by one
+     *  request at a time.
+     */
+    private static class Session {
+        private static final Pattern FORM = Pattern.compile("<form[^>]*action=\"([^\"]*)\"");
+        private static final Pattern COOKIE = Pattern.compile("^([^=;]+)=([^;]*)");
+
+        private final Map<String, String> _cookies = new HashMap<String, String>();
+        private URL _url;
+
+        String url() {
+            return _url.toString();
+        }
+
+        String get(final String url) throws IOException {
+            return request(new URL(url), null);
+        }
+
+        String post(final String url, final Map<String, String> fields) throws IOException {
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                if (body.length() > 0) {
+                    body.append('&');
+                }
+                body.append(URLEncoder.encode(field.getKey(), "UTF-8")).append('=')
+                        .append(URLEncoder.encode(field.getValue(), "UTF-8"));
+            }
+            return request(new URL(url), body.toString().getBytes("UTF-8"));
+        }
+
+        /**
+         * @return the absolute action of the form with the given wicket:id, or
+         *  null if the page has none
+         */
+        String formAction(final String page, final String formId) throws IOException {
+            Matcher matcher = FORM.matcher(page);
+            while (matcher.find()) {
+                String action = matcher.group(1).replace("&amp;", "&");
+                if (action.endsWith("-" + formId)) {
+                    return new URL(_url, action).toString();
+                }
+            }
+            return null;
+        }
+
+        String require(final String page, final String formId) throws IOException {
+            String action = formAction(page, formId);
+            if (null == action) {
+                throw new IOException("No " + formId + " form on " + _url);
+            }
+            return action;
+        }
+
+        /**
+         * send one request and follow its redirects, the way Wicket answers
+         *  every form post.
+         */
+        private String request(URL url, byte[] post) throws IOException {
+            for (int redirects = 0; redirects < 10; redirects++) {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(60000);
+                if (!_cookies.isEmpty()) {
+                    StringBuilder cookies = new StringBuilder();
+                    for (Map.Entry<String, String> cookie : _cookies.entrySet()) {
+                        if (cookies.length() > 0) {
+                            cookies.append("; ");
+                        }
+                        cookies.append(cookie.getKey()).append('=').append(cookie.getValue());
+                    }
+                    connection.setRequestProperty("Cookie", cookies.toString());
+                }
+                if (null != post) {
+                    connection.setDoOutput(true);
+                    connection.setRequestMethod("POST");
+                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    OutputStream out = connection.getOutputStream();
+                    out.write(post);
+                    out.close();
+                }
+                int status = connection.getResponseCode();
+                List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+                if (null != setCookies) {
+                    for (String setCookie : setCookies) {
+                        Matcher matcher = COOKIE.matcher(setCookie);
+                        if (matcher.find()) {
+                            _cookies.put(matcher.group(1).trim(), matcher.group(2));
+                        }
+                    }
+                }
+                String body = read(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+                if (status >= 300 && status < 400) {
+                    url = new URL(url, connection.getHeaderField("Location"));
+                    post = null;
+                    continue;
+                }
+                _url = url;
+                if (status >= 400) {
+                    throw new IOException("HTTP " + status + " from " + url);
+                }
+                // Wicket serves its error pages with a 200
+                if (!body.contains(TITLE)) {
+                    throw new IOException("Error page from " + url);
+                }
+                return body;
+            }
+            throw new IOException("Too many redirects from " + url);
+        }
+
+        private static String read(final InputStream in) throws IOException {
+            if (null == in) {
+                return "";
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            try {
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            return out.toString("UTF-8");
+        }
+    }
+
+    //
+    // Results
+    //
+
+    /**
+     * the latencies of one page, kept whole so the tail percentiles are exact.
+     */
+    private static class Latencies {
+        private long[] _nanos = new long[1024];
+        private int _count = 0;
+        private int _errors = 0;
+
+        synchronized void add(final long nanos, final boolean ok) {
+            if (!ok) {
+                _errors++;
+            }
+            if (_count == _nanos.length) {
+                _nanos = Arrays.copyOf(_nanos, _count * 2);
+            }
+            _nanos[_count++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(_nanos, _count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        synchronized int errors() {
+            return _errors;
+        }
+    }
+
+    private static String[] mix(final String spec) {
+        List<String> mix = new ArrayList<String>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (!Arrays.asList(OPS).contains(parts[0])) {
+                throw new IllegalArgumentException("Unknown operation " + parts[0] + " in " + spec);
+            }
+            for (int i = Integer.parseInt(parts[1]); i > 0; i--) {
+                mix.add(parts[0]);
+            }
+        }
+        return mix.toArray(new String[mix.size()]);
+    }
+
+    private static double percentile(final long[] sorted, final double p) {
+        if (0 == sorted.length) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static void report(final Map<String, Latencies> latencies, final int seconds, final int dropped) {
+        System.out.println(String.format("%-11s %8s %8s %7s %9s %9s %9s %9s",
+                "page", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        long[] all = new long[0];
+        int errors = 0;
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+            long[] sorted = entry.getValue().sorted();
+            if (0 == sorted.length) {
+                continue;
+            }
+            errors += entry.getValue().errors();
+            print(entry.getKey(), sorted, entry.getValue().errors(), seconds);
+            int from = all.length;
+            all = Arrays.copyOf(all, from + sorted.length);
+            System.arraycopy(sorted, 0, all, from, sorted.length);
+        }
+        Arrays.sort(all);
+        print("all", all, errors, seconds);
+        if (dropped > 0) {
+            System.out.println(dropped + " requests dropped over loadtest.maxInFlight");
+        }
+    }
+
+    private static void print(final String page, final long[] sorted, final int errors, final int seconds) {
+        System.out.println(String.format("%-11s %8d %8d %7.1f %9.1f %9.1f %9.1f %9.1f",
+                page, sorted.length, errors, (double) sorted.length / seconds,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                percentile(sorted, 1.0)));
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package example;
+
+/**
+ * Copies Timeline and Userline rows from before lines were bucketed into
+ *  bucket rows, the old "!PUBLIC!" row included, and indexes the buckets of
+ *  every line and of the public line, using a parallel token range scan.
+ *  Bucket widths and public line shards come from twissjava.properties, as
+ *  in the app. Old rows are left in place.
+ *
+ * Needs a running Cassandra node:
+ *   java example.MigrateLines [host:port] [keyspace] [threads]
+ *   e.g. java example.MigrateLines localhost:9160 twissjava 8
+ */
+public class MigrateLines {
+
+    private static final int PAGE_SIZE = 500;
+    private static final int PAGE_COLUMNS = 1000;
+    private static final int KEYS_PER_SPLIT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        String hostPort = args.length > 0 ? args[0] : "localhost:9160";
+        String keyspace = args.length > 1 ? args[1] : "twissjava";
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        CassandraService cassandra = new CassandraService(hostPort, "Twissjava Migration", keyspace);
+        PublicLine publicLine = new PublicLine(cassandra,
+                TwissConfig.getInt("publicline.shards", 16),
+                TimeBuckets.parse(TwissConfig.getString("publicline.bucket", "day")),
+                TwissConfig.getInt("publicline.lookback", 7));
+        Lines lines = new Lines(cassandra, publicLine,
+                TimeBuckets.parse(TwissConfig.getString("lines.bucket", "month")),
+                TwissConfig.getInt("lines.lookback", 24));
+        TokenRangeScanner scanner = new TokenRangeScanner(cassandra, threads, PAGE_SIZE, PAGE_COLUMNS,
+                KEYS_PER_SPLIT);
+        LineMigration job = new LineMigration(cassandra, lines, PAGE_COLUMNS);
+        for (String columnFamily : new String[]{Base.TIMELINE, Base.USERLINE}) {
+            long start = System.currentTimeMillis();
+            System.out.print(scanner.scan(columnFamily, job).report(columnFamily));
+            System.out.println("  scanned in " + (System.currentTimeMillis() - start) + " ms\n");
+        }
+        scanner.shutdown();
+        cassandra.shutdown();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,99 @@
+package example;
+
+import me.prettyprint.hector.api.ddl.ComparatorType;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Measures how long posting a tweet takes against the number of followers
+ *  it has to be fanned out to, once with one updateColumn call per column
+ *  (the old saveTweet) and once through a CassandraService.Batch.
+ *
+ * Needs a running Cassandra node:
+ *   java example.PostingBenchmark [host:port] [followerCounts] [runs] [maxBatchSize]
+ *   e.g. java example.PostingBenchmark localhost:9160 10,100,1000,5000 5 500
+ */
+public class PostingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String hostPort = args.length > 0 ? args[0] : "localhost:9160";
+        String[] counts = (args.length > 1 ? args[1] : "10,100,1000,5000").split(",");
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int maxBatchSize = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+        CassandraService cassandra = new CassandraService(hostPort, "Twissjava Benchmark", "twissjava_bench");
+        cassandra.createColumnFamilyIfAbsent(Base.TWEETS);
+        cassandra.createColumnFamilyIfAbsent(Base.USERLINE, ComparatorType.LONGTYPE);
+        cassandra.createColumnFamilyIfAbsent(Base.TIMELINE, ComparatorType.LONGTYPE);
+        cassandra.setMaxBatchSize(maxBatchSize);
+
+        System.out.println("followers\tper-column ms\tbatched ms\tbatch_mutate calls");
+        for (String count : counts) {
+            String[] followers = followers(Integer.parseInt(count.trim()));
+
+            // warm up the pool and the row caches before timing
+            postOneByOne(cassandra, followers);
+            postBatched(cassandra, followers);
+
+            long[] oneByOne = new long[runs];
+            long[] batched = new long[runs];
+            int roundTrips = 0;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                postOneByOne(cassandra, followers);
+                oneByOne[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                roundTrips = postBatched(cassandra, followers);
+                batched[i] = System.nanoTime() - start;
+            }
+            System.out.println(followers.length + "\t\t" + median(oneByOne) + "\t\t" + median(batched)
+                    + "\t\t" + roundTrips);
+        }
+        System.exit(0);
+    }
+
+    private static final TimeIds IDS = new TimeIds(0);
+
+    private static String[] followers(int count) {
+        String[] followers = new String[count];
+        for (int i = 0; i < count; i++) {
+            followers[i] = "bench_follower_" + i;
+        }
+        return followers;
+    }
+
+    private static void postOneByOne(CassandraService cassandra, String[] followers) {
+        String key = UUID.randomUUID().toString();
+        long column = IDS.next();
+        cassandra.updateColumn(key, "bench", "uname", Base.TWEETS);
+        cassandra.updateColumn(key, "benchmark tweet", "body", Base.TWEETS);
+        // line columns are longs, a batch of one is the same single insert
+        cassandra.batch().updateColumn("bench", key, column, CassandraService.LE, Base.USERLINE).execute();
+        cassandra.batch().updateColumn("!PUBLIC!", key, column, CassandraService.LE, Base.USERLINE).execute();
+        for (String follower : followers) {
+            cassandra.batch().updateColumn(follower, key, column, CassandraService.LE, Base.TIMELINE).execute();
+        }
+    }
+
+    private static int postBatched(CassandraService cassandra, String[] followers) {
+        String key = UUID.randomUUID().toString();
+        long column = IDS.next();
+        CassandraService.Batch batch = cassandra.batch();
+        batch.updateColumn(key, "bench", "uname", Base.TWEETS);
+        batch.updateColumn(key, "benchmark tweet", "body", Base.TWEETS);
+        batch.updateColumn("bench", key, column, CassandraService.LE, Base.USERLINE);
+        batch.updateColumn("!PUBLIC!", key, column, CassandraService.LE, Base.USERLINE);
+        for (String follower : followers) {
+            batch.updateColumn(follower, key, column, CassandraService.LE, Base.TIMELINE);
+        }
+        return batch.execute();
+    }
+
+    private static double median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000000.0;
+    }
+}
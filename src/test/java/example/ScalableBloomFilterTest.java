@@ -0,0 +1,79 @@
+package example;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScalableBloomFilterTest {
+
+    @Test
+    public void growsWithoutLosingStrings() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("user" + i);
+        }
+        assertTrue(filter.getStages() > 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("user" + i));
+        }
+        assertTrue(falsePositives(filter) <= 0.02);
+    }
+
+    @Test
+    public void addsAStringOnce() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        assertTrue(filter.add("jane"));
+        assertFalse(filter.add("jane"));
+        assertEquals(1, filter.getCount());
+    }
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("user" + i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+
+        ScalableBloomFilter loaded = ScalableBloomFilter.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(filter.getStages(), loaded.getStages());
+        assertEquals(filter.getCount(), loaded.getCount());
+        assertEquals(filter.getSizeBytes(), loaded.getSizeBytes());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(loaded.mightContain("user" + i));
+        }
+        assertEquals(falsePositives(filter), falsePositives(loaded), 0);
+
+        // and keeps growing from where it was
+        for (int i = 1000; i < 5000; i++) {
+            loaded.add("user" + i);
+        }
+        assertTrue(loaded.getStages() > filter.getStages());
+        assertTrue(loaded.mightContain("user4999"));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesSomethingElse() throws Exception {
+        ScalableBloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[64])));
+    }
+
+    private static double falsePositives(final ScalableBloomFilter filter) {
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("absent" + i)) {
+                positives++;
+            }
+        }
+        return positives / 10000.0;
+    }
+}
@@ -0,0 +1,208 @@
+package example;
+
+import me.prettyprint.cassandra.connection.LeastActiveBalancingPolicy;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.RoundRobinBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows what LatencyAwareBalancingPolicy buys over Hector's own policies
+ *  when one node misbehaves. Starts a few fake Cassandra nodes in this JVM,
+ *  Thrift servers that answer get with a column after about a millisecond,
+ *  working on a few calls at a time.
+ *  The first node is fault-injected: it is slowMillis slower, and every
+ *  periodMillis it stops for pauseMillis, like a node in a GC pause.
+ *
+ * Then, for each policy in turn, threads call readColumn as fast as they
+ *  can and the latencies and each node's share of the calls are printed.
+ *  The last run is latency-aware with hedged reads on.
+ *
+ * Without the last three arguments it runs twice: once with short GC-like
+ *  pauses, 400ms every 2s, and once with the node hanging for 5s every 10s,
+ *  far longer than the balancer's decay, which is what a node that stops
+ *  answering altogether looks like to it.
+ *
+ * Needs no cluster:
+ *   java example.SlowNodeDemo [nodes] [seconds] [threads] [slowMillis] [pauseMillis] [periodMillis]
+ *   e.g. java example.SlowNodeDemo 3 10 16 5 400 2000
+ */
+public class SlowNodeDemo {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        if (args.length > 3) {
+            scenario(nodes, seconds, threads, Long.parseLong(args[3]),
+                    args.length > 4 ? Long.parseLong(args[4]) : 400, args.length > 5 ? Long.parseLong(args[5]) : 2000);
+        } else {
+            scenario(nodes, seconds, threads, 5, 400, 2000);
+            System.out.println();
+            scenario(nodes, Math.max(seconds, 20), threads, 0, 5000, 10000);
+        }
+        System.exit(0);
+    }
+
+    private static void scenario(int nodes, int seconds, int threads,
+                                 long slowMillis, long pauseMillis, long periodMillis) throws Exception {
+        List<FakeNode> fakes = new ArrayList<FakeNode>();
+        StringBuilder hostList = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            FakeNode fake = 0 == i
+                    ? new FakeNode(slowMillis, pauseMillis, periodMillis)
+                    : new FakeNode(0, 0, periodMillis);
+            fakes.add(fake);
+            hostList.append(0 == i ? "" : ",").append("127.0.0.1:").append(fake._port);
+        }
+        System.out.println(nodes + " nodes, the first " + slowMillis + "ms slower and paused for "
+                + pauseMillis + "ms every " + periodMillis + "ms; " + threads + " threads for " + seconds + "s each");
+        System.out.println("policy\t\tcalls/s\tp50 us\tp99 us\tp999 us\tmax us\tshare per node");
+
+        String[] names = {"roundRobin", "leastActive", "latency", "hedged"};
+        LoadBalancingPolicy[] policies = {
+                new RoundRobinBalancingPolicy(), new LeastActiveBalancingPolicy(), new LatencyAwareBalancingPolicy(),
+                new LatencyAwareBalancingPolicy()};
+        for (int p = 0; p < policies.length; p++) {
+            CassandraHostConfigurator hosts = CassandraService.hostConfigurator(hostList.toString());
+            hosts.setLoadBalancingPolicy(policies[p]);
+            CassandraService cassandra = new CassandraService(hosts,
+                    "Twissjava Balancer Demo " + names[p] + " " + pauseMillis + "/" + periodMillis, "twissjava_demo");
+            cassandra.getMetrics().setIntervalMillis(24 * 60 * 60 * 1000L);
+            if ("hedged".equals(names[p])) {
+                cassandra.setHedging(0.95, 2, 5);
+            }
+
+            run(cassandra, threads, 1000);
+            cassandra.getMetrics().roll();
+            for (FakeNode fake : fakes) {
+                fake._calls.set(0);
+            }
+            run(cassandra, threads, seconds * 1000L);
+            cassandra.getMetrics().roll();
+
+            LatencyHistogram.Snapshot reads = cassandra.getMetrics().getLastInterval()
+                    .get(StorageMetrics.READ).get(Base.USERS);
+            StringBuilder shares = new StringBuilder();
+            long calls = 0;
+            for (FakeNode fake : fakes) {
+                calls += fake._calls.get();
+            }
+            for (FakeNode fake : fakes) {
+                shares.append(Math.round(100.0 * fake._calls.get() / Math.max(1, calls))).append("% ");
+            }
+            System.out.println(names[p] + (names[p].length() < 8 ? "\t\t" : "\t")
+                    + reads.getCount() / seconds + "\t" + reads.getValueAt(0.5) + "\t" + reads.getValueAt(0.99)
+                    + "\t" + reads.getValueAt(0.999) + "\t" + reads.getMax() + "\t" + shares
+                    + ("hedged".equals(names[p]) ? "\thedges sent " + cassandra.getMetrics().getHedgesSent()
+                    + ", won " + cassandra.getMetrics().getHedgesWon() : ""));
+            cassandra.shutdown();
+        }
+    }
+
+    private static void run(final CassandraService cassandra, int threads, final long millis) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    for (int n = 0; !stop.get(); n++) {
+                        cassandra.readColumn("user" + thread + "-" + n, "password", Base.USERS);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * A Thrift server that speaks just enough of the Cassandra API for
+     *  Hector to connect and readColumn to work.
+     */
+    private static class FakeNode implements InvocationHandler {
+        private static final int CORES = 4;
+
+        private final long _slowMillis;
+        private final long _pauseMillis;
+        private final long _periodMillis;
+        private final AtomicLong _calls = new AtomicLong();
+        // calls worked on at once, past this they queue as on a real node
+        private final Semaphore _cores = new Semaphore(CORES);
+        private final int _port;
+
+        private FakeNode(long slowMillis, long pauseMillis, long periodMillis) throws Exception {
+            _slowMillis = slowMillis;
+            _pauseMillis = pauseMillis;
+            _periodMillis = periodMillis;
+            ServerSocket socket = new ServerSocket(0);
+            _port = socket.getLocalPort();
+            Cassandra.Iface api = (Cassandra.Iface) Proxy.newProxyInstance(Cassandra.Iface.class.getClassLoader(),
+                    new Class<?>[]{Cassandra.Iface.class}, this);
+            final TServer server = new TThreadPoolServer(new Cassandra.Processor(api), new TServerSocket(socket),
+                    new TFramedTransport.Factory(), new TBinaryProtocol.Factory());
+            Thread serving = new Thread(new Runnable() {
+                public void run() {
+                    server.serve();
+                }
+            }, "fake-node-" + _port);
+            serving.setDaemon(true);
+            serving.start();
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("get".equals(method.getName())) {
+                _calls.incrementAndGet();
+                long now = System.currentTimeMillis();
+                long intoPeriod = now % _periodMillis;
+                if (intoPeriod < _pauseMillis) {
+                    Thread.sleep(_pauseMillis - intoPeriod);
+                }
+                _cores.acquire();
+                try {
+                    Thread.sleep(1 + _slowMillis);
+                } finally {
+                    _cores.release();
+                }
+                ColumnPath path = (ColumnPath) args[1];
+                return new ColumnOrSuperColumn().setColumn(
+                        new Column(path.column, ByteBuffer.wrap("secret".getBytes("UTF-8")), now));
+            }
+            if (void.class == method.getReturnType()) {
+                // set_keyspace, login
+                return null;
+            }
+            if (String.class == method.getReturnType()) {
+                // system_add_keyspace and the like, which return a schema version
+                return "fake";
+            }
+            throw new InvalidRequestException("not supported by the fake node: " + method.getName());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SocialGraphTest {
+
+    // an empty id table is already 4k, so this leaves room for a few dozen names per generation
+    private static final long CAPACITY_BYTES = 4 * 8192;
+
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    private EmbeddedStorage _storage;
+
+    @Before
+    public void open() throws Exception {
+        _storage = new EmbeddedStorage(_tmp.getRoot(), false, 0);
+        _storage.createColumnFamilyIfAbsent(Base.FRIENDS);
+        _storage.createColumnFamilyIfAbsent(Base.FOLLOWERS);
+    }
+
+    @After
+    public void shutdown() {
+        _storage.shutdown();
+    }
+
+    @Test
+    public void namesFollowersAcrossTwoRollovers() {
+        List<String> expected = new ArrayList<String>();
+        Storage.Batch batch = _storage.batch();
+        for (int i = 0; i < 20; i++) {
+            String follower = String.format("follower%02d", i);
+            expected.add(follower);
+            batch.updateColumn("star", "", follower, Base.FOLLOWERS);
+        }
+        batch.execute();
+
+        SocialGraph graph = new SocialGraph(_storage, CAPACITY_BYTES, 60000, 1000);
+        SocialGraph.Users followers = graph.followers("star");
+        assertEquals(1, graph.getGenerations());
+        SocialGraph.Users.Cursor cursor = followers.cursor();
+        List<String> unames = new ArrayList<String>();
+        for (int i = 0; cursor.next(); ) {
+            unames.add(cursor.uname());
+            if (unames.size() == 1) {
+                // fan-out of other posters numbers new names until the ids turn over twice
+                while (graph.getGenerations() < 3) {
+                    graph.friends("stranger" + i++);
+                }
+            }
+        }
+        Collections.sort(unames);
+        assertEquals(expected, unames);
+    }
+
+    @Test
+    public void answersFriendshipInTheCurrentGeneration() {
+        _storage.batch()
+                .updateColumn("jane", "", "bob", Base.FRIENDS)
+                .updateColumn("bob", "", "jane", Base.FOLLOWERS)
+                .execute();
+        SocialGraph graph = new SocialGraph(_storage, CAPACITY_BYTES, 60000, 1000);
+        assertTrue(graph.isFriend("jane", "bob"));
+        assertFalse(graph.isFriend("bob", "jane"));
+
+        for (int i = 0; graph.getGenerations() < 2; i++) {
+            graph.friends("stranger" + i);
+        }
+        assertTrue(graph.isFriend("jane", "bob"));
+        assertEquals(Collections.singletonList("jane"), graph.unames(graph.followers("bob"), 10));
+        assertNull(new SocialGraph(_storage, CAPACITY_BYTES, 60000, 0).followers("bob"));
+    }
+}
@@ -8,13 +8,36 @@ import org.mortbay.jetty.webapp.WebAppContext;
 public class Start {
 
 	public static void main(String[] args) throws Exception {
+		Server server = newServer(8888);
+
+		try {
+			System.out.println(">>> STARTING EMBEDDED JETTY SERVER, PRESS ANY KEY TO STOP");
+			server.start();
+			System.in.read();
+			System.out.println(">>> STOPPING EMBEDDED JETTY SERVER"); 
+            // while (System.in.available() == 0) {
+			//   Thread.sleep(5000);
+			// }
+			server.stop();
+			server.join();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(100);
+		}
+	}
+
+	/**
+	 * @param port
+	 * @return a server for the webapp in src/main/webapp, not started yet
+	 */
+	public static Server newServer(int port) {
 		Server server = new Server();
 		SocketConnector connector = new SocketConnector();
 		
 		// Set some timeout options to make debugging easier.
 		connector.setMaxIdleTime(1000 * 60 * 60);
 		connector.setSoLingerTime(-1);
-		connector.setPort(8888);
+		connector.setPort(port);
 		server.setConnectors(new Connector[] { connector });
 
 		WebAppContext bb = new WebAppContext();
@@ -29,20 +52,6 @@ public class Start {
 		// mBeanContainer.start();
 		
 		server.addHandler(bb);
-
-		try {
-			System.out.println(">>> STARTING EMBEDDED JETTY SERVER, PRESS ANY KEY TO STOP");
-			server.start();
-			System.in.read();
-			System.out.println(">>> STOPPING EMBEDDED JETTY SERVER"); 
-            // while (System.in.available() == 0) {
-			//   Thread.sleep(5000);
-			// }
-			server.stop();
-			server.join();
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(100);
-		}
+		return server;
 	}
 }
@@ -0,0 +1,64 @@
+package example;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TimeBucketsTest {
+
+    private static long millis(final String instant) {
+        return Instant.parse(instant).toEpochMilli();
+    }
+
+    @Test
+    public void cutsTimeIntoUtcPeriods() {
+        long millis = millis("2026-02-28T23:59:59.999Z");
+        TimeBuckets months = new TimeBuckets(TimeBuckets.Width.MONTH);
+        assertEquals(millis("2026-02-01T00:00:00Z"), months.startOf(millis));
+        assertEquals("2026-02", months.labelOf(millis));
+        assertEquals(millis("2026-01-01T00:00:00Z"), months.previous(months.startOf(millis)));
+        assertEquals("2026-03", months.labelOf(millis + 1));
+
+        TimeBuckets days = new TimeBuckets(TimeBuckets.Width.DAY);
+        assertEquals(millis("2026-02-28T00:00:00Z"), days.startOf(millis));
+        assertEquals("2026-02-28", days.labelOf(millis));
+
+        TimeBuckets hours = new TimeBuckets(TimeBuckets.Width.HOUR);
+        assertEquals(millis("2026-02-28T23:00:00Z"), hours.startOf(millis));
+        assertEquals("2026-02-28-23", hours.labelOf(millis));
+    }
+
+    @Test
+    public void answersOlderBucketsOnceANewerOneIsCached() {
+        TimeBuckets months = new TimeBuckets(TimeBuckets.Width.MONTH);
+        assertEquals("2031-12", months.labelOf(millis("2031-12-31T12:00:00Z")));
+        assertEquals("2012-12", months.labelOf(millis("2012-12-31T12:00:00Z")));
+        assertEquals(millis("2012-12-01T00:00:00Z"), months.startOf(millis("2012-12-31T12:00:00Z")));
+        assertEquals(millis("2031-12-01T00:00:00Z"), months.startOf(millis("2031-12-31T12:00:00Z")));
+    }
+
+    @Test
+    public void parsesTheLabelsItGives() {
+        for (TimeBuckets.Width width : TimeBuckets.Width.values()) {
+            TimeBuckets buckets = new TimeBuckets(width);
+            long start = buckets.startOf(millis("2024-02-29T17:42:00Z"));
+            assertEquals(start, buckets.startOfLabel(buckets.labelOf(start)));
+        }
+    }
+
+    @Test
+    public void rejectsOtherLabels() {
+        TimeBuckets days = new TimeBuckets(TimeBuckets.Width.DAY);
+        for (String label : new String[]{"2026-02-30", "2026-02", "2026-02-01-05", "buckets", ""}) {
+            try {
+                days.startOfLabel(label);
+                fail(label);
+            } catch (IllegalArgumentException expected) {
+                // not a day
+            }
+        }
+    }
+}
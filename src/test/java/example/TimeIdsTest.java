@@ -0,0 +1,45 @@
+package example;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeIdsTest {
+
+    @Test
+    public void idsIncreaseAndCarryTheirTime() {
+        TimeIds ids = new TimeIds(5);
+        long before = System.currentTimeMillis();
+        long last = ids.next();
+        for (int i = 0; i < 100000; i++) {
+            long id = ids.next();
+            assertTrue(id > last);
+            last = id;
+        }
+        long after = System.currentTimeMillis();
+        // 100000 ids can borrow a few milliseconds ahead
+        long timestamp = TimeIds.timestampOf(last);
+        assertTrue(timestamp >= before && timestamp <= after + 100000 / 4096 + 1);
+    }
+
+    @Test
+    public void nodesDoNotCollide() {
+        long a = new TimeIds(1).next();
+        long b = new TimeIds(2).next();
+        assertTrue(a != b);
+    }
+
+    @Test
+    public void firstIdAtSortsBeforeTheMillisecondsIds() {
+        long millis = 1300000000000L;
+        long first = TimeIds.firstIdAt(millis);
+        assertEquals(millis, TimeIds.timestampOf(first));
+        assertEquals(millis - 1, TimeIds.timestampOf(first - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnUnknownNode() {
+        new TimeIds(TimeIds.MAX_NODE + 1);
+    }
+}